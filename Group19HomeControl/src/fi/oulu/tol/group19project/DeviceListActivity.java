@@ -103,7 +103,7 @@ public class DeviceListActivity extends ListActivity implements HomeControlServi
 		   try {
 		      if (homeControlService != null) {
 		         Log.d(TAG, "Refreshing device data from server");
-		         homeControlService.getProtocol().getPath(null, "/");
+		         homeControlService.refresh();
 		      }
 		   } catch (InterruptedException e) {
 		      e.printStackTrace();
@@ -205,6 +205,19 @@ SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(thi
 String addr = sharedPref.getString(SettingsActivity.KEY_PREF_SERVER_ADDRESS, getString(R.string.default_server_address));
 if (homeControlService != null) {
     Log.d(TAG, "Connection to control unit");
+   if (sharedPref.getBoolean(SettingsActivity.KEY_PREF_LOCAL_SERVER, false)) {
+      int rooms = 10;
+      try {
+         rooms = Integer.parseInt(sharedPref.getString(SettingsActivity.KEY_PREF_LOCAL_SERVER_ROOMS, "10"));
+      } catch (NumberFormatException e) {
+         Log.d(TAG, "Invalid room count, using " + rooms);
+      }
+      String local = homeControlService.startLocalServer(rooms);
+      if (local != null) {
+         homeControlService.getProtocol().startSession(local);
+      }
+      return;
+   }
 	// addr tilalle http://....jne jos ei connect onnistu
    homeControlService.getProtocol().startSession("http://ohap.opimobi.com:18000");
 }
@@ -1,17 +1,23 @@
 package fi.oulu.tol.group19project;
 
 
+import java.io.IOException;
+import java.io.Reader;
+
 import org.json.JSONException;
 
+import fi.oulu.tol.group19project.model.AbstractDevice;
 import fi.oulu.tol.group19project.model.ConcreteDevice;
 import fi.oulu.tol.group19project.model.DeviceContainer;
 import fi.oulu.tol.group19project.model.AbstractDevice.Type;
 import fi.oulu.tol.group19project.ohap.OHAPImplementation;
 import fi.oulu.tol.group19project.ohap.OHAPInterface;
-import fi.oulu.tol.group19project.ohap.OHAPListener;
 import fi.oulu.tol.group19project.ohap.OHAPParser;
 import fi.oulu.tol.group19project.ohap.OHAPPathBuilder;
+import fi.oulu.tol.group19project.ohap.OHAPStreamListener;
 import fi.oulu.tol.group19project.ohap.TaskData;
+import fi.oulu.tol.group19project.ohap.server.OHAPLocalServer;
+import fi.oulu.tol.group19project.ohap.server.SimulatedHome;
 
 
 import android.app.Service;
@@ -20,21 +26,31 @@ import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.EditText;
 import android.widget.Toast;
 
-public class HomeControlService extends Service implements OHAPListener{
+public class HomeControlService extends Service implements OHAPStreamListener{
 	// Create the path builder as a member of HomeControlService:
 	private OHAPPathBuilder ohapBuilder = new OHAPPathBuilder();
 	private final static String TAG = "DeviceParser";
 	private final HomeControlBinder binder = new HomeControlBinder();
-	private DeviceContainer devices = new DeviceContainer(null, "container-1", "No connection with Home", null, null);
+	/** The model, changed only in the main thread. Volatile, as the workers check if there is one. */
+	private volatile DeviceContainer devices = new DeviceContainer(null, "container-1", "No connection with Home", null, null);
 	private OHAPParser parser = null;
+	/** The version of the model from the latest DELTA, null if not known. */
+	private String modelVersion = null;
 	private String json = new String("{ \"container:room-1\": { \"name\": \"GF301-1\", \"description\": \"Antti's office\", \"location\": { \"latitude\": 65.058668, \"longitude\": 25.564338, \"altitude\": 100.0 }, 		\"sensor:switch-1\": { \"name\": \"Light switch\", \"description\": \"The light switch next to the door\", \"state\": { \"type\": \"binary\", \"value\": true }, \"location\": { \"latitude\": 65.058669, \"longitude\": 25.564338, \"altitude\": 100.6 }},		\"sensor:temperature-1\": { \"name\": \"Room temperature\", \"description\": \"The current temperature in the room\", \"state\": { \"type\": \"decimal\", \"value\": 21.1, \"range\": [-10.0, 60.0], \"unit\": \"Celcius\", \"unit-abbreviation\": \"C\" },\"location\": { \"latitude\": 65.058668, \"longitude\": 25.564339,\"altitude\": 101.2 } },		\"actuator:light-1\": { \"name\": \"Ceiling lamp\", \"description\": \"The fluerecent lamp in the ceiling\", \"state\": { \"type\": \"binary\", \"value\": false }, \"location\": { \"latitude\": 65.058669, \"longitude\": 25.564339, \"altitude\": 102.6  } }  \"actuator:heating-1\": { \"name\": \"Room temperature target\", \"description\": \"Target temperature of the heating\", \"state\": { \"type\": \"decimal\", \"value\": 22.000000, \"range\": [-10.000000, 60.000000], \"unit\": \"Celcius\", \"unit-abbreviation\": \"C\" }, \"location\": { \"latitude\": 65.058668, \"longitude\": 25.564338, \"altitude\": 100.000000 }}}}");
 	private OHAPInterface protocol = null;
 	private Handler eventHandler = new Handler();
+	/** The simulated home server, null if not started. */
+	private OHAPLocalServer localServer = null;
+	/** Number of the rooms in the home of the local server. */
+	private int localServerRooms = 0;
 	private HomeControlServiceObserver observer = null;
+	/** Min interval of telling the observer of the arriving rooms, in milliseconds. */
+	private static final long PROGRESS_INTERVAL = 250;
 
 	public void setObserver(HomeControlServiceObserver observer) {
 		this.observer = observer;
@@ -51,6 +67,17 @@ public class HomeControlService extends Service implements OHAPListener{
 		protocol.setObserver(this);
 	}
 
+	@Override
+	public void onDestroy() {
+		Log.d(TAG, "In Service.onDestroy");
+		OHAPImplementation.getInstance().releaseWorkers();
+		if (null != localServer) {
+			localServer.stop();
+			localServer = null;
+		}
+		super.onDestroy();
+	}
+
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		return START_STICKY;
@@ -87,6 +114,44 @@ public class HomeControlService extends Service implements OHAPListener{
 		return devices;
 	}
 
+	/**
+	 * Starts the local server with a simulated home, for using the app
+	 * without the real central unit. If the server is already running with
+	 * another home size, it is restarted.
+	 * 
+	 * @param rooms
+	 *            Number of the rooms in the home.
+	 * @return The address of the server, null if it could not be started.
+	 */
+	public String startLocalServer(int rooms) {
+		if (null != localServer) {
+			if (localServerRooms == rooms) {
+				return localServer.getAddress();
+			}
+			localServer.stop();
+		}
+		localServer = new OHAPLocalServer(new SimulatedHome(rooms, 5, 2, rooms));
+		localServerRooms = rooms;
+		try {
+			localServer.start(0);
+		} catch (IOException e) {
+			Log.d(TAG, "Could not start the local server: " + e.getMessage());
+			localServer = null;
+			return null;
+		}
+		return localServer.getAddress();
+	}
+
+	/**
+	 * Refreshes the device data from the server. Asks only for the changes
+	 * since the version of the model, if the version is known.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void refresh() throws InterruptedException {
+		protocol.sync(null, null == devices ? null : modelVersion);
+	}
+
 
 	// Then call this method when the device state has changed (in DeviceActivity propably):
 	public void deviceStateChanged(ConcreteDevice device) {
@@ -108,7 +173,7 @@ public class HomeControlService extends Service implements OHAPListener{
 			public void run() {
 				try {
 					Log.d(TAG, "In: sessionInitiatedSuccessfully");
-					protocol.getPath(null,"/");
+					refresh();
 				} catch (InterruptedException e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
@@ -122,40 +187,198 @@ public class HomeControlService extends Service implements OHAPListener{
 			@Override
 			public void run() {
 				devices = null;
+				modelVersion = null;
 
 	}});}
 
+	@Override
+	public void deltaFromServerArrived(final String version, final String changes) {
+		eventHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (changes.length() > 0) {
+					updateModel(changes);
+				}
+				if (null != devices) {
+					modelVersion = version;
+				}
+				if (null != observer) {
+					observer.modelUpdated();
+				}
+			}
+		});
+	}
+
 	@Override
 	public void contentFromServerArrived(final String content) {
 		eventHandler.post(new Runnable() {
 			@Override
 			public void run() {
-				try {
-					if (devices == null) {
+				updateModel(content);
+			}
+		});
+
+		if (null != observer) {
+			observer.modelUpdated();
+		}
+
+	}
+
+	/**
+	 * Called in a worker thread when a VALUE, or the changes of a DELTA, start
+	 * to arrive. If there is no model yet, parses the devices while they
+	 * arrive; each room of the new model is shown as soon as it has been
+	 * parsed, see {@link ModelBuilder}. A change to an existing model is left
+	 * to {@link #contentFromServerArrived(String)} or
+	 * {@link #deltaFromServerArrived(String, String)}, to be applied to the
+	 * model in the main thread. If the JSON cannot be parsed, the rooms
+	 * already shown are dropped, the error is shown, and the reply is passed
+	 * on as if it had not been streamed.
+	 * 
+	 * @param content
+	 *            The JSON of the devices.
+	 * @return true if the content was parsed here.
+	 */
+	@Override
+	public boolean contentArriving(Reader content) throws IOException {
+		if (null != devices) {
+			return false;
+		}
+		final ModelBuilder builder = new ModelBuilder();
+		try {
+			final AbstractDevice top = parser.parse(content, builder);
+			eventHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					builder.finished(top);
+				}
+			});
+		} catch (JSONException e) {
+			Log.d(TAG, "Could not parse the arriving devices: " + e.getMessage());
+			eventHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					builder.failed();
+				}
+			});
+			errorMessageFromServer(e.getMessage());
+			return false;
+		}
+		return true;
+	}
 
-						devices = (DeviceContainer) parser.parseString(content);
+	/**
+	 * Parses the JSON from the server into the model, or if there already is
+	 * a model, sets the devices and values of the JSON to it in place.
+	 * 
+	 * @param content
+	 *            The JSON of the devices.
+	 */
+	private void updateModel(String content) {
+		try {
+			if (devices == null) {
+				devices = (DeviceContainer) parser.parseString(content);
+			}
+			else {
+				int count = parser.updateString(content, devices);
+				Log.d(TAG, "Updated " + count + " devices");
+			}
+		} catch (JSONException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
 
-					}
-					else {
-						DeviceContainer newData = (DeviceContainer)parser.parseString(content);
-                        // null ?
-                        if(newData != null)  {
-						devices.updateValues(newData);
-                        }
-					}
+	/**
+	 * Takes the parsed devices as the model, or if there already is a model,
+	 * updates its values from them.
+	 * 
+	 * @param newData
+	 *            The parsed devices, may be null.
+	 */
+	private void updateModel(DeviceContainer newData) {
+		if (devices == null) {
+			devices = newData;
+		}
+		else if (newData != null) {
+			devices.updateValues(newData);
+		}
+	}
 
+	/**
+	 * Builds a new model in the main thread from the rooms a worker thread
+	 * parses, telling the observer of the new rooms at most every
+	 * {@link #PROGRESS_INTERVAL} milliseconds. The rooms are added to a
+	 * container of the main thread, so the parser never changes the model
+	 * the UI shows. If there already is a model, it is updated only when the
+	 * whole JSON has been parsed.
+	 */
+	private class ModelBuilder implements OHAPParser.Listener {
+		/** The new model, null until the first room has arrived. */
+		private DeviceContainer building = null;
+		/** Is the JSON an update to an existing model. */
+		private boolean updating = false;
+		/** When the observer was last told of new rooms. */
+		private long notified = 0;
+
+		@Override
+		public void deviceParsed(final DeviceContainer top, final AbstractDevice device) {
+			eventHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					add(top, device);
+				}
+			});
+		}
 
-				} catch (JSONException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+		private void add(DeviceContainer top, AbstractDevice device) {
+			if (null == building) {
+				if (updating || null != devices) {
+					updating = true;
+					return;
 				}
+				building = new DeviceContainer(null, top.getId(), top.getName(), top.getDescription(), top.getLocation());
+				devices = building;
+			} else if (devices != building) {
+				// The session ended while the model was arriving.
+				return;
 			}
-		});
+			building.add(device);
+			long now = SystemClock.uptimeMillis();
+			if (now - notified >= PROGRESS_INTERVAL) {
+				notified = now;
+				if (null != observer) {
+					observer.modelUpdated();
+				}
+			}
+		}
 
-		if (null != observer) {
-			observer.modelUpdated();
+		private void finished(AbstractDevice top) {
+			if (null == building) {
+				updateModel((DeviceContainer) top);
+			} else if (devices == building) {
+				// The properties may come after the rooms in the JSON.
+				building.setName(top.getName());
+				building.setDescription(top.getDescription());
+				building.setLocation(top.getLocation());
+			}
+			if (null != observer) {
+				observer.modelUpdated();
+			}
 		}
 
+		/**
+		 * Drops the rooms of a model which could not be parsed to the end,
+		 * unless the model has already been replaced.
+		 */
+		private void failed() {
+			if (null != building && devices == building) {
+				devices = null;
+				if (null != observer) {
+					observer.modelUpdated();
+				}
+			}
+		}
 	}
 
 	@Override
@@ -14,6 +14,8 @@ public class SettingsActivity extends Activity {
 	private SettingsFragment settingsFragment = null;
 	public static final String KEY_PREF_CONNECT_TO_SERVER_SETTING = "connect_to_server_check";
 	public static final String KEY_PREF_SERVER_ADDRESS = "server_address";
+	public static final String KEY_PREF_LOCAL_SERVER = "local_server_check";
+	public static final String KEY_PREF_LOCAL_SERVER_ROOMS = "local_server_rooms";
 
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -210,6 +210,14 @@ public class ConcreteDevice extends AbstractDevice {
 		this.unitAbbreviation = abbr;
 	}
 
+	/**
+	 * Sets the unit of the value.
+	 * @param unit The unit string.
+	 */
+	public void setUnit(String unit) {
+		this.unit = unit;
+	}
+
 	/**
 	 * Sets the value of the actuator.
 	 * @param value The new value.
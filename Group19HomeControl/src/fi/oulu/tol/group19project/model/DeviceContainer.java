@@ -1,7 +1,9 @@
 package fi.oulu.tol.group19project.model;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import android.location.Location;
 import android.util.Log;
@@ -25,6 +27,9 @@ public class DeviceContainer extends AbstractDevice {
 
 	/** A vector of devices */
 	List<AbstractDevice> devices = new Vector<AbstractDevice>();
+
+	/** The child devices by id, for finding a child without going through all of them. */
+	private final Map<String, AbstractDevice> devicesById = new HashMap<String, AbstractDevice>();
 	
 	/** Constructor, providing the possible parent object.
 	 * 
@@ -54,6 +59,9 @@ public class DeviceContainer extends AbstractDevice {
 	 */
 	public void add(AbstractDevice d) {
 		devices.add(d);
+		if (null != d.getId()) {
+			devicesById.put(d.getId(), d);
+		}
 		d.setParent(this);
 	}
 	
@@ -63,6 +71,9 @@ public class DeviceContainer extends AbstractDevice {
 	 */
 	public void remove(AbstractDevice d) {
 		devices.remove(d);
+		if (null != d.getId() && devicesById.get(d.getId()) == d) {
+			devicesById.remove(d.getId());
+		}
 		d.setParent(null);
 	}
 	
@@ -74,6 +85,7 @@ public class DeviceContainer extends AbstractDevice {
 			device.setParent(null);
 		}
 		devices.clear();
+		devicesById.clear();
 	}
 	
 	/**
@@ -114,6 +126,45 @@ public class DeviceContainer extends AbstractDevice {
 		return null;
 	}
 	
+	/**
+	 * Gets the direct child object with the id. Does not consider
+	 * children of the children.<p>
+	 * 
+	 * The children are found by the id they had when they were added.
+	 * 
+	 * @param id The id of the child.
+	 * @return The child device, null if not found.
+	 */
+	public AbstractDevice findChild(String id) {
+		return devicesById.get(id);
+	}
+
+	/**
+	 * Finds the device with the id from this container and the
+	 * children of the children.
+	 * 
+	 * @param id The id of the device.
+	 * @return This container or the device under it, null if not found.
+	 */
+	public AbstractDevice findDevice(String id) {
+		if (id.equals(getId())) {
+			return this;
+		}
+		AbstractDevice found = devicesById.get(id);
+		if (null != found) {
+			return found;
+		}
+		for (AbstractDevice d : devices) {
+			if (d instanceof DeviceContainer) {
+				found = ((DeviceContainer) d).findDevice(id);
+				if (null != found) {
+					return found;
+				}
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Updates the device data from the parameter either in device,
 	 * or if this is not the device in question, passes the device
@@ -0,0 +1,163 @@
+package fi.oulu.tol.group19project.model;
+
+import android.location.Location;
+
+/**
+ * A container whose child devices are created only when they are first
+ * needed.<p>
+ *
+ * The container is created with its own name, description and location,
+ * and a {@link ChildLoader} which creates the children. The loader is called
+ * once, the first time the children are asked for, added, removed or
+ * searched, or a {@link Visitor} is accepted. A big home can then be shown
+ * room by room without creating the devices of the rooms not opened.<p>
+ *
+ * Like the other devices, a lazy container must be used in one thread only,
+ * as the loading changes it.
+ *
+ * @see DeviceContainer
+ */
+public class LazyDeviceContainer extends DeviceContainer {
+
+	/**
+	 * Creates the children of a lazy container.
+	 */
+	public interface ChildLoader {
+		/**
+		 * Called once, when the children of the container are first needed.
+		 * Adds the children with {@link DeviceContainer#add(AbstractDevice)}.
+		 *
+		 * @param container The container to add the children to.
+		 */
+		public void loadChildren(LazyDeviceContainer container);
+	}
+
+	/** Creates the children, null when they have been created. */
+	private ChildLoader loader;
+
+	/** Constructor, providing the parent, the other member variable values
+	 * and the loader of the children.<p>
+	 *
+	 * @param parent Parent of this device, may be null.
+	 * @param id The id for this device, a must to have.
+	 * @param name The name for this devices.
+	 * @param description The description of the device.
+	 * @param location The location for the device.
+	 * @param loader Creates the children, null if there are none.
+	 */
+	public LazyDeviceContainer(AbstractDevice parent, String id, String name, String description, Location location, ChildLoader loader) {
+		super(parent, id, name, description, location);
+		this.loader = loader;
+	}
+
+	/**
+	 * Checks if the children have been created.
+	 *
+	 * @return true if the children have been created.
+	 */
+	public boolean isLoaded() {
+		return null == loader;
+	}
+
+	/**
+	 * Creates the children now, if they have not been created yet.
+	 */
+	public void load() {
+		if (null != loader) {
+			// Cleared first, as the loader adds the children to this.
+			ChildLoader childLoader = loader;
+			loader = null;
+			childLoader.loadChildren(this);
+		}
+	}
+
+	@Override
+	public void add(AbstractDevice d) {
+		load();
+		super.add(d);
+	}
+
+	@Override
+	public void remove(AbstractDevice d) {
+		load();
+		super.remove(d);
+	}
+
+	@Override
+	public void removeAll() {
+		loader = null;
+		super.removeAll();
+	}
+
+	@Override
+	public int getChildCount() {
+		load();
+		return super.getChildCount();
+	}
+
+	@Override
+	public boolean hasChildren() {
+		load();
+		return super.hasChildren();
+	}
+
+	@Override
+	public AbstractDevice getChild(int index) {
+		load();
+		return super.getChild(index);
+	}
+
+	@Override
+	public AbstractDevice findChild(String id) {
+		load();
+		return super.findChild(id);
+	}
+
+	/**
+	 * Finds the device with the id from this container and the
+	 * children of the children. The children are not created if
+	 * the id is the id of this container.
+	 *
+	 * @param id The id of the device.
+	 * @return This container or the device under it, null if not found.
+	 */
+	@Override
+	public AbstractDevice findDevice(String id) {
+		if (id.equals(getId())) {
+			return this;
+		}
+		load();
+		return super.findDevice(id);
+	}
+
+	@Override
+	public void updateValues(DeviceContainer fromDevice) {
+		load();
+		super.updateValues(fromDevice);
+	}
+
+	@Override
+	public String toString() {
+		load();
+		return super.toString();
+	}
+
+	@Override
+	public void debugLog() {
+		load();
+		super.debugLog();
+	}
+
+	@Override
+	public void sort() {
+		load();
+		super.sort();
+	}
+
+	@Override
+	public void accept(Visitor visitor) {
+		load();
+		super.accept(visitor);
+	}
+
+}
@@ -1,7 +1,13 @@
 package fi.oulu.tol.group19project.ohap;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 
@@ -17,11 +23,27 @@ import android.util.Log;
  * <p>
  * 
  * The protocol sets up the connection with the home control unit by using a
- * {@link OHAPTaskBase}. Protocol creates first one OHAPTaskBase derived object
- * and tries to form a session with the server using it. When the sessionId
- * arrives from the server, protocol instantiates another OHAPTaskBase based
- * object. These two task objects then take tasks from the task queue and handle
- * the results from the server.
+ * pool of {@link OHAPTaskBase} workers, see {@link OHAPWorkerPool}. Protocol
+ * starts the workers and puts the session initiation task in the task queue.
+ * One of the workers forms the session with the server. After the sessionId
+ * has arrived from the server, all the workers take tasks from the task queue
+ * and handle the results from the server. The number of the workers is set
+ * with {@link OHAPConfiguration}. The worker threads are kept running between
+ * sessions, so that starting a new session does not create new threads.
+ * <p>
+ * 
+ * The workers, the task queue and the transport are shared by all the
+ * protocols created by the same {@link OHAPFactory}. The state of the session
+ * is kept in an {@link OHAPSession} of each protocol, so several protocol
+ * objects can have sessions with different servers at the same time.
+ * <p>
+ * 
+ * If the session cannot be created, or the connection to the server is lost,
+ * the protocol connects again after a delay given by the
+ * {@link OHAPReconnectPolicy} of the configuration. When a lost session has
+ * been created again, the protocol sends the LISTEN commands of the client
+ * again and gets all the devices with a GET, so the client sees the new
+ * session only as updated content.
  * <p>
  * 
  * The result is interpreted by the OHAPTaskBase and put on the results queue.
@@ -80,7 +102,13 @@ public abstract class OHAPBase implements Runnable {
 	/**
 	 * Protocol state variable.
 	 */
-	private ProtocolState state = ProtocolState.Uninitialized;
+	private volatile ProtocolState state = ProtocolState.Uninitialized;
+
+	/**
+	 * The protocol thread waits on this lock while the protocol is
+	 * uninitialized, and {@link #initialize(String)} wakes it up.
+	 */
+	private final Object stateLock = new Object();
 
 	/**
 	 * The URL to the server, without session id string, and the running counter
@@ -100,31 +128,31 @@ public abstract class OHAPBase implements Runnable {
 	private Thread myThread = null;
 
 	/**
-	 * The first task created when the protocol starts. It will try to create
-	 * the session with the server, and when succeeded, is one of the two task
-	 * objects, reading tasks from the task queue and handling them, writing
-	 * results to the results queue.
+	 * Owns the workers, the task queue and the transport shared with the other
+	 * protocols of the factory.
 	 */
-	private OHAPTaskBase firstTask = null;
+	private final OHAPFactory factory;
 
 	/**
-	 * The second task, which handles commands sent to the central unit server.
-	 * It is created when the session has been established, by the protocol.
+	 * The current session, null if the protocol has not been initialized.
 	 */
-	private OHAPTaskBase secondTask = null;
+	private volatile OHAPSession session = null;
 
 	/**
-	 * Here is the task queue the {@link OHAPTaskBase} objects read. If the
-	 * queue is empty, take() blocks the reading thread.
+	 * Here is the task queue the {@link OHAPTaskBase} objects read, shared by
+	 * the protocols of the factory. Use {@link #putTask(TaskData)} to put
+	 * tasks of this protocol into the queue. Pending SET commands to the same
+	 * device are coalesced in the queue, see {@link OHAPTaskQueue}.
 	 */
-	protected BlockingQueue<TaskData> taskQueue = null;
+	protected final OHAPTaskQueue taskQueue;
 
 	/**
 	 * Here both tasks ({@link OHAPTaskBase}) write their results and the
-	 * protocol then handles those. If the queue is empty, the reading thread
-	 * (protocol, that is) calling take() will block.
+	 * protocol then handles those. The results have already been classified
+	 * by the tasks, see {@link OHAPEvent}. If the queue is empty, the reading
+	 * thread (protocol, that is) calling take() will block.
 	 */
-	protected BlockingQueue<String> results = null;
+	protected BlockingQueue<OHAPEvent> results = null;
 
 	private static final String TAG = "HCApp-OHAPBase";
 
@@ -135,19 +163,41 @@ public abstract class OHAPBase implements Runnable {
 	public static final String VALUE = "VALUE";
 	/** Server reply ERROR -- error text should be also with this reply. */
 	public static final String ERROR = "ERROR";
-	/** Internal way for the tasks to indicate a session has been established. */
-	private static final String SESSION = "SESSION";
 
 	/**
-	 * Connection attempt number, used in making the first connection if it
-	 * fails.
+	 * Number of failed connection attempts in a row, see
+	 * {@link OHAPReconnectPolicy#nextDelay(int)}.
+	 */
+	private int reconnectAttempt = 0;
+
+	/**
+	 * If not zero, the time when the next connection attempt is due.
 	 */
-	private static final int CONNECTION_ATTEMPTS = 1;
+	private long reconnectDue = 0;
+
 	/**
-	 * Connection attempt counter, used in making the first connection if it
-	 * fails.
+	 * Is the protocol creating the session again after it was lost. The
+	 * client is not told about the new session.
 	 */
-	private int connectionCount = CONNECTION_ATTEMPTS;
+	private volatile boolean resuming = false;
+
+	/**
+	 * The paths the client listens to, sent again when a lost session has
+	 * been created again.
+	 */
+	private final Set<String> subscriptions = Collections
+			.synchronizedSet(new LinkedHashSet<String>());
+
+	/**
+	 * The queue of the long polls, read by the poll workers of the factory.
+	 */
+	private final OHAPTaskQueue pollQueue;
+
+	/**
+	 * The replies to the GETs of the session, see {@link OHAPResponseCache}.
+	 * Disabled until the protocol is initialized.
+	 */
+	private volatile OHAPResponseCache cache = new OHAPResponseCache(0, 0, 0);
 
 	/**
 	 * Use the method to check if the protocol has been initialized (not yet
@@ -159,6 +209,49 @@ public abstract class OHAPBase implements Runnable {
 		return state == ProtocolState.Initialized;
 	}
 
+	/**
+	 * Sets the configuration of the protocol. The configuration is shared by
+	 * all the protocols of the factory, and taken into use when the next
+	 * session is started.
+	 * 
+	 * @param configuration
+	 *            The configuration to use, null restores the defaults.
+	 * @see OHAPFactory#setConfiguration(OHAPConfiguration)
+	 */
+	public void setConfiguration(OHAPConfiguration configuration) {
+		factory.setConfiguration(configuration);
+	}
+
+	/**
+	 * Gets the configuration of the protocol.
+	 * 
+	 * @return The configuration.
+	 */
+	public OHAPConfiguration getConfiguration() {
+		return factory.getConfiguration();
+	}
+
+	/**
+	 * Sets the transport the workers use in sending the requests to the
+	 * server. The transport is shared by all the protocols of the factory.
+	 * 
+	 * @param transport
+	 *            The transport to use, null restores the default.
+	 * @see OHAPFactory#setTransport(OHAPTransport)
+	 */
+	public void setTransport(OHAPTransport transport) {
+		factory.setTransport(transport);
+	}
+
+	/**
+	 * Gets the transport the workers use.
+	 * 
+	 * @return The transport.
+	 */
+	public OHAPTransport getTransport() {
+		return factory.getTransport();
+	}
+
 	/**
 	 * Checks if the protocol thread is running or not.
 	 * 
@@ -174,20 +267,25 @@ public abstract class OHAPBase implements Runnable {
 
 	/**
 	 * Run method of the protocol. Here the protocol checks the state of itself,
-	 * and does correct things, depending on the state.
+	 * and does correct things, depending on the state. The protocol thread
+	 * does not poll; it blocks until something happens: the protocol is
+	 * initialized, a worker puts a result in the results queue, or a worker
+	 * finishes a task (see {@link OHAPEvent.Kind#TASK_DONE}).
 	 * <ul>
-	 * <li>If the state is Initialized, protocol will create the firstTask
-	 * object and use it to create a session with the server, using the task
-	 * queue.</li>
-	 * <li>If the state is Connecting, protocol checks if the firstTask has
-	 * succeeded in getting the session up. If yes, protocol creates and
-	 * launches the secondTask object, and sets the state to Connected. If no,
-	 * it will put another startsession task in the task queue, and attempts to
-	 * connect for limited amount of tries.</li>
-	 * <li>If the state is Connected, protocol first checks that the tasks have
-	 * something to do. If not, it will put an empty task in the task queue.
-	 * Then it will try to read the results queue and if there are results, it
-	 * will handle them.</li>
+	 * <li>If the state is Initialized, protocol will attach the worker pool
+	 * and use it to create a session with the server, using the task queue.</li>
+	 * <li>If the state is Connecting, protocol waits for the session attempt
+	 * to finish. If a worker succeeded in getting the session up, protocol
+	 * sets the state to Connected, resuming the subscriptions of a lost
+	 * session. If no, it will put another startsession task in the task queue
+	 * after the delay the reconnect policy tells, until the policy gives
+	 * up.</li>
+	 * <li>If the state is Connected, protocol waits for the results queue and
+	 * handles the results. It keeps a long poll, an empty request, waiting at
+	 * the server, so that the server can send the changes. The poll is put in
+	 * the poll queue when the {@link OHAPPollScheduler} of the session says
+	 * it is due. If the session is lost, the protocol goes back to
+	 * Connecting.</li>
 	 * </ul>
 	 * 
 	 * @see OHAPTaskBase
@@ -198,77 +296,104 @@ public abstract class OHAPBase implements Runnable {
 			while (running) {
 				switch (state) {
 				case Uninitialized: {
-					Thread.sleep(1000); // nah...
+					synchronized (stateLock) {
+						while (running && state == ProtocolState.Uninitialized) {
+							stateLock.wait();
+						}
+					}
 					break;
 				}
 				case Initialized: {
 					Log.d(TAG,
 							"Protocol initialized, starting the session task");
-					firstTask = new OHAPTaskImplementation();
-					firstTask.initialize(serverAddress, taskQueue, results);
-					taskQueue.put(new TaskData(null, TaskData.INIT_SESSION_CMD,
-							null));
+					factory.start(this);
+					putTask(new TaskData(null, TaskData.INIT_SESSION_CMD, null));
 					state = ProtocolState.Connecting;
-					firstTask.start();
-					Thread.sleep(1000);
 					break;
 				}
 				case Connecting: {
 					Log.d(TAG, "Protocol now connecting...");
-					String result = results.take();
+					OHAPEvent result = null;
+					if (reconnectDue > 0) {
+						long wait = reconnectDue - System.currentTimeMillis();
+						if (wait > 0) {
+							result = results.poll(wait, TimeUnit.MILLISECONDS);
+						}
+						if (null == result) {
+							reconnectDue = 0;
+							Log.d(TAG,
+									"Put another start session message in session task queue");
+							putTask(new TaskData(null,
+									TaskData.INIT_SESSION_CMD, null));
+							break;
+						}
+					} else {
+						result = results.take();
+					}
 					Log.d(TAG, "Response: " + result);
-					if (firstTask.hasSession()) {
+					// The TASK_DONE event may have been dropped from a full
+					// results queue, so the session is asked instead.
+					boolean taskDone = session.takeTaskDone();
+					if (hasSession()) {
 						Log.d(TAG, "...protocol connected!");
 						state = ProtocolState.Connected;
-						secondTask = new OHAPTaskImplementation();
-						Log.d(TAG, "Initializing workerTask...");
-						secondTask
-								.initialize(serverAddress, taskQueue, results);
-						secondTask.start();
-						handleServerResponse(result);
-					} else {
-						// if there are no tasks in queue, connection attempt
-						// counter says
-						// we still can try, and firstTask is not in the middle
-						// of trying,
-						// then we need to try to connect again for the certain
-						// max count times.
-						// The we have to quit and believe there is no server to
+						reconnectAttempt = 0;
+						reconnectDue = 0;
+						if (resuming) {
+							resume();
+						}
+						if (result.getKind() != OHAPEvent.Kind.TASK_DONE) {
+							handleServerResponse(result);
+						}
+					} else if (taskDone) {
+						// Wait until the attempt in the queue or in a worker
+						// has finished, unless the next one is already due.
+						if (!session.isIdle() || reconnectDue > 0) {
+							break;
+						}
+						// if the reconnect policy says we still can try, then
+						// we try to connect again after a while. Otherwise
+						// we have to quit and believe there is no server to
 						// connect to.
-						if (connectionCount-- > 0 && !firstTask.isBusy()) {
-							// Do not fill the queue with init tasks...
-							if (taskQueue.peek() == null) {
-								Log.d(TAG,
-										"Put another start session message in session task queue");
-								taskQueue.put(new TaskData(null,
-										TaskData.INIT_SESSION_CMD, null));
-								Log.d(TAG, "Still connecting..."
-										+ connectionCount);
-								Thread.sleep(5000);
+						long delay = getConfiguration().getReconnectPolicy()
+								.nextDelay(reconnectAttempt++);
+						if (delay >= 0) {
+							Log.d(TAG, "Still connecting... attempt "
+									+ reconnectAttempt + " in " + delay + " ms");
+							if (reconnectAttempt == 1 && !resuming) {
+								errorMessageToClient("Cannot connect to the server, trying again");
 							}
+							reconnectDue = System.currentTimeMillis()
+									+ Math.max(delay, 1);
 						} else {
 							Log.d(TAG, "Could not connect, stop connections");
-							handleServerResponse("ERROR Cannot connect to the server!!");
+							handleServerResponse(OHAPEvent
+									.error("Cannot connect to the server!!"));
 							doShutDown(true);
 						}
 					}
 					break;
 				}
 				case Connected: {
-					if (results.size() == 0)
-						Thread.sleep(100);
-					Log.d(TAG,
-							"Protocol connected, checks task and results queues.");
-					if (taskQueue.peek() == null && !firstTask.isBusy()
-							&& !secondTask.isBusy()) {
-						Log.d(TAG,
-								"No tasks in queues, put empty request in session task queue.");
-						taskQueue.put(new TaskData(null,
-								TaskData.EMPTY_REQUEST_CMD, null));
+					OHAPEvent result = null;
+					long wait = schedulePoll();
+					if (wait > 0) {
+						result = results.poll(wait, TimeUnit.MILLISECONDS);
+					} else {
+						result = results.take();
+					}
+					// On a timeout or TASK_DONE, the next round puts the
+					// poll in the queue if it is due. The finished tasks
+					// matter only when connecting.
+					session.takeTaskDone();
+					if (null != result
+							&& result.getKind() != OHAPEvent.Kind.TASK_DONE) {
+						if (result.getKind() == OHAPEvent.Kind.LOST) {
+							sessionLost(result);
+						} else {
+							handleServerResponse(result);
+						}
 					}
-					Log.d(TAG, "Check how  many items in results queue: "
-							+ results.size());
-					handleServerResponse(results.take());
 					break;
 				}
 				default: {
@@ -284,11 +409,357 @@ public abstract class OHAPBase implements Runnable {
 	}
 
 	/**
-	 * In constructor, the task queue and the results queue are created.
+	 * Puts a long poll, an empty request, in the poll queue if the session
+	 * has none waiting for the server and the poll scheduler says it is due.
+	 * The poll keeps a request open to the server so that the server can send
+	 * us state changes. The commands of the client do not wait for the poll,
+	 * as they are sent by other workers.
+	 * 
+	 * @return The time in milliseconds until the next poll is due, zero if
+	 *         the protocol can wait for the results without a timeout.
+	 * @throws InterruptedException
+	 */
+	private long schedulePoll() throws InterruptedException {
+		OHAPPollScheduler scheduler = session.getPollScheduler();
+		if (scheduler.isPolling()) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		long delay = scheduler.nextPollDelay(now);
+		if (delay > 0) {
+			return delay;
+		}
+		Log.d(TAG, "Put empty request in the poll queue.");
+		scheduler.pollQueued(now);
+		TaskData poll = new TaskData(null, TaskData.EMPTY_REQUEST_CMD, null);
+		poll.setSession(session);
+		pollQueue.put(poll);
+		return 0;
+	}
+
+	/**
+	 * Starts creating the session again after the connection to the server
+	 * was lost. The commands waiting in the task queue and for the reply are
+	 * failed, as they were for the lost session.
+	 * 
+	 * @param event
+	 *            The LOST event, telling which session was lost.
+	 * @throws InterruptedException
+	 */
+	private void sessionLost(OHAPEvent event) throws InterruptedException {
+		if (!event.getPayload().equals(session.getId())) {
+			Log.d(TAG, "An earlier session was lost, ignored");
+			return;
+		}
+		Log.d(TAG, "Session lost, connecting again");
+		taskQueue.clear(session);
+		session.getPollScheduler().pollsDropped(pollQueue.clear(session));
+		session.getPollScheduler().reset();
+		// The server may have been restarted with a different state.
+		cache.clear();
+		session.setId(null);
+		session.failAll("Session lost");
+		errorMessageToClient("Connection to the server lost, connecting again");
+		resuming = true;
+		reconnectAttempt = 0;
+		reconnectDue = 0;
+		state = ProtocolState.Connecting;
+		putTask(new TaskData(null, TaskData.INIT_SESSION_CMD, null));
+	}
+
+	/**
+	 * Sends the LISTEN commands of the client again, and gets all the devices
+	 * so that the client catches up with the changes missed while the session
+	 * was lost.
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void resume() throws InterruptedException {
+		List<String> paths = null;
+		synchronized (subscriptions) {
+			paths = new ArrayList<String>(subscriptions);
+		}
+		Log.d(TAG, "Resuming the session, " + paths.size() + " subscriptions");
+		for (String path : paths) {
+			putTask(new TaskData(null, TaskData.LISTEN_CMD, path));
+		}
+		String uid = TaskData.nextUid();
+		if (null == session.getSingleFlight().joinOrStart("/", uid, null, 0)) {
+			putTask(new TaskData(uid, TaskData.GET_CMD, "/"));
+		}
+	}
+
+	/**
+	 * Remembers the paths the client listens to.
+	 * 
+	 * @param task
+	 *            A command of the client which has been queued.
 	 */
-	protected OHAPBase() {
-		taskQueue = new LinkedBlockingQueue<TaskData>(50);
-		results = new LinkedBlockingQueue<String>(50);
+	private void trackSubscription(TaskData task) {
+		if (null == task.getData()) {
+			return;
+		}
+		if (task.getCommand().equalsIgnoreCase(TaskData.LISTEN_CMD)) {
+			subscriptions.add(task.getData());
+			cache.listening(task.getUid(), task.getData());
+		} else if (task.getCommand().equalsIgnoreCase(TaskData.UNLISTEN_CMD)) {
+			subscriptions.remove(task.getData());
+			cache.unlistened(task.getData());
+		}
+	}
+
+	/**
+	 * Puts a task of this protocol's session into the shared task queue.
+	 * 
+	 * @param task
+	 *            The task.
+	 * @throws InterruptedException
+	 */
+	protected void putTask(TaskData task) throws InterruptedException {
+		task.setSession(session);
+		taskQueue.put(task);
+	}
+
+	/**
+	 * Puts a command of the client into the shared task queue without waiting.
+	 * If the queue is full, the overflow policy of the configuration tells
+	 * what to do.
+	 * 
+	 * @param task
+	 *            The task.
+	 * @return true if the task was queued, false if it was rejected.
+	 * @see OHAPConfiguration#setOverflowPolicy(OHAPConfiguration.OverflowPolicy)
+	 */
+	protected boolean offerTask(TaskData task) {
+		if (null == task.getUid()) {
+			// The replies to GETs and the notifications of LISTENs are
+			// matched to the command by the uid.
+			task.setTaskUid(TaskData.nextUid());
+		}
+		// A SYNC turned into a GET is a refresh, never answered from the
+		// cache.
+		boolean cacheable = isGet(task);
+		prepareTask(task, session);
+		if (isGet(task)) {
+			if (cacheable && serveFromCache(task)) {
+				return true;
+			}
+			if (null != session.getSingleFlight().joinOrStart(task.getData(),
+					task.getUid(), null, task.getDeadline())) {
+				Log.d(TAG, "GET " + task.getData() + " already pending");
+				return true;
+			}
+		}
+		if (!taskQueue.offer(task, factory.getConfiguration()
+				.getOverflowPolicy())) {
+			session.getSingleFlight().failed(task.getUid(),
+					"Too many requests");
+			session.syncEnded(task.getUid());
+			return false;
+		}
+		trackSubscription(task);
+		return true;
+	}
+
+	/**
+	 * Sends a command of the client asynchronously. The command gets an uid
+	 * of its own, and the returned future is completed when the reply with
+	 * the uid arrives. If the command cannot be queued, the future fails
+	 * right away.
+	 * 
+	 * @param command
+	 *            The command.
+	 * @param data
+	 *            The path or the JSON data of the command.
+	 * @return The future of the reply.
+	 */
+	protected OHAPFuture sendTask(String command, String data) {
+		OHAPFuture future = new OHAPFuture(TaskData.nextUid());
+		OHAPSession current = session;
+		if (null == current || !current.hasId()) {
+			future.fail("No session");
+			return future;
+		}
+		TaskData task = new TaskData(future.getUid(), command, data);
+		boolean cacheable = isGet(task);
+		prepareTask(task, current);
+		if (isGet(task)) {
+			current.register(future);
+			if (cacheable && serveFromCache(task)) {
+				return future;
+			}
+			current.unregister(future);
+			if (null != current.getSingleFlight().joinOrStart(task.getData(),
+					future.getUid(), future, task.getDeadline())) {
+				Log.d(TAG, "GET " + task.getData() + " already pending");
+				return future;
+			}
+		}
+		// Registered first, as the reply may arrive before offer returns.
+		current.register(future);
+		if (!taskQueue.offer(task, factory.getConfiguration()
+				.getOverflowPolicy())) {
+			current.fail(future.getUid(), "Too many requests, " + command
+					+ " not sent");
+		} else {
+			trackSubscription(task);
+		}
+		return future;
+	}
+
+	/**
+	 * Readies a command of the client to be queued: sets its session and
+	 * deadline, and invalidates the cached replies a SET makes stale. A SYNC
+	 * is turned into a GET of the whole tree if the server does not
+	 * understand SYNC.
+	 * 
+	 * @param task
+	 *            The command.
+	 * @param current
+	 *            The session of the protocol.
+	 */
+	private void prepareTask(TaskData task, OHAPSession current) {
+		task.setSession(current);
+		setDeadline(task);
+		current.getPollScheduler().activity();
+		if (task.getCommand().equalsIgnoreCase(TaskData.SET_CMD)
+				&& null != task.getData()) {
+			cache.invalidate(OHAPPathBuilder.devicePathOf(task.getData()));
+		} else if (task.getCommand().equalsIgnoreCase(TaskData.SYNC_CMD)) {
+			if (current.isSyncSupported()) {
+				current.syncStarted(task.getUid());
+			} else {
+				task.setCommand(TaskData.GET_CMD);
+				task.setData("/");
+			}
+		}
+	}
+
+	/**
+	 * Gets the whole tree with a GET, when the server replied to a SYNC with
+	 * an ERROR. The GET has the uid of the SYNC, so the future of the SYNC is
+	 * completed with the VALUE.
+	 * 
+	 * @param response
+	 *            The ERROR reply to the SYNC.
+	 */
+	private void syncFailed(OHAPEvent response) {
+		Log.d(TAG, "SYNC failed, getting the whole tree: " + response);
+		session.syncUnsupported();
+		TaskData task = new TaskData(response.getUid(), TaskData.GET_CMD, "/");
+		prepareTask(task, session);
+		String joined = session.getSingleFlight().joinOrStart("/",
+				task.getUid(), null, task.getDeadline());
+		if (null != joined) {
+			// The reply of the pending GET completes the SYNC.
+			session.merged(task.getUid(), joined);
+		} else if (!taskQueue.offer(task, factory.getConfiguration()
+				.getOverflowPolicy())) {
+			session.getSingleFlight().failed(task.getUid(),
+					"Too many requests");
+			session.fail(task.getUid(), "Too many requests, GET not sent");
+			errorMessageToClient("Too many requests, GET not sent");
+		}
+	}
+
+	/**
+	 * Answers a GET from the response cache, if the path is cached. The
+	 * cached VALUE is passed through the results queue like a reply from the
+	 * server.
+	 * 
+	 * @param task
+	 *            The GET.
+	 * @return true if the GET was answered.
+	 */
+	private boolean serveFromCache(TaskData task) {
+		String payload = cache.get(task.getData());
+		if (null == payload
+				|| !results.offer(OHAPEvent.cached(task.getUid(), payload))) {
+			return false;
+		}
+		Log.d(TAG, "GET " + task.getData() + " answered from the cache");
+		return true;
+	}
+
+	/**
+	 * Caches a VALUE reply to a GET, or invalidates the cache if the VALUE is
+	 * a change notification. Called before the pending GET is ended.
+	 * 
+	 * @param response
+	 *            The VALUE.
+	 */
+	private void cacheValue(OHAPEvent response) {
+		if (response.isCached()) {
+			return;
+		}
+		OHAPSingleFlight singleFlight = session.getSingleFlight();
+		String path = singleFlight.pathOf(response.getUid());
+		if (null != path) {
+			cache.put(path, response.getPayload(),
+					singleFlight.startedOf(response.getUid()));
+		} else {
+			cache.changed(response.getUid());
+		}
+	}
+
+	/**
+	 * Checks if the task is a GET, which may join a pending GET instead of
+	 * being sent, see {@link OHAPSingleFlight}.
+	 * 
+	 * @param task
+	 *            The task.
+	 * @return true for a GET.
+	 */
+	private static boolean isGet(TaskData task) {
+		return task.getCommand().equalsIgnoreCase(TaskData.GET_CMD);
+	}
+
+	/**
+	 * Gives a command of the client its deadline, unless it already has one.
+	 * 
+	 * @param task
+	 *            The command.
+	 * @see OHAPConfiguration#setCommandTimeout(long)
+	 */
+	private void setDeadline(TaskData task) {
+		long timeout = factory.getConfiguration().getCommandTimeout();
+		if (timeout > 0 && task.getDeadline() == 0) {
+			task.setDeadline(System.currentTimeMillis() + timeout);
+		}
+	}
+
+	/**
+	 * Gets the number of tasks waiting in the task queue. The queue is shared
+	 * by all the protocols of the factory.
+	 * 
+	 * @return The number of waiting tasks.
+	 */
+	public int getQueueOccupancy() {
+		return taskQueue.size();
+	}
+
+	/**
+	 * Gets the number of tasks the task queue can hold.
+	 * 
+	 * @return The capacity of the queue.
+	 */
+	public int getQueueCapacity() {
+		return taskQueue.getCapacity();
+	}
+
+	/**
+	 * In constructor, the results queue is created. The task queue comes from
+	 * the factory.
+	 * 
+	 * @param factory
+	 *            The factory owning the shared workers, task queue and
+	 *            transport.
+	 */
+	protected OHAPBase(OHAPFactory factory) {
+		this.factory = factory;
+		taskQueue = factory.getTaskQueue();
+		pollQueue = factory.getPollQueue();
+		results = new LinkedBlockingQueue<OHAPEvent>(50);
 	}
 
 	/**
@@ -309,9 +780,25 @@ public abstract class OHAPBase implements Runnable {
 		}
 		Log.d(TAG, "Initiating HCProtocol object...");
 		this.serverAddress = serverAddress;
-		connectionCount = CONNECTION_ATTEMPTS;
+		OHAPConfiguration configuration = factory.getConfiguration();
+		session = new OHAPSession(serverAddress, results,
+				new OHAPPollScheduler(configuration.getPollMinInterval(),
+						configuration.getPollMaxInterval()));
+		if (observer instanceof OHAPStreamListener) {
+			session.setStreamListener((OHAPStreamListener) observer);
+		}
+		cache = new OHAPResponseCache(configuration.getCacheMaxEntries(),
+				configuration.getCacheMaxChars(),
+				configuration.getCacheMaxAge());
+		subscriptions.clear();
+		reconnectAttempt = 0;
+		reconnectDue = 0;
+		resuming = false;
 		Log.d(TAG, "...initialized HCProtocol, now starting protocol thread...");
-		state = ProtocolState.Initialized;
+		synchronized (stateLock) {
+			state = ProtocolState.Initialized;
+			stateLock.notifyAll();
+		}
 		if (myThread == null) {
 			myThread = new Thread(this, "HCProtocolThread");
 			running = true;
@@ -340,26 +827,26 @@ public abstract class OHAPBase implements Runnable {
 	 * <ul>
 	 * <li>Clears the task queue</li>
 	 * <li>Clears the results queue</li>
-	 * <li>Stops the firstTask thread</li>
-	 * <li>Stops the secondTask thread</li>
 	 * <li>Interrupts and stops the protocol thread</li>
 	 * <li>Sets the protocol state to Uninitialized</li>
 	 * </ul>
+	 * The worker threads and the connections are left waiting for the tasks of
+	 * the next session. Call {@link #releaseWorkers()} to close them.
 	 */
 	protected void doStop() {
 		Log.d(TAG, "Stopping protocol...");
-		taskQueue.clear();
-		results.clear();
-		OHAPTaskBase.sessionStr = null;
-		OHAPTaskBase.urlCounter = 0;
-		if (firstTask != null) {
-			firstTask.stop();
-			firstTask = null;
-		}
-		if (secondTask != null) {
-			secondTask.stop();
-			secondTask = null;
+		if (null != session) {
+			taskQueue.clear(session);
+			session.getPollScheduler().pollsDropped(pollQueue.clear(session));
+			session.getPollScheduler().reset();
+			session.setId(null);
+			session.failAll("Session ended");
 		}
+		factory.stopped(this);
+		cache.clear();
+		subscriptions.clear();
+		resuming = false;
+		results.clear();
 		running = false;
 		if (null != myThread) {
 			myThread.interrupt();
@@ -374,16 +861,25 @@ public abstract class OHAPBase implements Runnable {
 		Log.d(TAG, "...Protocol stopped");
 	}
 
+	/**
+	 * Stops the worker threads of the protocol and closes the connections to
+	 * the server. As the workers are shared, this stops them for all the
+	 * protocols of the factory. Call this when the protocols are not going to
+	 * be used anymore. If a session is started after this, new worker threads
+	 * and connections are created.
+	 */
+	public void releaseWorkers() {
+		factory.shutdown();
+	}
+
 	/**
 	 * Use this method to check if the session has been initialized or not.
 	 * 
 	 * @return boolean True, if session exists.
 	 */
 	public boolean hasSession() {
-		if (null != firstTask) {
-			return firstTask.hasSession();
-		}
-		return false;
+		OHAPSession current = session;
+		return null != current && current.hasId();
 	}
 
 	/**
@@ -402,53 +898,77 @@ public abstract class OHAPBase implements Runnable {
 	 * Handles the response from the server.
 	 * <p>
 	 * Basically, notifies the observer of what happened, using the
-	 * {@link OHAPListener} interface methods. Only specially handled message is
-	 * the DELETE_CMD message, which indicates that the server has been sent the
-	 * end session message ("DELETE"). In this case, the protocol is stopped, by
+	 * {@link OHAPListener} interface methods. A reply to an asynchronous
+	 * command also completes its {@link OHAPFuture}. Only specially handled message is
+	 * the CLOSED event, which indicates that the server has been sent the end
+	 * session message ("DELETE"). In this case, the protocol is stopped, by
 	 * calling {@link doStop()}
 	 * 
 	 * @param response
-	 *            String
+	 *            The result, classified by the task.
 	 */
-	private void handleServerResponse(String response) {
-		if (response.equalsIgnoreCase(OK)) {
+	private void handleServerResponse(OHAPEvent response) {
+		if (null != session) {
+			if (response.getKind() == OHAPEvent.Kind.ERROR
+					&& session.syncEnded(response.getUid())) {
+				syncFailed(response);
+				return;
+			} else if (response.getKind() == OHAPEvent.Kind.DELTA) {
+				session.syncEnded(response.getUid());
+				if (response.getChanges().length() > 0) {
+					// The changes are not tied to the paths of the cache.
+					cache.clear();
+				}
+			} else if (response.getKind() == OHAPEvent.Kind.VALUE) {
+				cacheValue(response);
+			}
+			session.complete(response);
+		}
+		switch (response.getKind()) {
+		case OK:
 			Log.d(TAG, "OK from server!");
 			if (null != observer) {
 				// OK, the request was successful, so what to do with it?
 				// Put OK into the client to read? Or just let it be?
 				observer.okFromServerArrived();
 			}
-		} else if (response.equalsIgnoreCase(TaskData.CLOSE_SESSION_CMD)) {
+			break;
+		case CLOSED:
 			doStop();
 			if (null != observer) {
 				observer.sessionEnded();
 			}
-		} else {
-			int startsFrom = response.indexOf(VALUE, 0);
-			if (startsFrom >= 0) {
-				String responseStr = response.substring(startsFrom
-						+ VALUE.length());
-				Log.d(TAG, "VALUE arrived from server: " + responseStr);
-				if (null != observer) {
-					observer.contentFromServerArrived(responseStr);
-				}
-				return;
+			break;
+		case VALUE:
+			Log.d(TAG, "VALUE arrived from server: " + response);
+			if (null != observer && !response.isStreamed()) {
+				observer.contentFromServerArrived(response.getPayload());
 			}
-			startsFrom = response.indexOf(ERROR, 0);
-			if (startsFrom >= 0) {
-				String responseStr = response.substring(startsFrom
-						+ ERROR.length());
-				Log.d(TAG, "ERROR arrived.");
-				errorMessageToClient(responseStr);
-				return;
+			break;
+		case DELTA:
+			Log.d(TAG, "DELTA arrived from server: " + response);
+			if (null != observer) {
+				// The streamed changes were already given to the observer.
+				observer.deltaFromServerArrived(response.getVersion(),
+						response.isStreamed() ? "" : response.getChanges());
 			}
-			startsFrom = response.indexOf(SESSION, 0);
-			if (startsFrom >= 0) {
-				Log.d(TAG, "Session initialized ");
+			break;
+		case ERROR:
+			Log.d(TAG, "ERROR arrived.");
+			errorMessageToClient(response.getPayload());
+			break;
+		case SESSION:
+			Log.d(TAG, "Session initialized ");
+			if (resuming) {
+				// The client still thinks it has the session.
+				resuming = false;
+			} else if (null != observer) {
 				observer.sessionInitiatedSuccessfully();
-				return;
 			}
+			break;
+		default:
 			Log.d(TAG, "Unknown message from server: " + response);
+			break;
 		}
 	}
 
@@ -0,0 +1,532 @@
+package fi.oulu.tol.group19project.ohap;
+
+/**
+ * Holds the tunable parameters of the OHAP protocol implementation.
+ * <p>
+ *
+ * Create a configuration object, change the values you want to differ from
+ * the defaults and give it to the protocol with
+ * {@link OHAPBase#setConfiguration(OHAPConfiguration)} before starting the
+ * session. The values are read when the protocol is initialized, so changing
+ * them while a session is running has effect only when the next session is
+ * started.
+ *
+ * @see OHAPBase
+ */
+public class OHAPConfiguration {
+
+	/**
+	 * What {@link OHAPTaskQueue#offer(TaskData, OverflowPolicy)} does when
+	 * the task queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** The new task is rejected. */
+		REJECT,
+		/**
+		 * The oldest command of the same session and priority is dropped to
+		 * make room for the new task. If there is none, the task is rejected.
+		 */
+		DROP_OLDEST,
+		/**
+		 * If the same command with the same data is already waiting, the new
+		 * task is merged with it. Otherwise the task is rejected.
+		 */
+		COALESCE
+	};
+
+	/** Default number of worker tasks handling the task queue. */
+	public static final int DEFAULT_WORKER_COUNT = 2;
+
+	/** Default max number of commands sent in one request. */
+	public static final int DEFAULT_BATCH_SIZE = 16;
+
+	/** Default time in milliseconds a worker waits for more commands. */
+	public static final long DEFAULT_BATCH_LINGER = 0;
+
+	/** Default max number of pooled connections to the server. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+	/** Default time in milliseconds an unused connection is kept open. */
+	public static final long DEFAULT_CONNECTION_IDLE_TIMEOUT = 30000;
+
+	/** Default time in milliseconds a command of the client may take. */
+	public static final long DEFAULT_COMMAND_TIMEOUT = 30000;
+
+	/** Default time in milliseconds opening a connection may take. */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+
+	/** By default, compressed responses are asked for. */
+	public static final boolean DEFAULT_ACCEPT_COMPRESSED = true;
+
+	/** Default min length in bytes of a compressed request body. */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	/** Default policy when the task queue is full. */
+	public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.COALESCE;
+
+	/** Default policy of connecting again, never gives up. */
+	public static final OHAPReconnectPolicy DEFAULT_RECONNECT_POLICY = new OHAPReconnectPolicy();
+
+	/** Default max number of replies in the response cache. */
+	public static final int DEFAULT_CACHE_MAX_ENTRIES = 32;
+
+	/** Default max number of characters in the response cache. */
+	public static final int DEFAULT_CACHE_MAX_CHARS = 512 * 1024;
+
+	/** Default time in milliseconds a cached reply may be used. */
+	public static final long DEFAULT_CACHE_MAX_AGE = 30000;
+
+	/** Default number of workers sending the long polls. */
+	public static final int DEFAULT_POLL_WORKER_COUNT = 1;
+
+	/** Default min time in milliseconds between two long polls. */
+	public static final long DEFAULT_POLL_MIN_INTERVAL = 100;
+
+	/** Default max time in milliseconds an idle session waits to poll. */
+	public static final long DEFAULT_POLL_MAX_INTERVAL = 5000;
+
+	/**
+	 * How many {@link OHAPTaskBase} workers take commands from the task queue
+	 * and execute them concurrently. The long polls are sent by poll workers
+	 * of their own, so these are all free for the commands.
+	 */
+	private int workerCount = DEFAULT_WORKER_COUNT;
+
+	/**
+	 * Min number of workers sending the long polls of the sessions. With the
+	 * blocking {@link OHAPHttpTransport} each session waiting for changes
+	 * holds one poll worker, so the factory adds poll workers to have one per
+	 * started session. With the {@link OHAPNioTransport} one is enough.
+	 */
+	private int pollWorkerCount = DEFAULT_POLL_WORKER_COUNT;
+
+	/**
+	 * Min time in milliseconds between the starts of two long polls of a
+	 * session, see {@link OHAPPollScheduler}.
+	 */
+	private long pollMinInterval = DEFAULT_POLL_MIN_INTERVAL;
+
+	/**
+	 * Max time in milliseconds an idle session waits between two long polls,
+	 * if the server does not hold the polls open.
+	 */
+	private long pollMaxInterval = DEFAULT_POLL_MAX_INTERVAL;
+
+	/**
+	 * How many GET, SET, LISTEN and UNLISTEN commands a worker may send to the
+	 * server in one HTTP POST. One means no batching.
+	 */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * How long in milliseconds a worker having a command to send waits for
+	 * more commands to fill the batch. With zero, the batch consists of the
+	 * commands already waiting in the task queue.
+	 */
+	private long batchLinger = DEFAULT_BATCH_LINGER;
+
+	/**
+	 * Max number of keep-alive connections the workers share, see
+	 * {@link OHAPTransport}.
+	 */
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+	/**
+	 * How long in milliseconds an unused pooled connection is kept open before
+	 * it is closed.
+	 */
+	private long connectionIdleTimeout = DEFAULT_CONNECTION_IDLE_TIMEOUT;
+
+	/**
+	 * How long in milliseconds a GET, SET, LISTEN or UNLISTEN command of the
+	 * client may wait in the task queue and for the server to start to reply.
+	 * A command still in the queue after this is dropped, and a request the
+	 * server has not started to reply to in time is aborted. Reading the
+	 * reply is not limited. With zero, the commands have no deadline.
+	 */
+	private long commandTimeout = DEFAULT_COMMAND_TIMEOUT;
+
+	/**
+	 * How long in milliseconds opening a connection to the server may take.
+	 * With zero, waits forever.
+	 */
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/** Are the responses asked to be compressed with gzip or deflate. */
+	private boolean acceptCompressed = DEFAULT_ACCEPT_COMPRESSED;
+
+	/**
+	 * Min length in bytes of a request body sent compressed. Negative never
+	 * compresses the requests.
+	 */
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+	/**
+	 * How long the protocol waits before connecting again, and when it gives
+	 * up, if the session cannot be created or is lost.
+	 */
+	private OHAPReconnectPolicy reconnectPolicy = DEFAULT_RECONNECT_POLICY;
+
+	/**
+	 * Max number of GET replies kept in the response cache of a session, see
+	 * {@link OHAPResponseCache}. Only the paths listened to are cached. Zero
+	 * disables the cache.
+	 */
+	private int cacheMaxEntries = DEFAULT_CACHE_MAX_ENTRIES;
+
+	/** Max number of characters of the replies in the response cache. */
+	private int cacheMaxChars = DEFAULT_CACHE_MAX_CHARS;
+
+	/** How long in milliseconds a cached GET reply may be used. */
+	private long cacheMaxAge = DEFAULT_CACHE_MAX_AGE;
+
+	/**
+	 * What happens to the commands of the client when the task queue is full.
+	 * The commands are never waited for, so the client thread does not block.
+	 */
+	private OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+
+	/**
+	 * Gets the number of workers the protocol uses.
+	 *
+	 * @return The worker count.
+	 */
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	/**
+	 * Sets the number of workers the protocol uses. Values less than one are
+	 * ignored.
+	 *
+	 * @param workerCount
+	 *            The new worker count.
+	 */
+	public void setWorkerCount(int workerCount) {
+		if (workerCount > 0) {
+			this.workerCount = workerCount;
+		}
+	}
+
+	/**
+	 * Gets the number of workers sending the long polls.
+	 *
+	 * @return The poll worker count.
+	 */
+	public int getPollWorkerCount() {
+		return pollWorkerCount;
+	}
+
+	/**
+	 * Sets the number of workers sending the long polls. Values less than one
+	 * are ignored.
+	 *
+	 * @param pollWorkerCount
+	 *            The new poll worker count.
+	 */
+	public void setPollWorkerCount(int pollWorkerCount) {
+		if (pollWorkerCount > 0) {
+			this.pollWorkerCount = pollWorkerCount;
+		}
+	}
+
+	/**
+	 * Gets the min time between two long polls.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getPollMinInterval() {
+		return pollMinInterval;
+	}
+
+	/**
+	 * Gets the max time an idle session waits between two long polls.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getPollMaxInterval() {
+		return pollMaxInterval;
+	}
+
+	/**
+	 * Sets the limits of the time between two long polls. A min less than one
+	 * and a negative max are ignored, and the max is at least the min. A zero
+	 * min would let a server answering the polls at once be polled in a
+	 * tight loop.
+	 *
+	 * @param minInterval
+	 *            Min time in milliseconds between the starts of two polls.
+	 * @param maxInterval
+	 *            Max time in milliseconds an idle session waits between
+	 *            polls.
+	 */
+	public void setPollInterval(long minInterval, long maxInterval) {
+		if (minInterval > 0) {
+			pollMinInterval = minInterval;
+		}
+		if (maxInterval >= 0) {
+			pollMaxInterval = maxInterval;
+		}
+		pollMaxInterval = Math.max(pollMaxInterval, pollMinInterval);
+	}
+
+	/**
+	 * Gets the max number of commands sent in one request.
+	 *
+	 * @return The batch size.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the max number of commands sent in one request. Values less than
+	 * one are ignored.
+	 *
+	 * @param batchSize
+	 *            The new batch size.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize > 0) {
+			this.batchSize = batchSize;
+		}
+	}
+
+	/**
+	 * Gets the time a worker waits for more commands to the batch.
+	 *
+	 * @return The linger time in milliseconds.
+	 */
+	public long getBatchLinger() {
+		return batchLinger;
+	}
+
+	/**
+	 * Sets the time a worker waits for more commands to the batch. Negative
+	 * values are ignored.
+	 *
+	 * @param batchLinger
+	 *            The linger time in milliseconds.
+	 */
+	public void setBatchLinger(long batchLinger) {
+		if (batchLinger >= 0) {
+			this.batchLinger = batchLinger;
+		}
+	}
+
+	/**
+	 * Gets the max number of pooled connections.
+	 *
+	 * @return The max number of connections.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Sets the max number of pooled connections. Values less than one are
+	 * ignored.
+	 *
+	 * @param maxConnections
+	 *            The max number of connections.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if (maxConnections > 0) {
+			this.maxConnections = maxConnections;
+		}
+	}
+
+	/**
+	 * Gets the time an unused connection is kept open.
+	 *
+	 * @return The idle timeout in milliseconds.
+	 */
+	public long getConnectionIdleTimeout() {
+		return connectionIdleTimeout;
+	}
+
+	/**
+	 * Sets the time an unused connection is kept open. Values less than one
+	 * are ignored.
+	 *
+	 * @param connectionIdleTimeout
+	 *            The idle timeout in milliseconds.
+	 */
+	public void setConnectionIdleTimeout(long connectionIdleTimeout) {
+		if (connectionIdleTimeout > 0) {
+			this.connectionIdleTimeout = connectionIdleTimeout;
+		}
+	}
+
+	/**
+	 * Gets the time a command of the client may take.
+	 *
+	 * @return The timeout in milliseconds, zero if none.
+	 */
+	public long getCommandTimeout() {
+		return commandTimeout;
+	}
+
+	/**
+	 * Sets the time a command of the client may take. Negative values are
+	 * ignored.
+	 *
+	 * @param commandTimeout
+	 *            The timeout in milliseconds, zero for none.
+	 */
+	public void setCommandTimeout(long commandTimeout) {
+		if (commandTimeout >= 0) {
+			this.commandTimeout = commandTimeout;
+		}
+	}
+
+	/**
+	 * Gets the time opening a connection may take.
+	 *
+	 * @return The timeout in milliseconds, zero if none.
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the time opening a connection may take. Negative values are
+	 * ignored.
+	 *
+	 * @param connectTimeout
+	 *            The timeout in milliseconds, zero for none.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		if (connectTimeout >= 0) {
+			this.connectTimeout = connectTimeout;
+		}
+	}
+
+	/**
+	 * Checks if the server is asked for compressed responses.
+	 *
+	 * @return true if gzip and deflate responses are accepted.
+	 */
+	public boolean isAcceptCompressed() {
+		return acceptCompressed;
+	}
+
+	/**
+	 * Gets the min length of a request body to compress.
+	 *
+	 * @return The threshold in bytes, negative if the requests are never
+	 *         compressed.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Sets the content coding of the requests and responses, see
+	 * {@link OHAPContentCoding}.
+	 *
+	 * @param acceptCompressed
+	 *            Ask the server for gzip or deflate responses.
+	 * @param compressionThreshold
+	 *            Min length in bytes of a request body to send compressed,
+	 *            once the server has shown it understands gzip. Negative
+	 *            never compresses the requests.
+	 */
+	public void setCompression(boolean acceptCompressed,
+			int compressionThreshold) {
+		this.acceptCompressed = acceptCompressed;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Gets the policy of connecting again.
+	 *
+	 * @return The reconnect policy.
+	 */
+	public OHAPReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * Sets the policy of connecting again. Null is ignored.
+	 *
+	 * @param reconnectPolicy
+	 *            The reconnect policy.
+	 */
+	public void setReconnectPolicy(OHAPReconnectPolicy reconnectPolicy) {
+		if (null != reconnectPolicy) {
+			this.reconnectPolicy = reconnectPolicy;
+		}
+	}
+
+	/**
+	 * Gets the max number of replies in the response cache.
+	 *
+	 * @return The max entries, zero if the cache is disabled.
+	 */
+	public int getCacheMaxEntries() {
+		return cacheMaxEntries;
+	}
+
+	/**
+	 * Gets the max number of characters in the response cache.
+	 *
+	 * @return The max characters.
+	 */
+	public int getCacheMaxChars() {
+		return cacheMaxChars;
+	}
+
+	/**
+	 * Gets the time a cached reply may be used.
+	 *
+	 * @return The max age in milliseconds.
+	 */
+	public long getCacheMaxAge() {
+		return cacheMaxAge;
+	}
+
+	/**
+	 * Sets the limits of the response cache. Negative values are ignored.
+	 *
+	 * @param maxEntries
+	 *            Max number of replies, zero disables the cache.
+	 * @param maxChars
+	 *            Max number of characters in the replies.
+	 * @param maxAge
+	 *            Time in milliseconds a cached reply may be used.
+	 */
+	public void setCache(int maxEntries, int maxChars, long maxAge) {
+		if (maxEntries >= 0) {
+			cacheMaxEntries = maxEntries;
+		}
+		if (maxChars >= 0) {
+			cacheMaxChars = maxChars;
+		}
+		if (maxAge >= 0) {
+			cacheMaxAge = maxAge;
+		}
+	}
+
+	/**
+	 * Gets the policy used when the task queue is full.
+	 *
+	 * @return The overflow policy.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Sets the policy used when the task queue is full. Null is ignored.
+	 *
+	 * @param overflowPolicy
+	 *            The overflow policy.
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if (null != overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.util.Log;
+
+/**
+ * The HTTP client shared by all the {@link OHAPTaskBase} workers of a
+ * protocol.
+ * <p>
+ *
+ * The client keeps a pool of keep-alive connections to the server. A worker
+ * sending a request takes a free connection from the pool and gives it back
+ * when the response has been read, so the workers do not need to open a new
+ * TCP connection for each request, nor when a new session is started. Max
+ * number of connections and the time an unused connection is kept open are
+ * set with {@link OHAPConfiguration}. A timer closes the connections that have
+ * been idle longer than that.
+ * <p>
+ *
+ * The client is created when first needed and closed by {@link #shutdown()}.
+ *
+ * @see OHAPBase
+ */
+public class OHAPConnectionPool {
+
+	private static final String TAG = "HCApp-OHAPConnectionPool";
+
+	/** User agent string sent to the server. */
+	private static final String USER_AGENT = "JannasHttpClient";
+
+	/** The shared client, null if not yet created. */
+	private HttpClient client = null;
+
+	/** The timer closing idle connections. */
+	private Timer evictionTimer = null;
+
+	/** Max number of connections in the pool. */
+	private int maxConnections = OHAPConfiguration.DEFAULT_MAX_CONNECTIONS;
+
+	/** How long an unused connection is kept open, in milliseconds. */
+	private long idleTimeout = OHAPConfiguration.DEFAULT_CONNECTION_IDLE_TIMEOUT;
+
+	/** How long opening a connection may take, in milliseconds. */
+	private int connectTimeout = OHAPConfiguration.DEFAULT_CONNECT_TIMEOUT;
+
+	/**
+	 * Takes the pool size and the timeouts from the configuration. If the
+	 * values have changed, the previous client and its connections are closed
+	 * and a new client is created when next needed.
+	 *
+	 * @param configuration
+	 *            The protocol configuration.
+	 */
+	public synchronized void configure(OHAPConfiguration configuration) {
+		if (maxConnections != configuration.getMaxConnections()
+				|| idleTimeout != configuration.getConnectionIdleTimeout()
+				|| connectTimeout != configuration.getConnectTimeout()) {
+			maxConnections = configuration.getMaxConnections();
+			idleTimeout = configuration.getConnectionIdleTimeout();
+			connectTimeout = configuration.getConnectTimeout();
+			shutdown();
+		}
+	}
+
+	/**
+	 * Gets the shared client, creating it if needed.
+	 *
+	 * @return The client.
+	 */
+	public synchronized HttpClient getClient() {
+		if (null == client) {
+			Log.d(TAG, "Creating client with " + maxConnections
+					+ " connections");
+			HttpParams parameters = new BasicHttpParams();
+			HttpProtocolParams.setVersion(parameters, HttpVersion.HTTP_1_1);
+			HttpProtocolParams.setUserAgent(parameters, USER_AGENT);
+			// Socket timeout zero means we wait forever, as an empty request
+			// may wait for changes for long. Requests with commands have a
+			// deadline, see OHAPHttpTransport.
+			HttpConnectionParams.setSoTimeout(parameters, 0);
+			HttpConnectionParams.setConnectionTimeout(parameters,
+					connectTimeout);
+			HttpConnectionParams.setStaleCheckingEnabled(parameters, true);
+			ConnManagerParams.setMaxTotalConnections(parameters, maxConnections);
+			ConnManagerParams.setMaxConnectionsPerRoute(parameters,
+					new ConnPerRouteBean(maxConnections));
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory
+					.getSocketFactory(), 80));
+			registry.register(new Scheme("https", SSLSocketFactory
+					.getSocketFactory(), 443));
+			final ClientConnectionManager manager = new ThreadSafeClientConnManager(
+					parameters, registry);
+			client = new DefaultHttpClient(manager, parameters);
+			evictionTimer = new Timer("HCApp-OHAPConnectionEviction", true);
+			final long idle = idleTimeout;
+			long period = Math.max(idle / 2, 1000);
+			evictionTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					manager.closeExpiredConnections();
+					manager.closeIdleConnections(idle, TimeUnit.MILLISECONDS);
+				}
+			}, period, period);
+		}
+		return client;
+	}
+
+	/**
+	 * Closes all the connections and the client.
+	 */
+	public synchronized void shutdown() {
+		if (null != evictionTimer) {
+			evictionTimer.cancel();
+			evictionTimer = null;
+		}
+		if (null != client) {
+			Log.d(TAG, "Closing the client");
+			client.getConnectionManager().shutdown();
+			client = null;
+		}
+	}
+
+}
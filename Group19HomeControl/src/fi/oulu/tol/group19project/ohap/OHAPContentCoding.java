@@ -0,0 +1,195 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import android.util.Log;
+
+/**
+ * Negotiates the gzip and deflate content codings with the servers for a
+ * transport, and compresses and decompresses the bodies.
+ * <p>
+ *
+ * The requests tell the server that compressed responses are accepted, and a
+ * compressed response is decompressed while it is read, so the whole JSON
+ * tree is never held uncompressed in memory before parsing. The device trees
+ * repeat the same keys for each device and compress well.
+ * <p>
+ *
+ * Plain OHAP servers do not necessarily understand compressed requests, so a
+ * request body is compressed only after the server has sent a compressed
+ * response, and only if the body is at least as long as the threshold; short
+ * commands do not get any shorter. If the server then responds to a
+ * compressed request with 415 Unsupported Media Type, the requests to it are
+ * not compressed anymore.
+ *
+ * @see OHAPConfiguration#setCompression(boolean, int)
+ */
+public class OHAPContentCoding {
+
+	private static final String TAG = "HCApp-OHAPContentCoding";
+
+	/** The gzip content coding. */
+	public static final String GZIP = "gzip";
+
+	/** The deflate (zlib) content coding. */
+	public static final String DEFLATE = "deflate";
+
+	/** The value of the Accept-Encoding header of the requests. */
+	public static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+
+	/** The status code of a server not accepting the content coding. */
+	public static final int UNSUPPORTED_MEDIA_TYPE = 415;
+
+	/** Are compressed responses asked for. */
+	private volatile boolean accept = OHAPConfiguration.DEFAULT_ACCEPT_COMPRESSED;
+
+	/** Min length of a compressed request body, negative for never. */
+	private volatile int threshold = OHAPConfiguration.DEFAULT_COMPRESSION_THRESHOLD;
+
+	/**
+	 * The servers, by host:port, known to understand gzip. False if the
+	 * server has rejected a compressed request.
+	 */
+	private final ConcurrentHashMap<String, Boolean> servers = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Takes the compression settings of the configuration into use.
+	 *
+	 * @param configuration
+	 *            The protocol configuration.
+	 */
+	public void configure(OHAPConfiguration configuration) {
+		accept = configuration.isAcceptCompressed();
+		threshold = configuration.getCompressionThreshold();
+	}
+
+	/**
+	 * Checks if the requests ask for compressed responses.
+	 *
+	 * @return true if the Accept-Encoding header is to be sent.
+	 */
+	public boolean isAccepting() {
+		return accept;
+	}
+
+	/**
+	 * Checks if a request body should be sent compressed.
+	 *
+	 * @param route
+	 *            The host:port of the server.
+	 * @param length
+	 *            The length of the body.
+	 * @return true if the body is to be compressed with gzip.
+	 */
+	public boolean shouldCompress(String route, int length) {
+		return threshold >= 0 && length >= threshold
+				&& Boolean.TRUE.equals(servers.get(route));
+	}
+
+	/**
+	 * Called by the transport when a response has arrived, to learn if the
+	 * server understands compression.
+	 *
+	 * @param route
+	 *            The host:port of the server.
+	 * @param encoding
+	 *            The Content-Encoding of the response, may be null.
+	 * @param statusCode
+	 *            The status code of the response.
+	 * @param compressed
+	 *            Was the request body compressed.
+	 */
+	public void responseArrived(String route, String encoding,
+			int statusCode, boolean compressed) {
+		if (compressed && statusCode == UNSUPPORTED_MEDIA_TYPE) {
+			Log.d(TAG, route + " does not accept compressed requests");
+			servers.put(route, Boolean.FALSE);
+		} else if (null != encoding && isSupported(encoding)) {
+			servers.putIfAbsent(route, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Compresses a request body with gzip.
+	 *
+	 * @param body
+	 *            The body.
+	 * @return The compressed body.
+	 * @throws IOException
+	 */
+	public static byte[] compress(byte[] body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				body.length / 4 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		gzip.write(body);
+		gzip.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Wraps the response body to decompress it while it is read.
+	 *
+	 * @param encoding
+	 *            The Content-Encoding of the response, may be null.
+	 * @param content
+	 *            The body as sent by the server.
+	 * @return The stream of the decompressed body, the content itself if it
+	 *         is not compressed.
+	 * @throws IOException
+	 *             If the coding is not supported or the body is not valid.
+	 */
+	public static InputStream decode(String encoding, InputStream content)
+			throws IOException {
+		if (null == encoding || encoding.trim().length() == 0
+				|| encoding.trim().equalsIgnoreCase("identity")) {
+			return content;
+		}
+		String coding = encoding.trim();
+		if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+			return new GZIPInputStream(content);
+		} else if (coding.equalsIgnoreCase(DEFLATE)) {
+			return inflate(content);
+		}
+		throw new IOException("Unsupported content encoding: " + encoding);
+	}
+
+	/**
+	 * Checks if the content coding can be decoded.
+	 */
+	private static boolean isSupported(String encoding) {
+		String coding = encoding.trim();
+		return coding.equalsIgnoreCase(GZIP)
+				|| coding.equalsIgnoreCase("x-gzip")
+				|| coding.equalsIgnoreCase(DEFLATE);
+	}
+
+	/**
+	 * Decodes a deflate body. The deflate coding should have the zlib header,
+	 * but some servers send raw deflate, so the header is checked first.
+	 */
+	private static InputStream inflate(InputStream content) throws IOException {
+		PushbackInputStream stream = new PushbackInputStream(content, 2);
+		byte[] header = new byte[2];
+		int count = 0;
+		while (count < 2) {
+			int read = stream.read(header, count, 2 - count);
+			if (read < 0) {
+				break;
+			}
+			count += read;
+		}
+		stream.unread(header, 0, count);
+		boolean zlib = count == 2 && (header[0] & 0x0f) == 8
+				&& (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+		return new InflaterInputStream(stream, new Inflater(!zlib));
+	}
+
+}
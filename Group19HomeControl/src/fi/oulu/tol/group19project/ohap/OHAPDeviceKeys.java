@@ -0,0 +1,106 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import fi.oulu.tol.group19project.model.AbstractDevice;
+
+/**
+ * Classifies the device keys of the OHAP JSON, <code>type:id</code>, into
+ * the type and the id of the device, for the {@link OHAPParser}.
+ * <p>
+ *
+ * The type prefixes are in a table indexed by the first character of the
+ * key, so a key is compared with at most one prefix, in place, without
+ * splitting the key. Most of the keys in the JSON are the properties of the
+ * devices, and they are rejected by the first character or two.
+ * <p>
+ *
+ * A classified device key is kept, so the same key is not classified again
+ * and its id is not copied out of the key again. The devices parsed from the
+ * same home share the id strings. At most {@link #MAX_KEYS} keys are kept;
+ * when there are more, the table is emptied and filled again.
+ */
+final class OHAPDeviceKeys {
+
+	/**
+	 * A classified device key.
+	 */
+	static final class Key {
+		/** The type of the device. */
+		final AbstractDevice.Type type;
+
+		/** The id of the device. */
+		final String id;
+
+		Key(AbstractDevice.Type type, String id) {
+			this.type = type;
+			this.id = id;
+		}
+	}
+
+	/** Max number of keys kept. */
+	static final int MAX_KEYS = 65536;
+
+	/** The type prefixes, by the first character in lower and upper case. */
+	private static final String[] PREFIXES = new String[128];
+
+	/** The types of the prefixes, by the first character. */
+	private static final AbstractDevice.Type[] TYPES = new AbstractDevice.Type[128];
+
+	static {
+		prefix("container:", AbstractDevice.Type.CONTAINER);
+		prefix("sensor:", AbstractDevice.Type.SENSOR);
+		prefix("actuator:", AbstractDevice.Type.ACTUATOR);
+	}
+
+	/** The classified keys. */
+	private final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<String, Key>();
+
+	/**
+	 * Classifies a key.
+	 *
+	 * @param key
+	 *            The key in the JSON.
+	 * @return The type and the id of the device, null if the key is not a
+	 *         device of a known type.
+	 */
+	Key get(String key) {
+		if (key.length() == 0) {
+			return null;
+		}
+		char first = key.charAt(0);
+		if (first >= PREFIXES.length) {
+			return null;
+		}
+		String prefix = PREFIXES[first];
+		if (null == prefix
+				|| !key.regionMatches(true, 0, prefix, 0, prefix.length())) {
+			return null;
+		}
+		Key found = keys.get(key);
+		if (null == found) {
+			if (keys.size() >= MAX_KEYS) {
+				keys.clear();
+			}
+			found = new Key(TYPES[first], key.substring(prefix.length()));
+			Key earlier = keys.putIfAbsent(key, found);
+			if (null != earlier) {
+				found = earlier;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Puts the prefix of the type to the tables.
+	 */
+	private static void prefix(String prefix, AbstractDevice.Type type) {
+		char lower = Character.toLowerCase(prefix.charAt(0));
+		char upper = Character.toUpperCase(prefix.charAt(0));
+		PREFIXES[lower] = prefix;
+		PREFIXES[upper] = prefix;
+		TYPES[lower] = type;
+		TYPES[upper] = type;
+	}
+
+}
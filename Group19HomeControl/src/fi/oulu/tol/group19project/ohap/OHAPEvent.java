@@ -0,0 +1,302 @@
+package fi.oulu.tol.group19project.ohap;
+
+/**
+ * A result of a request, passed from the workers to the protocol through the
+ * results queue.
+ * <p>
+ *
+ * The worker classifies each response line from the server once, with
+ * {@link #parse(String)}, into the kind of the result, the uid of the command
+ * the result is for, and the payload: the JSON of a VALUE, the text of an
+ * ERROR. The payload is not copied out of the line until it is asked for, so
+ * big VALUE payloads are not scanned again when the protocol passes them to
+ * the {@link OHAPListener}.
+ * <p>
+ *
+ * The workers also use events to tell the protocol that the session has been
+ * created or closed, and that a task has been done.
+ *
+ * @see OHAPBase
+ */
+public class OHAPEvent {
+
+	/**
+	 * The kinds of the results.
+	 */
+	public enum Kind {
+		/** The server replied OK. */
+		OK,
+		/** The server sent a value; the payload is JSON. */
+		VALUE,
+		/**
+		 * The server sent the changes since a model version; the payload is
+		 * the new version and the JSON of the changes.
+		 */
+		DELTA,
+		/** The server or the worker reported an error; the payload tells it. */
+		ERROR,
+		/** The session has been created with the server. */
+		SESSION,
+		/** The session has been closed. */
+		CLOSED,
+		/** A worker has finished a task. */
+		TASK_DONE,
+		/**
+		 * The connection to the server has been lost; the payload is the id
+		 * of the lost session.
+		 */
+		LOST,
+		/** The server sent something we do not understand. */
+		UNKNOWN
+	};
+
+	/** The event telling a worker has finished a task. */
+	static final OHAPEvent TASK_DONE = new OHAPEvent(Kind.TASK_DONE, null, "",
+			0);
+
+	/** The kind of the result. */
+	private final Kind kind;
+
+	/** The uid of the command the result is for, may be null. */
+	private final String uid;
+
+	/** The line the event was parsed from. */
+	private final String line;
+
+	/** Where the payload starts in the line. */
+	private final int payloadStart;
+
+	/** The payload, taken from the line when first asked for. */
+	private String payload = null;
+
+	/** Was the event answered from the response cache. */
+	private boolean cached = false;
+
+	/** Was the payload passed to the observer while it arrived. */
+	private boolean streamed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param kind
+	 *            The kind of the result.
+	 * @param uid
+	 *            The uid of the command, may be null.
+	 * @param line
+	 *            The line containing the payload.
+	 * @param payloadStart
+	 *            Where the payload starts in the line.
+	 */
+	private OHAPEvent(Kind kind, String uid, String line, int payloadStart) {
+		this.kind = kind;
+		this.uid = uid;
+		this.line = line;
+		this.payloadStart = Math.min(payloadStart, line.length());
+	}
+
+	/**
+	 * Classifies a response line from the server. The line is either
+	 * <code>KIND payload</code> or <code>uid KIND payload</code>, where KIND is
+	 * OK, VALUE, DELTA or ERROR.
+	 *
+	 * @param line
+	 *            The response line.
+	 * @return The event.
+	 */
+	public static OHAPEvent parse(String line) {
+		int end = wordEnd(line, 0);
+		Kind kind = kindOf(line, 0, end);
+		if (null != kind) {
+			return new OHAPEvent(kind, null, line, end + 1);
+		}
+		if (end < line.length()) {
+			int secondEnd = wordEnd(line, end + 1);
+			kind = kindOf(line, end + 1, secondEnd);
+			if (null != kind) {
+				return new OHAPEvent(kind, line.substring(0, end), line,
+						secondEnd + 1);
+			}
+		}
+		return new OHAPEvent(Kind.UNKNOWN, null, line, 0);
+	}
+
+	/**
+	 * Creates an event telling the session has been created.
+	 *
+	 * @return The event.
+	 */
+	static OHAPEvent session() {
+		return new OHAPEvent(Kind.SESSION, null, "", 0);
+	}
+
+	/**
+	 * Creates an event telling the session has been closed.
+	 *
+	 * @return The event.
+	 */
+	static OHAPEvent closed() {
+		return new OHAPEvent(Kind.CLOSED, null, "", 0);
+	}
+
+	/**
+	 * Creates a VALUE event answered from the response cache.
+	 *
+	 * @param uid
+	 *            The uid of the GET.
+	 * @param payload
+	 *            The cached JSON.
+	 * @return The event.
+	 * @see OHAPResponseCache
+	 */
+	static OHAPEvent cached(String uid, String payload) {
+		OHAPEvent event = new OHAPEvent(Kind.VALUE, uid, payload, 0);
+		event.cached = true;
+		return event;
+	}
+
+	/**
+	 * Classifies a response line whose payload, or the changes of a DELTA,
+	 * has already been passed to the {@link OHAPStreamListener} while it
+	 * arrived.
+	 *
+	 * @param line
+	 *            The response line.
+	 * @return The event.
+	 */
+	static OHAPEvent streamed(String line) {
+		OHAPEvent event = parse(line);
+		event.streamed = true;
+		return event;
+	}
+
+	/**
+	 * Creates an event telling the session has been lost.
+	 *
+	 * @param sessionId
+	 *            The id of the lost session.
+	 * @return The event.
+	 */
+	static OHAPEvent lost(String sessionId) {
+		return new OHAPEvent(Kind.LOST, null, sessionId, 0);
+	}
+
+	/**
+	 * Creates an error event.
+	 *
+	 * @param message
+	 *            The error message.
+	 * @return The event.
+	 */
+	static OHAPEvent error(String message) {
+		return new OHAPEvent(Kind.ERROR, null, message, 0);
+	}
+
+	/**
+	 * Checks if the event was answered from the response cache instead of
+	 * the server.
+	 *
+	 * @return true for a cached VALUE.
+	 */
+	public boolean isCached() {
+		return cached;
+	}
+
+	/**
+	 * Checks if the payload has already been passed to the
+	 * {@link OHAPStreamListener}.
+	 *
+	 * @return true for a streamed VALUE.
+	 */
+	public boolean isStreamed() {
+		return streamed;
+	}
+
+	/**
+	 * Gets the kind of the result.
+	 *
+	 * @return The kind.
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Gets the uid of the command the result is for.
+	 *
+	 * @return The uid, null if the server did not tell it.
+	 */
+	public String getUid() {
+		return uid;
+	}
+
+	/**
+	 * Gets the payload of the result.
+	 *
+	 * @return The payload, empty if the result has none.
+	 */
+	public String getPayload() {
+		if (null == payload) {
+			payload = line.substring(payloadStart);
+		}
+		return payload;
+	}
+
+	/**
+	 * Gets the model version of a DELTA, the first word of the payload.
+	 *
+	 * @return The version.
+	 */
+	public String getVersion() {
+		String text = getPayload();
+		int end = text.indexOf(' ');
+		return end < 0 ? text : text.substring(0, end);
+	}
+
+	/**
+	 * Gets the changes of a DELTA, the payload after the version.
+	 *
+	 * @return The JSON of the changed devices, empty if nothing changed.
+	 */
+	public String getChanges() {
+		String text = getPayload();
+		int end = text.indexOf(' ');
+		return end < 0 ? "" : text.substring(end + 1);
+	}
+
+	@Override
+	public String toString() {
+		String text = kind + (null == uid ? "" : " " + uid);
+		if (line.length() - payloadStart > 80) {
+			return text + " (" + (line.length() - payloadStart) + " chars)";
+		}
+		return text + " " + line.substring(payloadStart);
+	}
+
+	/**
+	 * Finds the end of the word starting at the index.
+	 */
+	private static int wordEnd(String line, int start) {
+		int end = line.indexOf(' ', start);
+		return end < 0 ? line.length() : end;
+	}
+
+	/**
+	 * Gets the kind named by the word in the line.
+	 *
+	 * @return The kind, null if the word is not a result kind.
+	 */
+	private static Kind kindOf(String line, int start, int end) {
+		int length = end - start;
+		if (length == 2 && line.regionMatches(true, start, "OK", 0, 2)) {
+			return Kind.OK;
+		} else if (length == 5 && line.regionMatches(true, start, "VALUE", 0, 5)) {
+			return Kind.VALUE;
+		} else if (length == 5 && line.regionMatches(true, start, "ERROR", 0, 5)) {
+			return Kind.ERROR;
+		} else if (length == 5 && line.regionMatches(true, start, "DELTA", 0, 5)) {
+			return Kind.DELTA;
+		}
+		return null;
+	}
+
+}
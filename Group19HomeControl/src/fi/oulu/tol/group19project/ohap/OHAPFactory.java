@@ -0,0 +1,225 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Creates OHAP protocol objects which share one pool of workers, one task
+ * queue and one transport.
+ * <p>
+ *
+ * Each protocol object created with {@link #createProtocol()} has a session of
+ * its own (see {@link OHAPSession}): its own server address, session id,
+ * request counter and results queue, and its own observer. So one process can
+ * have sessions with many home control units at the same time, without
+ * creating threads and connections for each of them.
+ * <p>
+ *
+ * The configuration and the transport are shared by all the protocols of the
+ * factory. Each session keeps an empty request, the long poll, waiting at its
+ * server. The polls are sent by poll workers of their own, reading a poll
+ * queue of their own, so the workers sending the commands are never held by a
+ * poll. With the blocking {@link OHAPHttpTransport} each poll holds a poll
+ * worker, so there is at least one poll worker per started session; otherwise
+ * the polls of the sessions would wait for each other. With the
+ * {@link OHAPNioTransport} the extra poll workers just wait.
+ * {@link OHAPImplementation#getInstance()} uses the {@link #getDefault()}
+ * factory.
+ *
+ * @see OHAPWorkerPool
+ * @see OHAPTaskQueue
+ * @see OHAPTransport
+ */
+public class OHAPFactory {
+
+	private static final String TAG = "HCApp-OHAPFactory";
+
+	/** Default number of tasks the shared task queue can hold. */
+	public static final int DEFAULT_TASK_QUEUE_CAPACITY = 50;
+
+	/** The factory used by the singleton protocol. */
+	private static OHAPFactory defaultFactory = null;
+
+	/** The workers, shared by the protocols. */
+	private final OHAPWorkerPool workers = new OHAPWorkerPool();
+
+	/** The task queue the workers read, shared by the protocols. */
+	private final OHAPTaskQueue taskQueue;
+
+	/** The workers sending the long polls. */
+	private final OHAPWorkerPool pollers = new OHAPWorkerPool();
+
+	/** The queue of the long polls the poll workers read. */
+	private final OHAPTaskQueue pollQueue;
+
+	/** The protocols with a session started, each polling its server. */
+	private final Set<OHAPBase> polling = new HashSet<OHAPBase>();
+
+	/** The transport the workers send the requests with. */
+	private OHAPTransport transport = new OHAPHttpTransport();
+
+	/** The configuration of the protocols. */
+	private OHAPConfiguration configuration = new OHAPConfiguration();
+
+	/**
+	 * Constructor, with the default task queue capacity.
+	 */
+	public OHAPFactory() {
+		this(DEFAULT_TASK_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param taskQueueCapacity
+	 *            How many tasks the shared task queue can hold. With many
+	 *            sessions, use a bigger queue.
+	 */
+	public OHAPFactory(int taskQueueCapacity) {
+		taskQueue = new OHAPTaskQueue(taskQueueCapacity);
+		pollQueue = new OHAPTaskQueue(taskQueueCapacity);
+	}
+
+	/**
+	 * Gets the default factory, creating it if needed.
+	 *
+	 * @return The default factory.
+	 */
+	public static synchronized OHAPFactory getDefault() {
+		if (null == defaultFactory) {
+			defaultFactory = new OHAPFactory();
+		}
+		return defaultFactory;
+	}
+
+	/**
+	 * Creates a new protocol object with a session of its own.
+	 *
+	 * @return The protocol.
+	 */
+	public OHAPInterface createProtocol() {
+		return new OHAPImplementation(this);
+	}
+
+	/**
+	 * Sets the configuration of the protocols. The configuration is taken into
+	 * use when the next session is started.
+	 *
+	 * @param configuration
+	 *            The configuration to use, null restores the defaults.
+	 */
+	public synchronized void setConfiguration(OHAPConfiguration configuration) {
+		if (null == configuration) {
+			configuration = new OHAPConfiguration();
+		}
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Gets the configuration of the protocols.
+	 *
+	 * @return The configuration.
+	 */
+	public synchronized OHAPConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * Sets the transport the workers use in sending the requests to the
+	 * server. By default, the blocking {@link OHAPHttpTransport} is used. Set
+	 * the transport before starting the sessions; the previous transport is
+	 * shut down.
+	 *
+	 * @param transport
+	 *            The transport to use, null restores the default.
+	 */
+	public void setTransport(OHAPTransport transport) {
+		if (null == transport) {
+			transport = new OHAPHttpTransport();
+		}
+		OHAPTransport previous = null;
+		synchronized (this) {
+			previous = this.transport;
+			this.transport = transport;
+		}
+		if (previous != transport) {
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * Gets the transport the workers use.
+	 *
+	 * @return The transport.
+	 */
+	public synchronized OHAPTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Gets the task queue shared by the protocols.
+	 *
+	 * @return The task queue.
+	 */
+	OHAPTaskQueue getTaskQueue() {
+		return taskQueue;
+	}
+
+	/**
+	 * Gets the queue of the long polls, shared by the protocols.
+	 *
+	 * @return The poll queue.
+	 */
+	OHAPTaskQueue getPollQueue() {
+		return pollQueue;
+	}
+
+	/**
+	 * Makes sure the workers are running and use the current configuration
+	 * and transport, with a poll worker for each started session. Called by a
+	 * protocol when it starts a session.
+	 *
+	 * @param protocol
+	 *            The protocol starting a session.
+	 */
+	synchronized void start(OHAPBase protocol) {
+		polling.add(protocol);
+		transport.configure(configuration);
+		workers.attach(configuration, transport, taskQueue);
+		pollers.attach(
+				Math.max(configuration.getPollWorkerCount(), polling.size()),
+				1, 0, transport, pollQueue);
+	}
+
+	/**
+	 * Called by a protocol when its session has ended. The poll workers are
+	 * resized when the next session is started.
+	 *
+	 * @param protocol
+	 *            The protocol.
+	 */
+	synchronized void stopped(OHAPBase protocol) {
+		polling.remove(protocol);
+	}
+
+	/**
+	 * Stops the worker threads and closes the connections to the servers.
+	 * Call this when none of the protocols is going to be used anymore. If a
+	 * session is started after this, new worker threads and connections are
+	 * created.
+	 * <p>
+	 * The transport is shut down first: a worker waiting for a long poll does
+	 * not react to the interrupt, but closing the connections makes its
+	 * request fail, so the workers can be joined without waiting for the
+	 * servers to respond.
+	 */
+	public synchronized void shutdown() {
+		Log.d(TAG, "Shutting down the transport and the workers");
+		transport.shutdown();
+		pollers.shutdown();
+		workers.shutdown();
+	}
+
+}
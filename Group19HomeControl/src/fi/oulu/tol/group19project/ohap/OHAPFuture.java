@@ -0,0 +1,249 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.util.Log;
+
+/**
+ * The pending result of a command sent with
+ * {@link OHAPInterface#sendAsync(String, String)}.
+ * <p>
+ *
+ * Each asynchronous command gets an uid of its own. The session keeps the
+ * futures of the commands waiting for the server in a table by the uid (see
+ * {@link OHAPSession}), and when the OK, VALUE or ERROR line with the uid
+ * arrives, the future is completed with it. So the client can have many
+ * commands going on at the same time and tell which result belongs to which
+ * command, without matching the {@link OHAPListener} callbacks by itself.
+ * <p>
+ *
+ * The future is completed with the {@link OHAPEvent} the server sent, also if
+ * it is an ERROR; check the kind of the event. If the command never got to the
+ * server, or the session ended before the reply arrived, {@link #get()} throws
+ * an ExecutionException telling why.
+ * <p>
+ *
+ * Instead of blocking in {@link #get()}, the client may add a
+ * {@link Listener}. The listeners are called in the thread completing the
+ * future, usually the protocol thread, so the same rules apply as with the
+ * {@link OHAPListener} callbacks.
+ */
+public class OHAPFuture implements Future<OHAPEvent> {
+
+	private static final String TAG = "HCApp-OHAPFuture";
+
+	/**
+	 * Gets told when the future is done.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the future has been completed, failed or cancelled.
+		 *
+		 * @param future
+		 *            The future; {@link OHAPFuture#get()} does not block.
+		 */
+		public void done(OHAPFuture future);
+	}
+
+	/** The uid of the command. */
+	private final String uid;
+
+	/** The reply from the server, null if not yet arrived. */
+	private OHAPEvent result = null;
+
+	/** Why the command failed, null if it has not failed. */
+	private IOException failure = null;
+
+	/** Has the future been cancelled. */
+	private boolean cancelled = false;
+
+	/** The listeners to call when done, null after they have been called. */
+	private List<Listener> listeners = new ArrayList<Listener>(1);
+
+	/**
+	 * Constructor.
+	 *
+	 * @param uid
+	 *            The uid of the command.
+	 */
+	OHAPFuture(String uid) {
+		this.uid = uid;
+	}
+
+	/**
+	 * Gets the uid of the command.
+	 *
+	 * @return The uid.
+	 */
+	public String getUid() {
+		return uid;
+	}
+
+	/**
+	 * Adds a listener to be called when the future is done. If it is already
+	 * done, the listener is called right away in the calling thread.
+	 *
+	 * @param listener
+	 *            The listener.
+	 */
+	public void addListener(Listener listener) {
+		synchronized (this) {
+			if (null != listeners) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.done(this);
+	}
+
+	/**
+	 * Cancels waiting for the reply. If the command is still in the task
+	 * queue, it is not sent. If it has already been sent, its reply is
+	 * ignored.
+	 *
+	 * @param mayInterruptIfRunning
+	 *            Not used; no thread is interrupted.
+	 * @return false if the future was already done.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+			cancelled = true;
+		}
+		finish();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return cancelled || null != result || null != failure;
+	}
+
+	@Override
+	public synchronized OHAPEvent get() throws InterruptedException,
+			ExecutionException {
+		while (!isDone()) {
+			wait();
+		}
+		return outcome();
+	}
+
+	@Override
+	public synchronized OHAPEvent get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!isDone()) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				throw new TimeoutException("No reply to " + uid);
+			}
+			wait(wait);
+		}
+		return outcome();
+	}
+
+	/**
+	 * Completes the future with the reply from the server. Does nothing if the
+	 * future is already done.
+	 *
+	 * @param event
+	 *            The OK, VALUE or ERROR with the uid of the command.
+	 */
+	void complete(OHAPEvent event) {
+		synchronized (this) {
+			if (isDone()) {
+				return;
+			}
+			result = event;
+		}
+		finish();
+	}
+
+	/**
+	 * Fails the future. Does nothing if the future is already done.
+	 *
+	 * @param reason
+	 *            Why the command did not get a reply.
+	 */
+	void fail(String reason) {
+		synchronized (this) {
+			if (isDone()) {
+				return;
+			}
+			failure = new IOException(reason);
+		}
+		finish();
+	}
+
+	/**
+	 * Completes the future the same way as the other one has been completed.
+	 * Used when the command of this future has been merged to the command of
+	 * the other one in the task queue.
+	 *
+	 * @param other
+	 *            The done future.
+	 */
+	void completeAs(OHAPFuture other) {
+		OHAPEvent event = null;
+		IOException reason = null;
+		synchronized (other) {
+			event = other.result;
+			reason = other.failure;
+		}
+		if (null != event) {
+			complete(event);
+		} else if (null != reason) {
+			fail(reason.getMessage());
+		} else {
+			fail("Cancelled");
+		}
+	}
+
+	/**
+	 * Gets the outcome of a done future. Must be called holding the lock.
+	 */
+	private OHAPEvent outcome() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (null != failure) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+
+	/**
+	 * Wakes up the waiting threads and calls the listeners.
+	 */
+	private void finish() {
+		List<Listener> done = null;
+		synchronized (this) {
+			done = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		for (Listener listener : done) {
+			try {
+				listener.done(this);
+			} catch (RuntimeException e) {
+				Log.d(TAG, "Listener of " + uid + " failed: " + e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,277 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+
+import android.util.Log;
+
+/**
+ * A blocking {@link OHAPTransport} using the Apache HTTP client.
+ * <p>
+ *
+ * The request is executed in the calling worker thread, which waits until the
+ * response has arrived and has been handled. The client and its keep-alive
+ * connections are shared by the workers, see {@link OHAPConnectionPool}.
+ * <p>
+ *
+ * A watchdog thread aborts the requests whose deadline passes before the
+ * response starts to arrive (see {@link OHAPRequest#getDeadline()}). Aborting
+ * makes the blocked worker return from the HTTP client with an IOException,
+ * so a hung server cannot keep a worker away from the task queue. A response
+ * which has started is read to the end, however long the body takes.
+ * <p>
+ *
+ * Compressed responses are decompressed while the handler reads them, and
+ * long request bodies are compressed once the server understands it, see
+ * {@link OHAPContentCoding}.
+ *
+ * @see OHAPNioTransport
+ */
+public class OHAPHttpTransport implements OHAPTransport {
+
+	private static final String TAG = "HCApp-OHAPHttpTransport";
+
+	/**
+	 * The charset of the request bodies, the default charset of HTTP and of
+	 * the StringEntity used before.
+	 */
+	private static final String CHARSET = "ISO-8859-1";
+
+	/** The shared HTTP client. */
+	private final OHAPConnectionPool connections = new OHAPConnectionPool();
+
+	/** Negotiates the compression of the bodies with the servers. */
+	private final OHAPContentCoding coding = new OHAPContentCoding();
+
+	/** Aborts the requests at their deadline, null if not yet needed. */
+	private ScheduledExecutorService watchdog = null;
+
+	@Override
+	public void configure(OHAPConfiguration configuration) {
+		connections.configure(configuration);
+		coding.configure(configuration);
+	}
+
+	@Override
+	public void execute(OHAPRequest request, ResponseHandler handler)
+			throws InterruptedException {
+		HttpRequestBase requestBase = null;
+		try {
+			requestBase = createRequest(request);
+		} catch (IOException e) {
+			handler.requestFailed(e);
+			return;
+		}
+		ScheduledFuture<?> abort = null;
+		if (request.getDeadline() > 0) {
+			long delay = request.getDeadline() - System.currentTimeMillis();
+			if (delay <= 0) {
+				handler.requestFailed(new IOException("Deadline passed"));
+				return;
+			}
+			abort = scheduleAbort(requestBase, delay);
+		}
+		try {
+			execute(request, requestBase, abort, handler);
+		} finally {
+			if (null != abort) {
+				abort.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Executes the request and passes the response to the handler.
+	 *
+	 * @param request
+	 *            The request to send.
+	 * @param requestBase
+	 *            The Apache request.
+	 * @param abort
+	 *            Aborts the request at its deadline, cancelled when the
+	 *            response starts. Null if the request has no deadline.
+	 * @param handler
+	 *            Gets the response.
+	 * @throws InterruptedException
+	 */
+	private void execute(OHAPRequest request, HttpRequestBase requestBase,
+			ScheduledFuture<?> abort, ResponseHandler handler)
+			throws InterruptedException {
+		URI uri = request.getUri();
+		HttpHost host = new HttpHost(uri.getHost(), uri.getPort(),
+				uri.getScheme());
+		HttpEntity entity = null;
+		HttpResponse response = null;
+		InputStream content = null;
+		try {
+			// We may have to wait for seconds, minutes, hours... depending
+			// on the server!
+			response = connections.getClient().execute(host, requestBase);
+			if (null != abort) {
+				// The server has answered; the body may take its time.
+				abort.cancel(false);
+			}
+			entity = response.getEntity();
+			if (null != entity) {
+				Header header = entity.getContentEncoding();
+				String encoding = null == header ? null : header.getValue();
+				coding.responseArrived(routeOf(uri), encoding, response
+						.getStatusLine().getStatusCode(), null != requestBase
+						.getFirstHeader("Content-Encoding"));
+				content = OHAPContentCoding.decode(encoding,
+						entity.getContent());
+			} else {
+				content = new ByteArrayInputStream(new byte[0]);
+			}
+		} catch (IllegalStateException e) {
+			requestBase.abort();
+			handler.requestFailed(new IOException(e.getMessage()));
+			return;
+		} catch (IOException e) {
+			// Do not give a broken connection back to the pool. Also a
+			// response failing to decompress is not read to the end.
+			requestBase.abort();
+			Log.d(TAG, "Request failed: " + e.getMessage());
+			handler.requestFailed(e);
+			return;
+		}
+		try {
+			handler.responseArrived(response.getStatusLine().getStatusCode(),
+					content);
+		} finally {
+			releaseConnection(entity);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		synchronized (this) {
+			if (null != watchdog) {
+				watchdog.shutdownNow();
+				watchdog = null;
+			}
+		}
+		connections.shutdown();
+	}
+
+	/**
+	 * Makes the watchdog abort the request after the delay. Aborting closes
+	 * the connection, so the blocked execute or the reading of the response
+	 * fails with an IOException.
+	 *
+	 * @param requestBase
+	 *            The request.
+	 * @param delay
+	 *            Milliseconds until the deadline.
+	 * @return For cancelling the abort when the request is done.
+	 */
+	private synchronized ScheduledFuture<?> scheduleAbort(
+			final HttpRequestBase requestBase, long delay) {
+		if (null == watchdog) {
+			watchdog = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable,
+									"HCApp-OHAPWatchdog");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return watchdog.schedule(new Runnable() {
+			@Override
+			public void run() {
+				Log.d(TAG, "Deadline passed, aborting the request");
+				requestBase.abort();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates the Apache request object.
+	 *
+	 * @param request
+	 *            The request to send.
+	 * @return The Apache request.
+	 * @throws IOException
+	 */
+	private HttpRequestBase createRequest(OHAPRequest request)
+			throws IOException {
+		HttpRequestBase requestBase = null;
+		switch (request.getMethod()) {
+		case GET:
+			requestBase = new HttpGet(request.getUri());
+			break;
+		case DELETE:
+			requestBase = new HttpDelete(request.getUri());
+			break;
+		default:
+			HttpPost post = new HttpPost(request.getUri());
+			if (null != request.getBody()) {
+				byte[] body = request.getBody().getBytes(CHARSET);
+				boolean compress = coding.shouldCompress(
+						routeOf(request.getUri()), body.length);
+				if (compress) {
+					body = OHAPContentCoding.compress(body);
+				}
+				ByteArrayEntity entity = new ByteArrayEntity(body);
+				entity.setContentType("text/plain; charset=" + CHARSET);
+				if (compress) {
+					post.setHeader("Content-Encoding", OHAPContentCoding.GZIP);
+				}
+				post.setEntity(entity);
+			}
+			requestBase = post;
+			break;
+		}
+		if (coding.isAccepting()) {
+			requestBase.setHeader("Accept-Encoding",
+					OHAPContentCoding.ACCEPT_ENCODING);
+		}
+		return requestBase;
+	}
+
+	/**
+	 * Gets the host:port the request goes to, for telling the servers apart.
+	 */
+	private static String routeOf(URI uri) {
+		return uri.getHost() + ":" + uri.getPort();
+	}
+
+	/**
+	 * Reads the rest of the response, if any, so that the keep-alive
+	 * connection is given back to the connection pool and can be used in the
+	 * next request.
+	 *
+	 * @param entity
+	 *            The response entity, may be null.
+	 */
+	private void releaseConnection(HttpEntity entity) {
+		if (null != entity) {
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				Log.d(TAG, "Could not release the connection");
+			}
+		}
+	}
+
+}
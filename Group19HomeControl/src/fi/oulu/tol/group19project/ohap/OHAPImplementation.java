@@ -6,8 +6,14 @@ public class OHAPImplementation extends OHAPBase implements OHAPInterface {
 	private static OHAPImplementation instance = null;
 	private final static String TAG = "OHAPImplementation";
 
-	private OHAPImplementation() {
-
+	/**
+	 * Constructor, use {@link OHAPFactory#createProtocol()}.
+	 * 
+	 * @param factory
+	 *            The factory owning the shared workers.
+	 */
+	OHAPImplementation(OHAPFactory factory) {
+		super(factory);
 	}
 
 	@Override
@@ -28,8 +34,7 @@ public class OHAPImplementation extends OHAPBase implements OHAPInterface {
 
 			try {
 				Log.d(TAG, "There is a sesssion");
-				taskQueue.put(new TaskData(null, TaskData.CLOSE_SESSION_CMD,
-						null));
+				putTask(new TaskData(null, TaskData.CLOSE_SESSION_CMD, null));
 			} catch (InterruptedException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -44,41 +49,61 @@ public class OHAPImplementation extends OHAPBase implements OHAPInterface {
 
 	@Override
 	public void getPath(String uid, String path) throws InterruptedException {
-		if (hasSession()) {
-			taskQueue.put(new TaskData(uid, TaskData.GET_CMD, path));
-		} else {
-			errorMessageToClient("No Session");
-
-		}
+		submit(uid, TaskData.GET_CMD, path);
+	}
 
+	@Override
+	public void sync(String uid, String version) throws InterruptedException {
+		submit(uid, TaskData.SYNC_CMD, version);
 	}
 
 	@Override
 	public void listenTo(String uid, String path) throws InterruptedException {
-		if (hasSession()) {
-			taskQueue.put(new TaskData(uid, TaskData.LISTEN_CMD, path));
-
-		}
-		errorMessageToClient("No session");
+		submit(uid, TaskData.LISTEN_CMD, path);
 	}
 
 	@Override
 	public void unlistenTo(String uid, String path) throws InterruptedException {
-		if (hasSession()) {
-			taskQueue.put(new TaskData(uid, TaskData.UNLISTEN_CMD, path));
-		}
-		errorMessageToClient("No session");
+		submit(uid, TaskData.UNLISTEN_CMD, path);
 	}
 
 	@Override
 	public void setPath(String uid, String path) throws InterruptedException {
-		if (hasSession()) {
-			taskQueue.put(new TaskData(uid, TaskData.SET_CMD, path));
-		} else {
-			errorMessageToClient("No Session");
+		submit(uid, TaskData.SET_CMD, path);
+	}
 
+	@Override
+	public boolean offer(String uid, String command, String data) {
+		if (!hasSession()) {
+			return false;
 		}
+		return offerTask(new TaskData(uid, command, data));
+	}
 
+	@Override
+	public OHAPFuture sendAsync(String command, String data) {
+		return sendTask(command, data);
+	}
+
+	/**
+	 * Offers the command to the task queue, telling the client if it could
+	 * not be queued.
+	 * 
+	 * @param uid
+	 *            Uid for the request, may be null.
+	 * @param command
+	 *            The command.
+	 * @param data
+	 *            The data of the command.
+	 */
+	private void submit(String uid, String command, String data) {
+		if (!hasSession()) {
+			errorMessageToClient("No session");
+		} else if (!offerTask(new TaskData(uid, command, data))) {
+			Log.d(TAG, "Task queue full, " + command + " rejected");
+			errorMessageToClient("Too many requests, " + command
+					+ " not sent");
+		}
 	}
 
 	@Override
@@ -87,9 +112,15 @@ public class OHAPImplementation extends OHAPBase implements OHAPInterface {
 
 	}
 
-	public static OHAPImplementation getInstance() {
+	/**
+	 * Gets the protocol of the default factory. Use
+	 * {@link OHAPFactory#createProtocol()} to have sessions with many servers.
+	 * 
+	 * @return The protocol.
+	 */
+	public static synchronized OHAPImplementation getInstance() {
 		if (instance == null) {
-			instance = new OHAPImplementation();
+			instance = new OHAPImplementation(OHAPFactory.getDefault());
 		}
 		return instance;
 	}
@@ -31,6 +31,12 @@ package fi.oulu.tol.group19project.ohap;
  * <li>Finally, call {@link endSession(boolean)} to close the session with the
  * server.</li>
  * </ul>
+ * <p>
+ * 
+ * The commands never block the calling thread. If the task queue is full, the
+ * overflow policy of the protocol configuration decides if the command is
+ * rejected, see {@link offer(String, String, String)}. Use
+ * {@link getQueueOccupancy()} to shed load before that happens.
  * 
  * @author Antti Juustila
  * @see OHAPListener
@@ -92,6 +98,26 @@ public interface OHAPInterface {
 	 */
 	public void getPath(String uid, String path) throws InterruptedException;
 
+	/**
+	 * Sends the OHAP SYNC to the server, asking for the changes to the devices
+	 * since the given model version. The server responds with a DELTA, passed
+	 * to {@link OHAPListener#deltaFromServerArrived(String, String)}, with the
+	 * version to give in the next SYNC.
+	 * <p>
+	 * If the server does not understand SYNC, the protocol gets the whole tree
+	 * with a GET of "/" instead, and the content arrives to
+	 * {@link OHAPListener#contentFromServerArrived(String)}.
+	 * 
+	 * @param uid
+	 *            Uid for the request, may be null if not used.
+	 * @param version
+	 *            The version of the model the client has, null if the client
+	 *            has no model and needs the whole tree.
+	 * @throws InterruptedException
+	 * @see TaskData#SYNC_CMD
+	 */
+	public void sync(String uid, String version) throws InterruptedException;
+
 	/**
 	 * Sends the OHAP LISTEN message to the server. Server will then notify the
 	 * clients when device's state changes, with an updated JSON string in a
@@ -143,4 +169,57 @@ public interface OHAPInterface {
 	 */
 	public void setPath(String uid, String path) throws InterruptedException;
 
+	/**
+	 * Puts a command to the task queue without waiting. If the queue is full,
+	 * the overflow policy set with
+	 * {@link OHAPConfiguration#setOverflowPolicy(OHAPConfiguration.OverflowPolicy)}
+	 * decides what happens.
+	 * 
+	 * @param uid
+	 *            Uid for the request, may be null if not used.
+	 * @param command
+	 *            The command: {@link TaskData#GET_CMD},
+	 *            {@link TaskData#SET_CMD}, {@link TaskData#LISTEN_CMD} or
+	 *            {@link TaskData#UNLISTEN_CMD}.
+	 * @param data
+	 *            The path or the JSON data of the command.
+	 * @return true if the command was queued, false if there is no session or
+	 *         the command was rejected.
+	 */
+	public boolean offer(String uid, String command, String data);
+
+	/**
+	 * Sends a command asynchronously. The command gets an uid of its own, and
+	 * the returned future is completed with the OK, VALUE or ERROR the server
+	 * sends for it. The observer is notified of the reply as usual. Many
+	 * commands can be going on at the same time; the client does not need to
+	 * wait for one reply before sending the next command.
+	 * 
+	 * @param command
+	 *            The command: {@link TaskData#GET_CMD},
+	 *            {@link TaskData#SET_CMD}, {@link TaskData#LISTEN_CMD} or
+	 *            {@link TaskData#UNLISTEN_CMD}.
+	 * @param data
+	 *            The path or the JSON data of the command.
+	 * @return The future of the reply. Fails if there is no session, the
+	 *         command is rejected by the task queue, the request fails or the
+	 *         session ends before the reply.
+	 * @see OHAPFuture
+	 */
+	public OHAPFuture sendAsync(String command, String data);
+
+	/**
+	 * Gets the number of tasks waiting in the task queue.
+	 * 
+	 * @return The number of waiting tasks.
+	 */
+	public int getQueueOccupancy();
+
+	/**
+	 * Gets the number of tasks the task queue can hold.
+	 * 
+	 * @return The capacity of the queue.
+	 */
+	public int getQueueCapacity();
+
 }
@@ -0,0 +1,174 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a response line from the connection in parts, and keeps the
+ * characters read so that the whole line can be made into an
+ * {@link OHAPEvent} afterwards.
+ * <p>
+ *
+ * {@link #next(BufferedReader)} reads only the beginning of the line, enough
+ * to see the uid and the kind of the reply. The payload of a VALUE can then
+ * be read with the reader itself while it still arrives. The reading ends at
+ * the end of the line, and the next line stays unread in the response.
+ *
+ * @see OHAPStreamListener
+ */
+class OHAPLineReader extends Reader {
+
+	/** The response. */
+	private final BufferedReader in;
+
+	/** The line so far. */
+	private final StringBuilder line = new StringBuilder();
+
+	/** Where the next character to give is in the line. */
+	private int position = 0;
+
+	/** Has the end of the line been reached. */
+	private boolean ended = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            The response.
+	 */
+	private OHAPLineReader(BufferedReader in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the beginning of the next line, up to the second space or the end
+	 * of the line.
+	 *
+	 * @param in
+	 *            The response.
+	 * @return The reader of the line, null at the end of the response.
+	 * @throws IOException
+	 *             If reading the connection failed.
+	 */
+	static OHAPLineReader next(BufferedReader in) throws IOException {
+		int c = in.read();
+		if (c < 0) {
+			return null;
+		}
+		OHAPLineReader reader = new OHAPLineReader(in);
+		int spaces = 0;
+		while (c >= 0 && c != '\n') {
+			reader.line.append((char) c);
+			if (c == ' ' && ++spaces == 2) {
+				break;
+			}
+			c = in.read();
+		}
+		reader.ended = c != ' ';
+		reader.position = reader.line.length();
+		return reader;
+	}
+
+	/**
+	 * Sets the reader to give the payload, starting from the index in the
+	 * line read so far.
+	 *
+	 * @param start
+	 *            Where the payload starts in the line.
+	 */
+	void setPayloadStart(int start) {
+		position = Math.min(start, line.length());
+	}
+
+	@Override
+	public int read(char[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (position < line.length()) {
+			int count = Math.min(length, line.length() - position);
+			line.getChars(position, position + count, buffer, offset);
+			position += count;
+			return count;
+		}
+		if (ended) {
+			return -1;
+		}
+		in.mark(length);
+		int count = in.read(buffer, offset, length);
+		if (count < 0) {
+			ended = true;
+			return -1;
+		}
+		for (int i = offset; i < offset + count; i++) {
+			if (buffer[i] == '\n') {
+				// Leave the rest to the next line.
+				in.reset();
+				in.skip(i - offset + 1);
+				count = i - offset;
+				ended = true;
+				break;
+			}
+		}
+		line.append(buffer, offset, count);
+		position = line.length();
+		if (count == 0) {
+			return -1;
+		}
+		return count;
+	}
+
+	/**
+	 * Reads past the next word and the space after it, like the version of a
+	 * DELTA, so that the reader gives what follows it.
+	 *
+	 * @return true if a space followed the word, false if the line ended.
+	 * @throws IOException
+	 *             If reading the connection failed.
+	 */
+	boolean skipWord() throws IOException {
+		char[] c = new char[1];
+		while (read(c, 0, 1) > 0) {
+			if (c[0] == ' ') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the rest of the line.
+	 *
+	 * @throws IOException
+	 *             If reading the connection failed.
+	 */
+	void skipRest() throws IOException {
+		position = line.length();
+		char[] buffer = new char[1024];
+		while (read(buffer, 0, buffer.length) >= 0) {
+			// The characters are kept in the line.
+		}
+	}
+
+	/**
+	 * Gets the line read so far, without the line terminator.
+	 *
+	 * @return The line.
+	 */
+	String getLine() {
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r') {
+			length--;
+		}
+		return line.substring(0, length);
+	}
+
+	/**
+	 * Does nothing; the response is closed by the worker.
+	 */
+	@Override
+	public void close() {
+	}
+
+}
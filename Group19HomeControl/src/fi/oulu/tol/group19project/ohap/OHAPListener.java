@@ -48,6 +48,21 @@ public interface OHAPListener {
 	 */
 	public void contentFromServerArrived(final String content);
 
+	/**
+	 * Called by the protocol when a DELTA response to a SYNC arrived from the
+	 * server.
+	 * 
+	 * @param version
+	 *            The version of the model after the changes. Give it in the
+	 *            next SYNC.
+	 * @param changes
+	 *            The JSON string of the changed devices, empty if nothing
+	 *            changed.
+	 * @see OHAPInterface#sync(String, String)
+	 */
+	public void deltaFromServerArrived(final String version,
+			final String changes);
+
 	/**
 	 * Called by the protocol when an error happened either on the client side
 	 * or in the server side.
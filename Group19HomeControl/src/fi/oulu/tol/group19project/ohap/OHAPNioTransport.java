@@ -0,0 +1,949 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+
+/**
+ * A non-blocking {@link OHAPTransport} using a NIO selector.
+ * <p>
+ *
+ * {@link #execute(OHAPRequest, ResponseHandler)} only queues the request and
+ * returns at once, so the worker is free to take the next task from the task
+ * queue. One selector thread sends the requests and reads the responses of all
+ * the connections, so hundreds of requests and long polls can be waiting for
+ * the server without a thread blocked for each. When a response has been read
+ * completely, its handler is called from a small pool of handler threads.
+ * <p>
+ *
+ * Connections are HTTP/1.1 keep-alive connections, at most
+ * {@link OHAPConfiguration#getMaxConnections()} per server. Requests exceeding
+ * that wait until a connection is free. A connection unused for
+ * {@link OHAPConfiguration#getConnectionIdleTimeout()} milliseconds is closed.
+ * Response bodies may be delimited by Content-Length, chunked transfer
+ * encoding, or the server closing the connection. Compressed bodies are
+ * decompressed while the handler reads them, see {@link OHAPContentCoding}.
+ * <p>
+ *
+ * The selector thread also works as the watchdog: a request whose deadline
+ * passes before the response starts to arrive (see
+ * {@link OHAPRequest#getDeadline()}) is failed and its connection closed, and
+ * so is a connection not opened within
+ * {@link OHAPConfiguration#getConnectTimeout()} milliseconds.
+ * <p>
+ *
+ * Only plain http is supported; use {@link OHAPHttpTransport} with https
+ * servers.
+ *
+ * @see OHAPBase#setTransport(OHAPTransport)
+ */
+public class OHAPNioTransport implements OHAPTransport {
+
+	private static final String TAG = "HCApp-OHAPNioTransport";
+
+	/** User agent string sent to the server. */
+	private static final String USER_AGENT = "JannasHttpClient";
+
+	/** The charset of the request and response headers and bodies. */
+	private static final String CHARSET = "ISO-8859-1";
+
+	/** Number of threads calling the response handlers. */
+	private static final int HANDLER_THREADS = 2;
+
+	/** Size of the buffer reading from a connection. */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/** Max time in milliseconds between the checks of the deadlines. */
+	private static final long DEADLINE_CHECK_INTERVAL = 500;
+
+	/** Max number of connections to a server. */
+	private volatile int maxConnections = OHAPConfiguration.DEFAULT_MAX_CONNECTIONS;
+
+	/** How long an unused connection is kept open, in milliseconds. */
+	private volatile long idleTimeout = OHAPConfiguration.DEFAULT_CONNECTION_IDLE_TIMEOUT;
+
+	/** How long opening a connection may take, in milliseconds. */
+	private volatile int connectTimeout = OHAPConfiguration.DEFAULT_CONNECT_TIMEOUT;
+
+	/** Negotiates the compression of the bodies with the servers. */
+	private final OHAPContentCoding coding = new OHAPContentCoding();
+
+	/**
+	 * The running selector loop, null if the transport is not running. It is
+	 * created when the first request is executed.
+	 */
+	private SelectorLoop loop = null;
+
+	@Override
+	public void configure(OHAPConfiguration configuration) {
+		maxConnections = configuration.getMaxConnections();
+		idleTimeout = configuration.getConnectionIdleTimeout();
+		connectTimeout = configuration.getConnectTimeout();
+		coding.configure(configuration);
+	}
+
+	@Override
+	public void execute(OHAPRequest request, ResponseHandler handler)
+			throws InterruptedException {
+		URI uri = request.getUri();
+		if (!"http".equalsIgnoreCase(uri.getScheme())) {
+			handler.requestFailed(new IOException("Unsupported scheme: "
+					+ uri.getScheme()));
+			return;
+		}
+		Exchange exchange = null;
+		try {
+			exchange = new Exchange(request, handler, coding);
+		} catch (IOException e) {
+			handler.requestFailed(e);
+			return;
+		}
+		SelectorLoop current = null;
+		synchronized (this) {
+			if (null == loop) {
+				try {
+					loop = new SelectorLoop();
+				} catch (IOException e) {
+					handler.requestFailed(e);
+					return;
+				}
+				loop.start();
+			}
+			current = loop;
+		}
+		current.submit(exchange);
+	}
+
+	@Override
+	public void shutdown() {
+		SelectorLoop current = null;
+		synchronized (this) {
+			current = loop;
+			loop = null;
+		}
+		if (null != current) {
+			current.shutdown();
+		}
+	}
+
+	/**
+	 * One request and the response to it.
+	 */
+	private static class Exchange {
+		final OHAPRequest request;
+		final ResponseHandler handler;
+		/** The host:port the request goes to. */
+		final String route;
+		/** The request bytes left to write. */
+		final ByteBuffer output;
+		/** Has the request already been retried on a fresh connection. */
+		boolean retried = false;
+		/** Is the request body compressed. */
+		boolean compressed = false;
+		/**
+		 * The address of the server, null until resolved by a handler
+		 * thread. Passed to the loop through the submitted queue.
+		 */
+		InetSocketAddress address = null;
+
+		Exchange(OHAPRequest request, ResponseHandler handler,
+				OHAPContentCoding coding) throws IOException {
+			this.request = request;
+			this.handler = handler;
+			URI uri = request.getUri();
+			this.route = uri.getHost() + ":" + portOf(uri);
+			this.output = ByteBuffer.wrap(format(request, coding));
+		}
+
+		/**
+		 * Formats the request line, the headers and the body.
+		 */
+		private byte[] format(OHAPRequest request, OHAPContentCoding coding)
+				throws IOException {
+			URI uri = request.getUri();
+			String path = uri.getRawPath();
+			if (null == path || path.length() == 0) {
+				path = "/";
+			}
+			if (null != uri.getRawQuery()) {
+				path += "?" + uri.getRawQuery();
+			}
+			byte[] body = new byte[0];
+			if (null != request.getBody()) {
+				body = request.getBody().getBytes(CHARSET);
+				if (coding.shouldCompress(route, body.length)) {
+					body = OHAPContentCoding.compress(body);
+					compressed = true;
+				}
+			}
+			StringBuilder head = new StringBuilder();
+			head.append(request.getMethod().name()).append(' ').append(path)
+					.append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(uri.getHost());
+			if (uri.getPort() != -1) {
+				head.append(':').append(uri.getPort());
+			}
+			head.append("\r\n");
+			head.append("User-Agent: ").append(USER_AGENT).append("\r\n");
+			if (coding.isAccepting()) {
+				head.append("Accept-Encoding: ")
+						.append(OHAPContentCoding.ACCEPT_ENCODING).append("\r\n");
+			}
+			if (request.getMethod() == OHAPRequest.Method.POST) {
+				head.append("Content-Type: text/plain; charset=")
+						.append(CHARSET).append("\r\n");
+				if (compressed) {
+					head.append("Content-Encoding: ")
+							.append(OHAPContentCoding.GZIP).append("\r\n");
+				}
+				head.append("Content-Length: ").append(body.length)
+						.append("\r\n");
+			}
+			head.append("\r\n");
+			byte[] headBytes = head.toString().getBytes(CHARSET);
+			byte[] all = new byte[headBytes.length + body.length];
+			System.arraycopy(headBytes, 0, all, 0, headBytes.length);
+			System.arraycopy(body, 0, all, headBytes.length, body.length);
+			return all;
+		}
+
+		private static int portOf(URI uri) {
+			return uri.getPort() == -1 ? 80 : uri.getPort();
+		}
+	}
+
+	/**
+	 * A keep-alive connection to a server, handling one exchange at a time.
+	 */
+	private static class Connection {
+		final SocketChannel channel;
+		final String route;
+		/** The exchange using the connection, null if the connection is idle. */
+		Exchange exchange = null;
+		/** Parses the response of the exchange. */
+		ResponseParser parser = null;
+		/** Has the connection already been used by an earlier exchange. */
+		boolean reused = false;
+		/** When the connection became idle. */
+		long idleSince = 0;
+		/** When opening the connection was started. */
+		long connectStarted = System.currentTimeMillis();
+		/** Has the connection been closed. */
+		boolean closed = false;
+
+		Connection(SocketChannel channel, String route) {
+			this.channel = channel;
+			this.route = route;
+		}
+	}
+
+	/**
+	 * Parses a HTTP response from the bytes read from a connection.
+	 */
+	private static class ResponseParser {
+
+		private enum Part {
+			STATUS, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE
+		};
+
+		private Part part = Part.STATUS;
+		private final StringBuilder line = new StringBuilder();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private int statusCode = 0;
+		private long contentLength = -1;
+		private boolean chunked = false;
+		private boolean keepAlive = true;
+		private String contentEncoding = null;
+		private long remaining = 0;
+		/** Has any byte of the response been received. */
+		boolean started = false;
+
+		/**
+		 * Consumes the bytes.
+		 *
+		 * @return true, if the response is complete.
+		 */
+		boolean consume(ByteBuffer buffer) throws IOException {
+			if (buffer.hasRemaining()) {
+				started = true;
+			}
+			while (buffer.hasRemaining() && part != Part.DONE) {
+				switch (part) {
+				case BODY:
+				case CHUNK_DATA:
+					int count = (int) Math.min(remaining, buffer.remaining());
+					body.write(buffer.array(), buffer.position(), count);
+					buffer.position(buffer.position() + count);
+					remaining -= count;
+					if (remaining == 0) {
+						part = part == Part.BODY ? Part.DONE : Part.CHUNK_END;
+					}
+					break;
+				case UNTIL_CLOSE:
+					body.write(buffer.array(), buffer.position(),
+							buffer.remaining());
+					buffer.position(buffer.limit());
+					break;
+				default:
+					if (readLine(buffer)) {
+						lineRead(line.toString());
+						line.setLength(0);
+					}
+				}
+			}
+			return part == Part.DONE;
+		}
+
+		/**
+		 * Called when the server has closed the connection.
+		 *
+		 * @return true, if the response is complete.
+		 */
+		boolean closed() {
+			if (part == Part.UNTIL_CLOSE) {
+				part = Part.DONE;
+			}
+			return part == Part.DONE;
+		}
+
+		int getStatusCode() {
+			return statusCode;
+		}
+
+		byte[] getBody() {
+			return body.toByteArray();
+		}
+
+		String getContentEncoding() {
+			return contentEncoding;
+		}
+
+		boolean isKeepAlive() {
+			return keepAlive && part == Part.DONE;
+		}
+
+		private boolean readLine(ByteBuffer buffer) {
+			while (buffer.hasRemaining()) {
+				char c = (char) (buffer.get() & 0xff);
+				if (c == '\n') {
+					int length = line.length();
+					if (length > 0 && line.charAt(length - 1) == '\r') {
+						line.setLength(length - 1);
+					}
+					return true;
+				}
+				line.append(c);
+			}
+			return false;
+		}
+
+		private void lineRead(String text) throws IOException {
+			switch (part) {
+			case STATUS:
+				// HTTP/1.1 200 OK
+				String[] parts = text.split(" ");
+				if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+					throw new IOException("Malformed status line: " + text);
+				}
+				try {
+					statusCode = Integer.parseInt(parts[1]);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed status line: " + text);
+				}
+				keepAlive = !parts[0].equals("HTTP/1.0");
+				part = Part.HEADERS;
+				break;
+			case HEADERS:
+				if (text.length() == 0) {
+					headersRead();
+				} else {
+					headerRead(text);
+				}
+				break;
+			case CHUNK_SIZE:
+				int end = text.indexOf(';');
+				String size = (end < 0 ? text : text.substring(0, end)).trim();
+				try {
+					remaining = Long.parseLong(size, 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed chunk size: " + text);
+				}
+				part = remaining == 0 ? Part.TRAILERS : Part.CHUNK_DATA;
+				break;
+			case CHUNK_END:
+				part = Part.CHUNK_SIZE;
+				break;
+			case TRAILERS:
+				if (text.length() == 0) {
+					part = Part.DONE;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void headerRead(String text) {
+			int colon = text.indexOf(':');
+			if (colon < 0) {
+				return;
+			}
+			String name = text.substring(0, colon).trim();
+			String value = text.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					contentLength = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					contentLength = -1;
+				}
+			} else if (name.equalsIgnoreCase("Content-Encoding")) {
+				contentEncoding = value;
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.toLowerCase().contains("chunked");
+			} else if (name.equalsIgnoreCase("Connection")) {
+				if (value.equalsIgnoreCase("close")) {
+					keepAlive = false;
+				} else if (value.equalsIgnoreCase("keep-alive")) {
+					keepAlive = true;
+				}
+			}
+		}
+
+		private void headersRead() {
+			if (statusCode / 100 == 1) {
+				// Interim response, the real one follows.
+				part = Part.STATUS;
+			} else if (statusCode == 204 || statusCode == 304) {
+				part = Part.DONE;
+			} else if (chunked) {
+				part = Part.CHUNK_SIZE;
+			} else if (contentLength >= 0) {
+				remaining = contentLength;
+				part = remaining == 0 ? Part.DONE : Part.BODY;
+			} else {
+				keepAlive = false;
+				part = Part.UNTIL_CLOSE;
+			}
+		}
+	}
+
+	/**
+	 * The selector thread and the connections it serves.
+	 */
+	private class SelectorLoop implements Runnable {
+
+		private final Selector selector;
+		private final Thread thread;
+		private final ExecutorService handlers;
+		private volatile boolean running = true;
+
+		/** Exchanges submitted by the workers, not yet seen by the loop. */
+		private final ConcurrentLinkedQueue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+
+		/** Exchanges waiting for a free connection, by route. */
+		private final Map<String, LinkedList<Exchange>> waiting = new HashMap<String, LinkedList<Exchange>>();
+
+		/** Idle keep-alive connections, by route. */
+		private final Map<String, LinkedList<Connection>> idle = new HashMap<String, LinkedList<Connection>>();
+
+		/** Number of open connections, by route. */
+		private final Map<String, Integer> open = new HashMap<String, Integer>();
+
+		private final ByteBuffer readBuffer = ByteBuffer
+				.allocate(READ_BUFFER_SIZE);
+
+		SelectorLoop() throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "HCApp-OHAPNioSelector");
+			thread.setDaemon(true);
+			handlers = Executors.newFixedThreadPool(HANDLER_THREADS);
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		void submit(Exchange exchange) throws InterruptedException {
+			submitted.add(exchange);
+			if (!running && submitted.remove(exchange)) {
+				// The loop has ended and will not see the exchange.
+				exchange.handler.requestFailed(new IOException(
+						"Transport shut down"));
+				return;
+			}
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			handlers.shutdown();
+		}
+
+		@Override
+		public void run() {
+			Log.d(TAG, "Selector loop started");
+			try {
+				while (running) {
+					long timeout = Math.min(Math.max(idleTimeout / 2, 1000),
+							DEADLINE_CHECK_INTERVAL);
+					selector.select(timeout);
+					Exchange exchange = submitted.poll();
+					while (null != exchange) {
+						try {
+							dispatch(exchange);
+						} catch (RuntimeException e) {
+							Log.d(TAG, "Could not dispatch a request: " + e);
+							fail(exchange, new IOException(e.toString()));
+						}
+						exchange = submitted.poll();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						handle(key);
+					}
+					closeIdleConnections();
+					expireExchanges();
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "Selector failed: " + e.getMessage());
+			} catch (ClosedSelectorException e) {
+				Log.d(TAG, "Selector closed");
+			} catch (RuntimeException e) {
+				Log.d(TAG, "Selector loop failed: " + e);
+			} finally {
+				// The next request starts a new loop.
+				synchronized (OHAPNioTransport.this) {
+					if (loop == this) {
+						loop = null;
+					}
+				}
+				closeAll();
+				handlers.shutdown();
+			}
+			Log.d(TAG, "Selector loop ended");
+		}
+
+		/**
+		 * Gives the exchange an idle connection, opens a new one, or lets it
+		 * wait for a connection to become free.
+		 */
+		private void dispatch(Exchange exchange) {
+			LinkedList<Connection> free = idle.get(exchange.route);
+			if (null != free && !free.isEmpty()) {
+				Connection connection = free.removeLast();
+				connection.reused = true;
+				begin(connection, exchange);
+				return;
+			}
+			Integer count = open.get(exchange.route);
+			if (null == count || count < maxConnections) {
+				connect(exchange);
+				return;
+			}
+			LinkedList<Exchange> queue = waiting.get(exchange.route);
+			if (null == queue) {
+				queue = new LinkedList<Exchange>();
+				waiting.put(exchange.route, queue);
+			}
+			queue.addLast(exchange);
+		}
+
+		private void connect(Exchange exchange) {
+			if (null == exchange.address) {
+				resolve(exchange);
+				return;
+			}
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(exchange.address);
+			} catch (IOException e) {
+				closeQuietly(channel);
+				fail(exchange, e);
+				return;
+			}
+			Connection connection = new Connection(channel, exchange.route);
+			connection.exchange = exchange;
+			connection.parser = new ResponseParser();
+			Integer count = open.get(exchange.route);
+			open.put(exchange.route, null == count ? 1 : count + 1);
+			try {
+				channel.register(selector, SelectionKey.OP_CONNECT, connection);
+			} catch (IOException e) {
+				close(connection);
+				fail(exchange, e);
+			}
+		}
+
+		/**
+		 * Resolves the address of the server in a handler thread, so that a
+		 * slow name lookup does not stop the loop, and then submits the
+		 * exchange again.
+		 */
+		private void resolve(final Exchange exchange) {
+			try {
+				handlers.execute(new Runnable() {
+					@Override
+					public void run() {
+						URI uri = exchange.request.getUri();
+						InetSocketAddress address = new InetSocketAddress(
+								uri.getHost(), Exchange.portOf(uri));
+						try {
+							if (address.isUnresolved()) {
+								exchange.handler.requestFailed(new IOException(
+										"Unknown host: " + uri.getHost()));
+								return;
+							}
+							exchange.address = address;
+							submit(exchange);
+						} catch (InterruptedException e) {
+							Log.d(TAG, "Interrupted resolving an address");
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Only after the loop has ended and failed the exchanges.
+				Log.d(TAG, "Transport shut down, not resolving");
+			}
+		}
+
+		/**
+		 * Starts an exchange on a connected connection.
+		 */
+		private void begin(Connection connection, Exchange exchange) {
+			connection.exchange = exchange;
+			connection.parser = new ResponseParser();
+			SelectionKey key = connection.channel.keyFor(selector);
+			if (null == key || !key.isValid()) {
+				close(connection);
+				retryOrFail(connection, exchange, new IOException(
+						"Connection closed"));
+				return;
+			}
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+		private void handle(SelectionKey key) {
+			Connection connection = (Connection) key.attachment();
+			if (connection.closed) {
+				return;
+			}
+			try {
+				if (!key.isValid()) {
+					throw new IOException("Connection closed");
+				}
+				if (key.isConnectable()) {
+					if (connection.channel.finishConnect()) {
+						key.interestOps(SelectionKey.OP_WRITE);
+					}
+					// Otherwise still connecting, wait for OP_CONNECT again.
+				} else if (key.isWritable()) {
+					write(connection, key);
+				} else if (key.isReadable()) {
+					read(connection);
+				}
+			} catch (IOException e) {
+				Exchange exchange = connection.exchange;
+				close(connection);
+				if (null != exchange) {
+					retryOrFail(connection, exchange, e);
+				}
+			} catch (RuntimeException e) {
+				// For example a cancelled key, or a bug in the parsing:
+				// fail only this exchange, the others go on.
+				Log.d(TAG, "Connection failed: " + e);
+				Exchange exchange = connection.exchange;
+				close(connection);
+				if (null != exchange) {
+					fail(exchange, new IOException(e.toString()));
+				}
+			}
+		}
+
+		private void write(Connection connection, SelectionKey key)
+				throws IOException {
+			ByteBuffer output = connection.exchange.output;
+			connection.channel.write(output);
+			if (!output.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void read(Connection connection) throws IOException {
+			readBuffer.clear();
+			int count = connection.channel.read(readBuffer);
+			if (null == connection.exchange) {
+				// The server closed an idle connection, or sent garbage.
+				close(connection);
+				return;
+			}
+			ResponseParser parser = connection.parser;
+			boolean done = false;
+			if (count < 0) {
+				done = parser.closed();
+				if (!done) {
+					throw new IOException("Connection closed by the server");
+				}
+			} else {
+				readBuffer.flip();
+				done = parser.consume(readBuffer);
+			}
+			if (done) {
+				Exchange exchange = connection.exchange;
+				connection.exchange = null;
+				connection.parser = null;
+				coding.responseArrived(exchange.route,
+						parser.getContentEncoding(), parser.getStatusCode(),
+						exchange.compressed);
+				complete(exchange, parser.getStatusCode(),
+						parser.getContentEncoding(), parser.getBody());
+				if (parser.isKeepAlive() && count >= 0) {
+					release(connection);
+				} else {
+					close(connection);
+				}
+			}
+		}
+
+		/**
+		 * Gives the connection to the next waiting exchange, or puts it to
+		 * the idle connections.
+		 */
+		private void release(Connection connection) {
+			LinkedList<Exchange> queue = waiting.get(connection.route);
+			if (null != queue && !queue.isEmpty()) {
+				connection.reused = true;
+				begin(connection, queue.removeFirst());
+				return;
+			}
+			SelectionKey key = connection.channel.keyFor(selector);
+			if (null != key && key.isValid()) {
+				// Notice if the server closes the idle connection.
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			connection.idleSince = System.currentTimeMillis();
+			LinkedList<Connection> free = idle.get(connection.route);
+			if (null == free) {
+				free = new LinkedList<Connection>();
+				idle.put(connection.route, free);
+			}
+			free.addLast(connection);
+		}
+
+		/**
+		 * Closes the connection. A waiting exchange to the same server may
+		 * then open a new connection.
+		 */
+		private void close(Connection connection) {
+			if (connection.closed) {
+				return;
+			}
+			connection.closed = true;
+			closeQuietly(connection.channel);
+			LinkedList<Connection> free = idle.get(connection.route);
+			if (null != free) {
+				free.remove(connection);
+			}
+			Integer count = open.get(connection.route);
+			if (null != count) {
+				if (count <= 1) {
+					open.remove(connection.route);
+				} else {
+					open.put(connection.route, count - 1);
+				}
+			}
+			connection.exchange = null;
+			LinkedList<Exchange> queue = waiting.get(connection.route);
+			if (running && null != queue && !queue.isEmpty()) {
+				connect(queue.removeFirst());
+			}
+		}
+
+		/**
+		 * A keep-alive connection may have been closed by the server just
+		 * when a request was sent. Such a request is sent once again on a new
+		 * connection.
+		 */
+		private void retryOrFail(Connection connection, Exchange exchange,
+				IOException e) {
+			if (running && connection.reused && !exchange.retried
+					&& (null == connection.parser || !connection.parser.started)) {
+				Log.d(TAG, "Stale connection, retrying");
+				exchange.retried = true;
+				exchange.output.rewind();
+				dispatch(exchange);
+			} else {
+				fail(exchange, e);
+			}
+		}
+
+		private void closeIdleConnections() {
+			long now = System.currentTimeMillis();
+			List<Connection> expired = new ArrayList<Connection>();
+			for (LinkedList<Connection> free : idle.values()) {
+				for (Connection connection : free) {
+					if (now - connection.idleSince >= idleTimeout) {
+						expired.add(connection);
+					}
+				}
+			}
+			for (Connection connection : expired) {
+				close(connection);
+			}
+		}
+
+		/**
+		 * Fails the exchanges whose deadline has passed before the response
+		 * started, and the ones whose connection could not be opened in time.
+		 */
+		private void expireExchanges() {
+			long now = System.currentTimeMillis();
+			List<Connection> late = new ArrayList<Connection>();
+			for (SelectionKey key : selector.keys()) {
+				Connection connection = (Connection) key.attachment();
+				Exchange exchange = connection.exchange;
+				if (null == exchange || connection.closed
+						|| (null != connection.parser && connection.parser.started)) {
+					continue;
+				}
+				if (isExpired(exchange, now)
+						|| (connectTimeout > 0
+								&& !connection.channel.isConnected() && now
+								- connection.connectStarted >= connectTimeout)) {
+					late.add(connection);
+				}
+			}
+			for (Connection connection : late) {
+				Exchange exchange = connection.exchange;
+				boolean connected = connection.channel.isConnected();
+				close(connection);
+				fail(exchange, new IOException(connected ? "Deadline passed"
+						: "Connect timed out"));
+			}
+			for (LinkedList<Exchange> queue : waiting.values()) {
+				Iterator<Exchange> iterator = queue.iterator();
+				while (iterator.hasNext()) {
+					Exchange exchange = iterator.next();
+					if (isExpired(exchange, now)) {
+						iterator.remove();
+						fail(exchange, new IOException("Deadline passed"));
+					}
+				}
+			}
+		}
+
+		private boolean isExpired(Exchange exchange, long now) {
+			long deadline = exchange.request.getDeadline();
+			return deadline > 0 && now >= deadline;
+		}
+
+		private void closeAll() {
+			running = false;
+			for (SelectionKey key : selector.keys()) {
+				Connection connection = (Connection) key.attachment();
+				closeQuietly(connection.channel);
+				if (null != connection.exchange) {
+					fail(connection.exchange, new IOException(
+							"Transport shut down"));
+					connection.exchange = null;
+				}
+			}
+			for (LinkedList<Exchange> queue : waiting.values()) {
+				for (Exchange exchange : queue) {
+					fail(exchange, new IOException("Transport shut down"));
+				}
+			}
+			Exchange exchange = submitted.poll();
+			while (null != exchange) {
+				fail(exchange, new IOException("Transport shut down"));
+				exchange = submitted.poll();
+			}
+			waiting.clear();
+			idle.clear();
+			open.clear();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				Log.d(TAG, "Could not close the selector");
+			}
+		}
+
+		private void complete(final Exchange exchange, final int statusCode,
+				final String encoding, final byte[] body) {
+			handlers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						InputStream content = null;
+						try {
+							// Decompressed while the handler reads it.
+							content = OHAPContentCoding.decode(encoding,
+									new ByteArrayInputStream(body));
+						} catch (IOException e) {
+							exchange.handler.requestFailed(e);
+							return;
+						}
+						exchange.handler.responseArrived(statusCode, content);
+					} catch (InterruptedException e) {
+						Log.d(TAG, "Interrupted handling a response");
+					}
+				}
+			});
+		}
+
+		private void fail(final Exchange exchange, final IOException e) {
+			Log.d(TAG, "Request failed: " + e.getMessage());
+			handlers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						exchange.handler.requestFailed(e);
+					} catch (InterruptedException e1) {
+						Log.d(TAG, "Interrupted handling a failure");
+					}
+				}
+			});
+		}
+
+		private void closeQuietly(SocketChannel channel) {
+			if (null != channel) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					Log.d(TAG, "Could not close a connection");
+				}
+			}
+		}
+	}
+
+}
@@ -1,16 +1,19 @@
 package fi.oulu.tol.group19project.ohap;
 
-import org.json.JSONArray;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import fi.oulu.tol.group19project.model.AbstractDevice;
 import fi.oulu.tol.group19project.model.ConcreteDevice;
 import fi.oulu.tol.group19project.model.DeviceContainer;
-import fi.oulu.tol.group19project.model.ConcreteDevice.ValueType;
-
+import fi.oulu.tol.group19project.model.LazyDeviceContainer;
 
+import android.location.Location;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 /*
@@ -86,11 +89,44 @@ import android.util.Log;
 
  */
 
+/**
+ * Parses the OHAP JSON into the device model in one pass, with the streaming
+ * {@link JsonReader}. The devices are created straight from the tokens, so no
+ * JSON object tree is built in between and the memory needed is only that of
+ * the devices.
+ * <p>
+ * 
+ * The keys of the devices are <code>type:id</code>, where type is container,
+ * sensor or actuator. Other keys are skipped, as are the unknown properties
+ * of the devices. The properties of a container may come before or after its
+ * child devices.
+ * <p>
+ * 
+ * A {@link Listener} given to {@link #parse(Reader, Listener)} is told of
+ * each child of the top level container as soon as the child has been parsed,
+ * so that the rooms of a big home can be shown while the rest of the JSON is
+ * still being read.
+ * <p>
+ * 
+ * {@link #update(Reader, DeviceContainer)} applies a change, like a LISTEN
+ * notification, to an existing model in place: the devices of the JSON are
+ * looked up from the model by their ids, and only their properties in the
+ * JSON are set.
+ * <p>
+ * 
+ * The device keys are classified with {@link OHAPDeviceKeys}, which the
+ * parser keeps, so the ids of the devices are shared between the models
+ * parsed with the same parser.
+ * <p>
+ * 
+ * In the lazy mode, see {@link #setLazy(boolean)}, a JSON string is parsed
+ * into {@link LazyDeviceContainer}s. Only the properties of a container are
+ * parsed; the container keeps the place of its JSON in the string, and its
+ * children are parsed when they are first needed. The string is kept in
+ * memory until all the containers have been loaded.
+ */
 public class OHAPParser {
 	private final static String TAG = "DeviceParser";
-	private final static String CONTAINER = "container";
-	private final static String SENSOR = "sensor";
-	private final static String ACTUATOR = "actuator";
 
 	private final static String NAME = "name";
 	private final static String DESCRIPTION = "description";
@@ -104,239 +140,762 @@ public class OHAPParser {
 	private final static String RANGE = "range";
 	private final static String UNIT = "unit";
 	private final static String UNITABBREVIATION = "unit-abbreviation";
+	private final static String BINARY = "binary";
+	private final static String LOCATION_PROVIDER = "OHAP";
 
-	public AbstractDevice parseString(String content) throws JSONException {
-		Log.d(TAG, "Starting to parse the String...");
-		JSONObject object = (JSONObject) new JSONTokener(content).nextValue();
-		AbstractDevice ad = handleDevice(null, object);
-		Log.d(TAG, "...parsed the input string.");
-		return ad;
+	/**
+	 * The properties of a sensor or actuator, collected while reading it.
+	 */
+	private static class DeviceData {
+		String name = null;
+		String description = null;
+		Location location = null;
+		ConcreteDevice.ValueType valueType = null;
+		Double value = null;
+		Double minValue = null;
+		Double maxValue = null;
+		String unit = null;
+		String unitAbbreviation = null;
 	}
 
-	private AbstractDevice handleDevice(AbstractDevice parent, JSONObject object)
-			throws JSONException {
-		AbstractDevice newDevice = null;
-		JSONArray names = object.names();
-		Log.d(TAG, "-- In handleDevice");
-		if (null != parent) {
-			Log.d(TAG, "-- Parent is: " + parent.getName());
-		} else {
-			Log.d(TAG, "-- AbstractDevice has no parent.");
-		}
-		if (null != names) {
-			// Get the first name in the names array.
-			String deviceId = null;
-			for (int i = 0; i < names.length(); i++) {
-				deviceId = names.getString(i);
-				String elements[] = deviceId.split(":");
-				Log.d(TAG, "Check if this is a Device: " + deviceId);
-				if (elements[0].equalsIgnoreCase(CONTAINER)
-						|| elements[0].equalsIgnoreCase(SENSOR)
-						|| elements[0].equalsIgnoreCase(ACTUATOR)) {
-					JSONObject newObject = object.getJSONObject(deviceId);
-					Log.d(TAG, "Try to read the device in readDevice...");
-					newDevice = readDevice(elements[0], elements[1], newObject);
-					if (parent != null && newDevice != null) {
-						Log.d(TAG, "Adding a device to a parent device.");
-						parent.add(newDevice);
+	/** The device keys seen. */
+	private final OHAPDeviceKeys keys = new OHAPDeviceKeys();
+
+	/** Are the JSON strings parsed into lazy containers. */
+	private volatile boolean lazy = false;
+
+	/**
+	 * Goes through the members of a JSON object in a string, finding where
+	 * the value of each member starts and ends without parsing the value.
+	 */
+	private static class Members {
+		private final String json;
+		private int position;
+		/** The name of the current member. */
+		String name = null;
+		/** Where the value of the current member starts. */
+		int valueStart = 0;
+		/** Where the value of the current member ends, exclusive. */
+		int valueEnd = 0;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param json
+		 *            The JSON string.
+		 * @param start
+		 *            Where the object starts, whitespace allowed.
+		 */
+		Members(String json, int start) throws JSONException {
+			this.json = json;
+			position = skipSpace(json, start);
+			if (position >= json.length() || json.charAt(position) != '{') {
+				throw new JSONException("Expected an object at " + position);
+			}
+			position++;
+		}
+
+		/**
+		 * Moves to the next member.
+		 * 
+		 * @return false at the end of the object.
+		 */
+		boolean next() throws JSONException {
+			position = skipSpace(json, position);
+			if (position < json.length() && json.charAt(position) == ',') {
+				position = skipSpace(json, position + 1);
+			}
+			if (position >= json.length()) {
+				throw new JSONException("Unterminated object");
+			}
+			char c = json.charAt(position);
+			if (c == '}') {
+				position++;
+				return false;
+			} else if (c != '"') {
+				throw new JSONException("Expected a name at " + position);
+			}
+			int end = skipString(json, position);
+			name = json.substring(position + 1, end - 1);
+			position = skipSpace(json, end);
+			if (position >= json.length() || json.charAt(position) != ':') {
+				throw new JSONException("Expected ':' at " + position);
+			}
+			valueStart = skipSpace(json, position + 1);
+			valueEnd = skipValue(json, valueStart);
+			position = valueEnd;
+			return true;
+		}
+
+		/**
+		 * Gets a reader of the value of the current member.
+		 */
+		JsonReader value() {
+			JsonReader reader = new JsonReader(new StringReader(
+					json.substring(valueStart, valueEnd)));
+			// Strings and numbers are not valid JSON texts by themselves.
+			reader.setLenient(true);
+			return reader;
+		}
+
+		private static int skipSpace(String json, int index) {
+			while (index < json.length() && json.charAt(index) <= ' ') {
+				index++;
+			}
+			return index;
+		}
+
+		/**
+		 * @return Where the string starting at the index ends, exclusive.
+		 */
+		private static int skipString(String json, int index)
+				throws JSONException {
+			index++;
+			while (index < json.length()) {
+				char c = json.charAt(index);
+				if (c == '\\') {
+					index += 2;
+				} else if (c == '"') {
+					return index + 1;
+				} else {
+					index++;
+				}
+			}
+			throw new JSONException("Unterminated string");
+		}
+
+		/**
+		 * @return Where the value starting at the index ends, exclusive.
+		 */
+		private static int skipValue(String json, int index)
+				throws JSONException {
+			if (index >= json.length()) {
+				throw new JSONException("Expected a value");
+			}
+			char c = json.charAt(index);
+			if (c == '"') {
+				return skipString(json, index);
+			} else if (c == '{' || c == '[') {
+				int depth = 0;
+				while (index < json.length()) {
+					c = json.charAt(index);
+					if (c == '"') {
+						index = skipString(json, index);
+						continue;
+					} else if (c == '{' || c == '[') {
+						depth++;
+					} else if (c == '}' || c == ']') {
+						depth--;
+						if (depth == 0) {
+							return index + 1;
+						}
 					}
+					index++;
 				}
+				throw new JSONException("Unterminated value");
+			}
+			while (index < json.length()) {
+				c = json.charAt(index);
+				if (c == ',' || c == '}' || c == ']' || c <= ' ') {
+					break;
+				}
+				index++;
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Parses the children of a lazy container from its place in the JSON
+	 * string.
+	 */
+	private class SliceLoader implements LazyDeviceContainer.ChildLoader {
+		private final String json;
+		private final int start;
+
+		SliceLoader(String json, int start) {
+			this.json = json;
+			this.start = start;
+		}
+
+		@Override
+		public void loadChildren(LazyDeviceContainer container) {
+			try {
+				Members members = new Members(json, start);
+				while (members.next()) {
+					AbstractDevice child = readDevice(members);
+					if (null != child) {
+						container.add(child);
+					}
+				}
+			} catch (JSONException e) {
+				Log.d(TAG, "Could not load " + container.getId() + ": "
+						+ e.getMessage());
+			} catch (IOException e) {
+				Log.d(TAG, "Could not load " + container.getId() + ": "
+						+ e.getMessage());
+			} catch (IllegalStateException e) {
+				Log.d(TAG, "Could not load " + container.getId() + ": "
+						+ e.getMessage());
+			} catch (NumberFormatException e) {
+				Log.d(TAG, "Could not load " + container.getId() + ": "
+						+ e.getMessage());
 			}
 		}
-		// If there was no parent (parsing started from top level)
-		// make this newly created person the parent.
-		// Return parent to caller.
-		if (parent == null)
-			parent = newDevice;
-		return parent;
 	}
 
-	private AbstractDevice readDevice(String deviceContainerType,
-			String deviceContainerId, JSONObject object) throws JSONException {
+	/**
+	 * Sets the JSON strings to be parsed into lazy containers, whose children
+	 * are parsed when first needed. Applies to
+	 * {@link #parseString(String)}; a reader is always parsed fully.
+	 * 
+	 * @param lazy
+	 *            true for the lazy mode.
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Checks if the JSON strings are parsed into lazy containers.
+	 * 
+	 * @return true in the lazy mode.
+	 */
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * Notified of the children of the top level container while the parsing
+	 * goes on.
+	 */
+	public interface Listener {
+		/**
+		 * Called in the parsing thread when a child of the top level
+		 * container has been parsed, with all its own children, and added to
+		 * the container. The parser does not touch the child after this.
+		 * 
+		 * @param top
+		 *            The top level container, still being parsed.
+		 * @param device
+		 *            The parsed child.
+		 */
+		public void deviceParsed(DeviceContainer top, AbstractDevice device);
+	}
+
+	/**
+	 * Parses the JSON string.
+	 * 
+	 * @param content
+	 *            The JSON from the server.
+	 * @return The top level device, null if there was none.
+	 * @throws JSONException
+	 *             If the JSON is not valid.
+	 */
+	public AbstractDevice parseString(String content) throws JSONException {
+		if (lazy) {
+			return parseLazily(content);
+		}
+		return parse(new StringReader(content));
+	}
 
-		AbstractDevice thisDevice = null;
+	/**
+	 * Parses the top level device of the JSON string, leaving the children
+	 * of the containers to be parsed when they are first needed.
+	 */
+	private AbstractDevice parseLazily(String content) throws JSONException {
+		Log.d(TAG, "Starting to parse lazily...");
+		AbstractDevice top = null;
+		try {
+			Members members = new Members(content, 0);
+			while (members.next()) {
+				AbstractDevice device = readDevice(members);
+				if (null != device) {
+					top = device;
+				}
+			}
+		} catch (IOException e) {
+			throw new JSONException("Invalid JSON: " + e.getMessage());
+		} catch (IllegalStateException e) {
+			throw new JSONException("Invalid JSON structure: " + e.getMessage());
+		} catch (NumberFormatException e) {
+			throw new JSONException("Invalid number: " + e.getMessage());
+		}
+		Log.d(TAG, "...parsed the top level.");
+		return top;
+	}
 
-		// Check if this object has names
-		Log.d(TAG, "-- In readDevice");
+	/**
+	 * Reads the current member, if it is a device. A container is read as a
+	 * lazy container.
+	 * 
+	 * @return The device, null if the member is not a device.
+	 */
+	private AbstractDevice readDevice(Members members) throws IOException,
+			JSONException {
+		OHAPDeviceKeys.Key key = keys.get(members.name);
+		if (null == key) {
+			return null;
+		}
+		if (key.type == AbstractDevice.Type.CONTAINER) {
+			return readLazyContainer(members.json, members.valueStart, key.id);
+		}
+		return readConcreteDevice(members.value(), key.type, key.id);
+	}
 
-		// Object has names so initialize data variables:
+	/**
+	 * Reads the properties of a container, and leaves its children to be
+	 * parsed by a {@link SliceLoader}.
+	 */
+	private LazyDeviceContainer readLazyContainer(String json, int start,
+			String id) throws IOException, JSONException {
 		String name = null;
 		String description = null;
-		Double location = null;
-		Double latitude = null;
-		Double longitude = null;
-		Double altitude = null;
-		String state = null;
-		String type = null;
-		Double[] range = null;
-		String unit = null;
-		String unitabbreviation = null;
-		Double value = null;
+		Location location = null;
+		boolean children = false;
+		Members members = new Members(json, start);
+		while (members.next()) {
+			if (members.name.equals(NAME)) {
+				name = readString(members.value());
+			} else if (members.name.equals(DESCRIPTION)) {
+				description = readString(members.value());
+			} else if (members.name.equals(LOCATION)) {
+				location = readLocation(members.value());
+			} else if (!children && null != keys.get(members.name)) {
+				children = true;
+			}
+		}
+		return new LazyDeviceContainer(null, id, name, description, location,
+				children ? new SliceLoader(json, start) : null);
+	}
 
-		ConcreteDevice.ValueType valueType = ConcreteDevice.ValueType.BINARY;
-		Double minValue = null;
-		Double maxValue = null;
+	/**
+	 * Parses the JSON from the reader.
+	 * 
+	 * @param in
+	 *            The JSON from the server.
+	 * @return The top level device, null if there was none. If there are many,
+	 *         the last one.
+	 * @throws JSONException
+	 *             If the JSON is not valid or could not be read.
+	 */
+	public AbstractDevice parse(Reader in) throws JSONException {
+		return parse(in, null);
+	}
 
-		JSONObject stateObject = object.optJSONObject("state");
-		if (null != stateObject) {
-			// We have the state structure there since stateObject is not null.
-			Object obj = stateObject.opt("value");
-			if (null != obj) {
-				// OK, we got the "value" in the "state" too. Alright!
-				if (obj instanceof Boolean) {
-					// OK, value was boolean, either true or false. Handle that!
-					Log.d(TAG, "Boolean value: " + obj);
-					boolean boolValue = (Boolean) obj;
-					valueType = ConcreteDevice.ValueType.BINARY;
-					if (boolValue) {
-						value = 1.0;
-					} else {
-						value = 0.0;
+	/**
+	 * Parses the JSON from the reader, telling the listener of each child of
+	 * the top level container when it has been parsed.
+	 * 
+	 * @param in
+	 *            The JSON from the server.
+	 * @param listener
+	 *            The listener, may be null.
+	 * @return The top level device, null if there was none. If there are many,
+	 *         the last one.
+	 * @throws JSONException
+	 *             If the JSON is not valid or could not be read.
+	 */
+	public AbstractDevice parse(Reader in, Listener listener)
+			throws JSONException {
+		Log.d(TAG, "Starting to parse...");
+		JsonReader reader = new JsonReader(in);
+		AbstractDevice top = null;
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				AbstractDevice device = readDevice(reader,
+						keys.get(reader.nextName()), listener);
+				if (null != device) {
+					top = device;
+				}
+			}
+			reader.endObject();
+		} catch (IOException e) {
+			throw new JSONException("Invalid JSON: " + e.getMessage());
+		} catch (IllegalStateException e) {
+			throw new JSONException("Invalid JSON structure: " + e.getMessage());
+		} catch (NumberFormatException e) {
+			throw new JSONException("Invalid number: " + e.getMessage());
+		}
+		Log.d(TAG, "...parsed.");
+		return top;
+	}
+
+	/**
+	 * Applies the JSON string to the model in place, see
+	 * {@link #update(Reader, DeviceContainer)}.
+	 * 
+	 * @param content
+	 *            The JSON from the server.
+	 * @param model
+	 *            The model to update.
+	 * @return The number of the devices of the model updated.
+	 * @throws JSONException
+	 *             If the JSON is not valid.
+	 */
+	public int updateString(String content, DeviceContainer model)
+			throws JSONException {
+		return update(new StringReader(content), model);
+	}
+
+	/**
+	 * Applies the JSON from the reader to the model in place. A top level key
+	 * is looked up from the whole model, as the JSON may start from any
+	 * device, and the keys inside it from the children of the device found.
+	 * The properties in the JSON are set to the devices of the model; no
+	 * devices are created for the devices the model already has, so the work
+	 * depends on the size of the JSON and not on the size of the model.
+	 * <p>
+	 * 
+	 * A device not yet in its container is parsed and added to the container.
+	 * A top level device not in the model at all is skipped, as there is no
+	 * place for it. The model must not be used by other threads meanwhile.
+	 * 
+	 * @param in
+	 *            The JSON from the server.
+	 * @param model
+	 *            The model to update.
+	 * @return The number of the devices of the model updated.
+	 * @throws JSONException
+	 *             If the JSON is not valid or could not be read. The devices
+	 *             before the error have been updated.
+	 */
+	public int update(Reader in, DeviceContainer model) throws JSONException {
+		JsonReader reader = new JsonReader(in);
+		int count = 0;
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				OHAPDeviceKeys.Key key = keys.get(name);
+				AbstractDevice device = null == key ? null : model
+						.findDevice(key.id);
+				if (null != device) {
+					count += updateDevice(reader, key, device);
+				} else {
+					Log.d(TAG, "Not in the model: " + name);
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch (IOException e) {
+			throw new JSONException("Invalid JSON: " + e.getMessage());
+		} catch (IllegalStateException e) {
+			throw new JSONException("Invalid JSON structure: " + e.getMessage());
+		} catch (NumberFormatException e) {
+			throw new JSONException("Invalid number: " + e.getMessage());
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the value of the key into the device of the model with the id of
+	 * the key. The value is skipped if the device is of another kind.
+	 * 
+	 * @return The number of the devices updated.
+	 */
+	private int updateDevice(JsonReader reader, OHAPDeviceKeys.Key key,
+			AbstractDevice device) throws IOException {
+		boolean container = key.type == AbstractDevice.Type.CONTAINER;
+		if (container && device instanceof DeviceContainer) {
+			return updateContainer(reader, (DeviceContainer) device);
+		} else if (!container && device instanceof ConcreteDevice) {
+			updateConcreteDevice(reader, (ConcreteDevice) device);
+			return 1;
+		}
+		reader.skipValue();
+		return 0;
+	}
+
+	private int updateContainer(JsonReader reader, DeviceContainer container)
+			throws IOException {
+		int count = 1;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals(NAME)) {
+				String text = readString(reader);
+				if (null != text) {
+					container.setName(text);
+				}
+			} else if (name.equals(DESCRIPTION)) {
+				String text = readString(reader);
+				if (null != text) {
+					container.setDescription(text);
+				}
+			} else if (name.equals(LOCATION)) {
+				Location location = readLocation(reader);
+				if (null != location) {
+					container.setLocation(location);
+				}
+			} else {
+				OHAPDeviceKeys.Key key = keys.get(name);
+				AbstractDevice child = null == key ? null : container
+						.findChild(key.id);
+				if (null != child) {
+					count += updateDevice(reader, key, child);
+				} else {
+					child = readDevice(reader, key, null);
+					if (null != child) {
+						Log.d(TAG, "New device " + name + " in " + container.getId());
+						container.add(child);
 					}
-					minValue = 0.0;
-					maxValue = 1.0;
-				} else if (obj instanceof Double) {
-					// OK now we know "value" was decimal: "value" : 21.1 for
-					// example.
-					valueType = ConcreteDevice.ValueType.DECIMAL;
-					Log.d(TAG, "Decimal value information found on device");
-					double val = (Double) obj;
-					Log.d(TAG, "Value of state is: " + val);
-					value = Double.valueOf(val);
-					if (value == Double.NaN) {
-						value = null;
+				}
+			}
+		}
+		reader.endObject();
+		return count;
+	}
+
+	/**
+	 * Sets the properties found in the JSON to the device. The value type of
+	 * the device is not changed.
+	 */
+	private void updateConcreteDevice(JsonReader reader, ConcreteDevice device)
+			throws IOException {
+		DeviceData data = readDeviceData(reader);
+		if (null != data.name) {
+			device.setName(data.name);
+		}
+		if (null != data.description) {
+			device.setDescription(data.description);
+		}
+		if (null != data.location) {
+			device.setLocation(data.location);
+		}
+		if (null != data.value) {
+			device.setValue(data.value);
+		}
+		if (null != data.minValue) {
+			device.setMinValue(data.minValue);
+		}
+		if (null != data.maxValue) {
+			device.setMaxValue(data.maxValue);
+		}
+		if (null != data.unit) {
+			device.setUnit(data.unit);
+		}
+		if (null != data.unitAbbreviation) {
+			device.setUnitAbbreviation(data.unitAbbreviation);
+		}
+	}
+
+	/**
+	 * Reads the value of the key, if the key is a device.
+	 * 
+	 * @param key
+	 *            The classified key, null if the key is not a device.
+	 * @param listener
+	 *            Told of the children of a container, null if not at the top
+	 *            level.
+	 * @return The device, null if the key is not a device; then the value has
+	 *         been skipped.
+	 */
+	private AbstractDevice readDevice(JsonReader reader,
+			OHAPDeviceKeys.Key key, Listener listener) throws IOException {
+		if (null == key) {
+			reader.skipValue();
+			return null;
+		}
+		if (key.type == AbstractDevice.Type.CONTAINER) {
+			return readContainer(reader, key.id, listener);
+		}
+		return readConcreteDevice(reader, key.type, key.id);
+	}
+
+	private DeviceContainer readContainer(JsonReader reader, String id,
+			Listener listener) throws IOException {
+		DeviceContainer container = new DeviceContainer(null, id, null, null,
+				null);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals(NAME)) {
+				container.setName(readString(reader));
+			} else if (name.equals(DESCRIPTION)) {
+				container.setDescription(readString(reader));
+			} else if (name.equals(LOCATION)) {
+				container.setLocation(readLocation(reader));
+			} else {
+				AbstractDevice child = readDevice(reader, keys.get(name), null);
+				if (null != child) {
+					container.add(child);
+					if (null != listener) {
+						listener.deviceParsed(container, child);
 					}
-					// Let's check if we got the range array:
-					JSONArray array = stateObject.optJSONArray("range");
-					if (null != array) {
-						// YES!!! Range array is THERE!!!
-						val = array.getDouble(0);
-						minValue = Double.valueOf(val);
-						if (minValue == Double.NaN) {
-							minValue = null;
-						}
-						val = array.getDouble(1);
-						maxValue = Double.valueOf(val);
-						if (maxValue == Double.NaN) {
-							maxValue = null;
-						}
+				}
+			}
+		}
+		reader.endObject();
+		return container;
+	}
+
+	private ConcreteDevice readConcreteDevice(JsonReader reader,
+			AbstractDevice.Type type, String id) throws IOException {
+		DeviceData data = readDeviceData(reader);
+		if (null == data.valueType) {
+			data.valueType = ConcreteDevice.ValueType.BINARY;
+		}
+		ConcreteDevice device = new ConcreteDevice(null, type, id, data.name,
+				data.description, data.location, data.valueType, data.value,
+				data.minValue, data.maxValue, data.unit);
+		device.setUnitAbbreviation(data.unitAbbreviation);
+		return device;
+	}
+
+	/**
+	 * Reads the properties of a sensor or an actuator.
+	 * 
+	 * @return The properties, null for those not in the JSON.
+	 */
+	private DeviceData readDeviceData(JsonReader reader) throws IOException {
+		DeviceData data = new DeviceData();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals(NAME)) {
+				data.name = readString(reader);
+			} else if (name.equals(DESCRIPTION)) {
+				data.description = readString(reader);
+			} else if (name.equals(LOCATION)) {
+				data.location = readLocation(reader);
+			} else if (name.equals(STATE)) {
+				readState(reader, data);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return data;
+	}
+
+	/**
+	 * Reads the state object: the type, value, range and unit of the value.
+	 * A binary value is 0.0 or 1.0, with the range from 0 to 1.
+	 */
+	private void readState(JsonReader reader, DeviceData data)
+			throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (name.equals(TYPE)) {
+				String type = readString(reader);
+				if (null != type) {
+					data.valueType = type.equalsIgnoreCase(BINARY) ? ConcreteDevice.ValueType.BINARY
+							: ConcreteDevice.ValueType.DECIMAL;
+				}
+			} else if (name.equals(VALUE)) {
+				JsonToken token = reader.peek();
+				if (token == JsonToken.BOOLEAN) {
+					data.value = reader.nextBoolean() ? 1.0 : 0.0;
+					data.valueType = ConcreteDevice.ValueType.BINARY;
+				} else if (token == JsonToken.NUMBER) {
+					data.value = readNumber(reader);
+					if (null == data.valueType) {
+						data.valueType = ConcreteDevice.ValueType.DECIMAL;
 					}
 				} else {
-					Log.d(TAG, "Something odd found!?: " + obj);
+					Log.d(TAG, "Something odd found as a value: " + token);
+					reader.skipValue();
+				}
+			} else if (name.equals(RANGE)
+					&& reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				if (reader.hasNext()) {
+					data.minValue = readNumber(reader);
+				}
+				if (reader.hasNext()) {
+					data.maxValue = readNumber(reader);
 				}
+				while (reader.hasNext()) {
+					reader.skipValue();
+				}
+				reader.endArray();
+			} else if (name.equals(UNIT)) {
+				data.unit = readString(reader);
+			} else if (name.equals(UNITABBREVIATION)) {
+				data.unitAbbreviation = readString(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (data.valueType == ConcreteDevice.ValueType.BINARY) {
+			data.minValue = 0.0;
+			data.maxValue = 1.0;
+		}
+	}
+
+	/**
+	 * Reads the location object.
+	 * 
+	 * @return The location, null if it had no coordinates.
+	 */
+	private Location readLocation(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return null;
+		}
+		Location location = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			Double coordinate = null;
+			if (name.equals(LATITUDE) || name.equals(LONGITUDE)
+					|| name.equals(ALTITUDE)) {
+				coordinate = readNumber(reader);
+			} else {
+				reader.skipValue();
+			}
+			if (null == coordinate) {
+				continue;
 			}
-			// Then the unit of the value:
-			unit = stateObject.optString("unit");
-			if (unit.length() == 0) {
-				unit = null;
+			if (null == location) {
+				location = new Location(LOCATION_PROVIDER);
 			}
-			unitabbreviation = stateObject.optString("unit-abbreviation");
-			if (unitabbreviation.length() == 0) {
-				unitabbreviation = null;
+			if (name.equals(LATITUDE)) {
+				location.setLatitude(coordinate);
+			} else if (name.equals(LONGITUDE)) {
+				location.setLongitude(coordinate);
+			} else {
+				location.setAltitude(coordinate);
 			}
-		} else {
-			Log.d(TAG, "No state information in device");
-		}
-        JSONObject locationObject = object.optJSONObject("location");
-        if(locationObject != null){
-            Object obj = locationObject.opt("longitude");
-            if (null != obj) {
-                if (obj instanceof Double) {
-                    // OK now we know "value" was decimal: "value" : 21.1 for
-                    // example.
-                    valueType = ConcreteDevice.ValueType.DECIMAL;
-                    Log.d(TAG, "Decimal value information found on device");
-                    double val = (Double) obj;
-                    Log.d(TAG, "Value of state is: " + val);
-                    longitude  = Double.valueOf(val);
-                    if (longitude == Double.NaN) {
-                        longitude = null;
-                    }
-                }
-            }
-            obj = null;
-             obj = locationObject.opt("latitude");
-            if (null != obj) {
-                if (obj instanceof Double) {
-                    // OK now we know "value" was decimal: "value" : 21.1 for
-                    // example.
-                    valueType = ConcreteDevice.ValueType.DECIMAL;
-                    Log.d(TAG, "Decimal value information found on device");
-                    double val = (Double) obj;
-                    Log.d(TAG, "Value of state is: " + val);
-                    latitude  = Double.valueOf(val);
-                    if (latitude == Double.NaN) {
-                        latitude = null;
-                    }
-                }
-            }
-            obj = null;
-            obj = locationObject.opt("altitude");
-            if (null != obj) {
-                if (obj instanceof Double) {
-                    // OK now we know "value" was decimal: "value" : 21.1 for
-                    // example.
-                    valueType = ConcreteDevice.ValueType.DECIMAL;
-                    Log.d(TAG, "Decimal value information found on device");
-                    double val = (Double) obj;
-                    Log.d(TAG, "Value of state is: " + val);
-                    altitude  = Double.valueOf(val);
-                    if (altitude == Double.NaN) {
-                        altitude = null;
-                    }
-                }
-            }
-        }
-
-		if (deviceContainerType.equalsIgnoreCase(CONTAINER)) {
-            // JSONObject containerObject = object.optJSONObject("name");
-            type = "container" ;
-            Object obj = object.opt("name");
-            if(obj instanceof String){
-                name = (String)  obj ;
-            }
-            // voi uudelleen käyttää mutten kehtaa
-            Object obj2 = object.opt("description");
-            if(obj instanceof String){
-                description = (String)  obj ;
-            }
-
-
-            Log.d(TAG, "Creating a parent: " + name
-					+ " and trying to parse children");
-			thisDevice = new DeviceContainer(null, name, null, description,
-					null);
-			handleDevice(thisDevice, object);
-		} else if (deviceContainerType.equalsIgnoreCase(SENSOR)
-				|| deviceContainerType.equalsIgnoreCase(ACTUATOR)) {
-            if(deviceContainerType.equalsIgnoreCase(SENSOR)){
-                type = "sensor" ;
-            }
-            if (deviceContainerType.equalsIgnoreCase(ACTUATOR)){
-                type = "actuator" ;
-            }
-
-            Object obj = object.opt("name");
-            if(obj instanceof String){
-                name = (String)  obj ;
-            }
-            // voi uudelleen käyttää mutten kehtaa
-            Object obj2 = object.opt("description");
-            if(obj instanceof String){
-                description = (String)  obj ;
-            }
-
-            Log.d(TAG, "Creating a child: " + name);
-
-			thisDevice = new ConcreteDevice(null, null, name, null,
-					description, null, null, value, value, value,
-					unitabbreviation);
-		} else {
-			// Not supported.
-			throw new JSONException("Invalid JSON structure");
-		}
-
-		return thisDevice;
+		}
+		reader.endObject();
+		return location;
+	}
+
+	/**
+	 * Reads a string.
+	 * 
+	 * @return The string, null if the value was not a string or was empty.
+	 */
+	private String readString(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.STRING) {
+			reader.skipValue();
+			return null;
+		}
+		String text = reader.nextString();
+		return text.length() == 0 ? null : text;
+	}
+
+	/**
+	 * Reads a number.
+	 * 
+	 * @return The number, null if the value was not a number or was NaN.
+	 */
+	private Double readNumber(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.NUMBER) {
+			reader.skipValue();
+			return null;
+		}
+		double number = reader.nextDouble();
+		return Double.isNaN(number) ? null : Double.valueOf(number);
 	}
 
 }
@@ -32,11 +32,11 @@ import fi.oulu.tol.group19project.model.Visitor;
  */
 public class OHAPPathBuilder implements Visitor {
 
-	private static final String STATE = null;
-	private static final String VALUE = null;
-	private static final String ACTUATOR = null;
-	private static final String SENSOR = null;
-	private static final String CONTAINER = null;
+	private static final String STATE = "state";
+	private static final String VALUE = "value";
+	private static final String ACTUATOR = "actuator";
+	private static final String SENSOR = "sensor";
+	private static final String CONTAINER = "container";
 	/** The buffer used in building the path string. */
 	private StringBuffer path = null;
 	/** Should the value of a concrete object put in the path or not. */
@@ -65,6 +65,79 @@ public class OHAPPathBuilder implements Visitor {
 		return path.toString();
 	}
 
+	/**
+	 * Gets the device path part of a path created with a value. For example,
+	 * for the path <code>/container:room-1/actuator:light-1/state/value true</code>
+	 * returns <code>/container:room-1/actuator:light-1/state/value</code>.
+	 * Paths without a value are returned as such.
+	 * <p>
+	 * Two SET paths with the same device path change the same property of the
+	 * same device, so only the latter one needs to be sent.
+	 *
+	 * @param pathWithValue
+	 *            The path, possibly with a value.
+	 * @return The path without the value.
+	 */
+	public static String devicePathOf(String pathWithValue) {
+		int valueStarts = pathWithValue.indexOf(' ');
+		if (valueStarts < 0) {
+			return pathWithValue;
+		}
+		return pathWithValue.substring(0, valueStarts);
+	}
+
+	/**
+	 * Removes the trailing slash of the path, except from the root. An empty
+	 * path is the root.
+	 *
+	 * @param path
+	 *            The path, may be null.
+	 * @return The normalized path.
+	 */
+	public static String normalizePath(String path) {
+		if (null == path || path.length() == 0) {
+			return "/";
+		}
+		if (path.length() > 1 && path.endsWith("/")) {
+			return path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	/**
+	 * Gets the parent of a normalized path. For example, for
+	 * <code>/container:room-1/actuator:light-1</code> returns
+	 * <code>/container:room-1</code>.
+	 *
+	 * @param path
+	 *            The normalized path.
+	 * @return The parent path, null for the root.
+	 */
+	public static String parentPathOf(String path) {
+		if (path.equals("/")) {
+			return null;
+		}
+		int slash = path.lastIndexOf('/');
+		return slash <= 0 ? "/" : path.substring(0, slash);
+	}
+
+	/**
+	 * Checks if the normalized path is the other path or contains it.
+	 *
+	 * @param ancestor
+	 *            The normalized path which may contain the other.
+	 * @param path
+	 *            The normalized path.
+	 * @return true if the path is the ancestor or under it.
+	 */
+	public static boolean isWithin(String ancestor, String path) {
+		if (ancestor.equals("/") || ancestor.equals(path)) {
+			return true;
+		}
+		return path.startsWith(ancestor) && path.length() > ancestor.length()
+				&& path.charAt(ancestor.length()) == '/';
+	}
+
 	/**
 	 * Constructs a path in to the buffer, using the device's id and type
 	 * strings.
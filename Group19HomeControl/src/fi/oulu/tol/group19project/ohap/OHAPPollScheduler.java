@@ -0,0 +1,196 @@
+package fi.oulu.tol.group19project.ohap;
+
+/**
+ * Decides when the protocol sends the next empty request, the long poll
+ * waiting for changes from the server.
+ * <p>
+ *
+ * A server holding the poll open until something changes is polled again
+ * right away, as the server itself then limits the rate of the polls. A
+ * server answering the polls immediately with nothing is polled less and less
+ * often, up to the max poll interval, so an idle session does not flood the
+ * server. The observed rate of the changes limits this idle backoff: if
+ * changes arrive every few seconds, the polls are not delayed longer than
+ * that. Content from the server and commands from the client reset the
+ * backoff.
+ * <p>
+ *
+ * Each {@link OHAPSession} has a scheduler of its own. The polls are sent by
+ * the poll workers of the {@link OHAPFactory}, not the workers sending the
+ * commands, so a poll held open by the server never keeps a command waiting.
+ *
+ * @see OHAPConfiguration#setPollInterval(long, long)
+ */
+public class OHAPPollScheduler {
+
+	/**
+	 * A poll held open at least this long, in milliseconds, shows that the
+	 * server does long polling.
+	 */
+	public static final long HELD_POLL = 1000;
+
+	/** Weight of the newest observation in the averages. */
+	private static final double SMOOTHING = 0.25;
+
+	/**
+	 * Min first step in milliseconds of the idle backoff, also when there is
+	 * no min interval.
+	 */
+	private static final long MIN_BACKOFF = 50;
+
+	/** Min time in milliseconds between the starts of two polls. */
+	private final long minInterval;
+
+	/** Max time in milliseconds an idle session waits between polls. */
+	private final long maxInterval;
+
+	/** Number of the polls queued or waiting for the server. */
+	private int outstanding = 0;
+
+	/** When the latest poll was queued. */
+	private long lastQueued = 0;
+
+	/** When the latest poll finished. */
+	private long lastFinished = 0;
+
+	/** How long to wait after the latest poll finished. */
+	private long delay = 0;
+
+	/** Number of the polls in a row returned at once with nothing. */
+	private int idleStreak = 0;
+
+	/** Average time in milliseconds the server held the polls. */
+	private double averageHold = 0;
+
+	/** Average number of changes per second seen in the polls. */
+	private double eventRate = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param minInterval
+	 *            Min time in milliseconds between the starts of two polls.
+	 * @param maxInterval
+	 *            Max time in milliseconds an idle session waits between
+	 *            polls.
+	 */
+	public OHAPPollScheduler(long minInterval, long maxInterval) {
+		this.minInterval = minInterval;
+		this.maxInterval = Math.max(maxInterval, minInterval);
+	}
+
+	/**
+	 * Checks if a poll is queued or waiting for the server.
+	 *
+	 * @return true if no new poll is needed now.
+	 */
+	public synchronized boolean isPolling() {
+		return outstanding > 0;
+	}
+
+	/**
+	 * Gets the time until the next poll should be queued.
+	 *
+	 * @param now
+	 *            The current time in milliseconds.
+	 * @return The time in milliseconds, zero if the poll is due now.
+	 */
+	public synchronized long nextPollDelay(long now) {
+		long due = Math.max(lastQueued + minInterval, lastFinished + delay);
+		return Math.max(due - now, 0);
+	}
+
+	/**
+	 * Called by the protocol when it has queued a poll.
+	 *
+	 * @param now
+	 *            The current time in milliseconds.
+	 */
+	public synchronized void pollQueued(long now) {
+		outstanding++;
+		lastQueued = now;
+	}
+
+	/**
+	 * Called by the worker when a poll has finished. Adapts the delay before
+	 * the next poll to the behaviour of the server.
+	 *
+	 * @param held
+	 *            How long the server held the poll, in milliseconds.
+	 * @param events
+	 *            Number of the changes the server sent.
+	 * @param failed
+	 *            Did the poll fail.
+	 */
+	public synchronized void pollFinished(long held, int events, boolean failed) {
+		if (outstanding > 0) {
+			outstanding--;
+		}
+		lastFinished = System.currentTimeMillis();
+		averageHold += SMOOTHING * (held - averageHold);
+		long period = Math.max(held + delay, minInterval);
+		eventRate += SMOOTHING * (events * 1000.0 / period - eventRate);
+		if (!failed && (events > 0 || held >= HELD_POLL)) {
+			idleStreak = 0;
+			delay = 0;
+			return;
+		}
+		idleStreak++;
+		long base = Math.max(minInterval, MIN_BACKOFF);
+		delay = Math.min(base << Math.min(idleStreak, 16),
+				Math.max(maxInterval, base));
+		if (eventRate > 0) {
+			// Do not wait much longer than the changes usually take.
+			delay = Math.max(Math.min(delay, (long) (1000 / eventRate)), base);
+		}
+	}
+
+	/**
+	 * Called by the protocol when the client sends a command. The user is
+	 * active, so the idle backoff is reset.
+	 */
+	public synchronized void activity() {
+		idleStreak = 0;
+		delay = 0;
+	}
+
+	/**
+	 * Called by the protocol when it has removed polls from the poll queue.
+	 * They will not finish.
+	 *
+	 * @param count
+	 *            Number of the removed polls.
+	 */
+	public synchronized void pollsDropped(int count) {
+		outstanding = Math.max(outstanding - count, 0);
+	}
+
+	/**
+	 * Forgets the backoff of a session which has been lost or ended. A poll
+	 * still waiting for the server stays outstanding until it finishes, so
+	 * that a resumed session does not have two polls out.
+	 */
+	public synchronized void reset() {
+		idleStreak = 0;
+		delay = 0;
+	}
+
+	/**
+	 * Gets the average time the server has held the polls.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public synchronized long getAverageHold() {
+		return (long) averageHold;
+	}
+
+	/**
+	 * Gets the average rate of changes seen in the polls.
+	 *
+	 * @return Changes per second.
+	 */
+	public synchronized double getEventRate() {
+		return eventRate;
+	}
+
+}
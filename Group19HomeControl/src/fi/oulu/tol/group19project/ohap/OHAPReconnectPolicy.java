@@ -0,0 +1,153 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.Random;
+
+/**
+ * Tells the protocol how long to wait before trying to create the session
+ * again, when connecting to the server failed or the session was lost.
+ * <p>
+ *
+ * The delay grows exponentially with each failed attempt, from the initial
+ * delay up to the max delay. A random part of the delay (the jitter) is taken
+ * away, so that the tablets of a home do not all hit a restarted server at
+ * the same moment. After a successful connection, the attempts start from the
+ * beginning.
+ * <p>
+ *
+ * The policy is immutable; set it with
+ * {@link OHAPConfiguration#setReconnectPolicy(OHAPReconnectPolicy)}.
+ *
+ * @see OHAPBase
+ */
+public class OHAPReconnectPolicy {
+
+	/** Max attempts value meaning the protocol never gives up. */
+	public static final int UNLIMITED = -1;
+
+	/** Default delay in milliseconds before the first retry. */
+	public static final long DEFAULT_INITIAL_DELAY = 1000;
+
+	/** Default max delay in milliseconds between the attempts. */
+	public static final long DEFAULT_MAX_DELAY = 60000;
+
+	/** Default growth of the delay after each failed attempt. */
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+
+	/** Default share of the delay which is random. */
+	public static final double DEFAULT_JITTER = 0.5;
+
+	/** Delay in milliseconds before the first retry. */
+	private final long initialDelay;
+
+	/** Max delay in milliseconds between the attempts. */
+	private final long maxDelay;
+
+	/** The delay is multiplied by this after each failed attempt. */
+	private final double multiplier;
+
+	/**
+	 * Share of the delay, from 0 to 1, which is random. With 0.5, the delay
+	 * is between half and full of the exponential delay.
+	 */
+	private final double jitter;
+
+	/** How many times to retry, or {@link #UNLIMITED}. */
+	private final int maxAttempts;
+
+	/** For the jitter. */
+	private final Random random = new Random();
+
+	/**
+	 * Constructor, with the default values. The protocol never gives up.
+	 */
+	public OHAPReconnectPolicy() {
+		this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MULTIPLIER,
+				DEFAULT_JITTER, UNLIMITED);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param initialDelay
+	 *            Delay in milliseconds before the first retry.
+	 * @param maxDelay
+	 *            Max delay in milliseconds between the attempts.
+	 * @param multiplier
+	 *            Growth of the delay after each failed attempt, at least 1.
+	 * @param jitter
+	 *            Share of the delay which is random, from 0 to 1.
+	 * @param maxAttempts
+	 *            How many times to retry; 0 never retries, {@link #UNLIMITED}
+	 *            never gives up.
+	 */
+	public OHAPReconnectPolicy(long initialDelay, long maxDelay,
+			double multiplier, double jitter, int maxAttempts) {
+		this.initialDelay = Math.max(initialDelay, 0);
+		this.maxDelay = Math.max(maxDelay, this.initialDelay);
+		this.multiplier = Math.max(multiplier, 1.0);
+		this.jitter = Math.min(Math.max(jitter, 0.0), 1.0);
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Gets the delay before the next attempt.
+	 *
+	 * @param attempt
+	 *            How many attempts have failed before this, starting from 0.
+	 * @return The delay in milliseconds, or -1 if the protocol should give up.
+	 */
+	public long nextDelay(int attempt) {
+		if (maxAttempts != UNLIMITED && attempt >= maxAttempts) {
+			return -1;
+		}
+		double delay = Math.min(initialDelay * Math.pow(multiplier, attempt),
+				maxDelay);
+		return (long) (delay * (1.0 - jitter * random.nextDouble()));
+	}
+
+	/**
+	 * Gets the delay before the first retry.
+	 *
+	 * @return The delay in milliseconds.
+	 */
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	/**
+	 * Gets the max delay between the attempts.
+	 *
+	 * @return The delay in milliseconds.
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Gets the growth of the delay after each failed attempt.
+	 *
+	 * @return The multiplier.
+	 */
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	/**
+	 * Gets the share of the delay which is random.
+	 *
+	 * @return The jitter, from 0 to 1.
+	 */
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Gets how many times to retry.
+	 *
+	 * @return The max attempts, or {@link #UNLIMITED}.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+}
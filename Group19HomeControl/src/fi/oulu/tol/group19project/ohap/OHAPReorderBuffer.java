@@ -0,0 +1,156 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Passes the results of the requests of a session to the protocol in the
+ * order the requests were taken from the task queue.
+ * <p>
+ *
+ * With several workers, and with a non-blocking transport, the responses
+ * arrive in whatever order the server and the network happen to finish them.
+ * A state update should not be overtaken by an older one, though, so each
+ * request gets a sequence number when it is taken from the task queue (see
+ * {@link OHAPSession#requestStarted(boolean)}), and the results of a request
+ * are held here until the results of all the earlier requests have been
+ * released to the results queue.
+ * <p>
+ *
+ * Empty requests are not ordered: the server answers them only when something
+ * changes, so they would hold up everything after them. Their results are
+ * released at once.
+ * <p>
+ *
+ * The results queue is bounded, so putting to it may block. That is not
+ * done holding the lock of the buffer: the released events are queued here
+ * in order, and one worker at a time puts them to the results queue while
+ * the other workers go on.
+ *
+ * @see OHAPReply
+ */
+public class OHAPReorderBuffer {
+
+	private static final String TAG = "HCApp-OHAPReorderBuffer";
+
+	/** The queue where the results are released to. */
+	private final BlockingQueue<OHAPEvent> results;
+
+	/** The replies waiting for the earlier ones, by sequence number. */
+	private final Map<Integer, OHAPReply> waiting = new HashMap<Integer, OHAPReply>();
+
+	/** The sequence number of the next reply to release. */
+	private int next = 0;
+
+	/** The released events not yet put to the results queue, in order. */
+	private final LinkedList<OHAPEvent> ready = new LinkedList<OHAPEvent>();
+
+	/** Is a worker putting the ready events to the results queue. */
+	private boolean putting = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param results
+	 *            The queue where the results are released to.
+	 */
+	public OHAPReorderBuffer(BlockingQueue<OHAPEvent> results) {
+		this.results = results;
+	}
+
+	/**
+	 * Takes the reply of a finished request. Releases its results, and the
+	 * results of the replies which were waiting for it, if all the earlier requests
+	 * have finished. Otherwise the reply waits.
+	 *
+	 * @param reply
+	 *            The reply of the finished request.
+	 * @throws InterruptedException
+	 */
+	public void finished(OHAPReply reply) throws InterruptedException {
+		synchronized (this) {
+			if (reply.getSequence() == OHAPReply.UNORDERED) {
+				release(reply);
+			} else if (reply.getSequence() != next) {
+				Log.d(TAG, "Holding reply " + reply.getSequence()
+						+ ", waiting for " + next);
+				waiting.put(reply.getSequence(), reply);
+			} else {
+				release(reply);
+				next++;
+				OHAPReply following = waiting.remove(next);
+				while (null != following) {
+					release(following);
+					next++;
+					following = waiting.remove(next);
+				}
+			}
+			if (putting || ready.isEmpty()) {
+				// Another worker puts them, or nothing to put.
+				return;
+			}
+			putting = true;
+		}
+		putReady();
+	}
+
+	/**
+	 * Queues the results of the reply to be put to the results queue. Must
+	 * be called holding the lock.
+	 *
+	 * @param reply
+	 *            The reply to release.
+	 */
+	private void release(OHAPReply reply) {
+		ready.addAll(reply.getEvents());
+	}
+
+	/**
+	 * Puts the ready events to the results queue, until there are none left.
+	 * Called by the worker which set {@link #putting}.
+	 *
+	 * @throws InterruptedException
+	 */
+	private void putReady() throws InterruptedException {
+		boolean finished = false;
+		try {
+			while (true) {
+				OHAPEvent event = null;
+				synchronized (this) {
+					event = ready.poll();
+					if (null == event) {
+						putting = false;
+						finished = true;
+						return;
+					}
+				}
+				// If we are quitting, it's all the same to clear other
+				// results waiting to be handled.
+				if (event.getKind() == OHAPEvent.Kind.CLOSED) {
+					results.clear();
+				}
+				try {
+					results.put(event);
+				} catch (InterruptedException e) {
+					// Not lost; the next finished request puts it.
+					synchronized (this) {
+						ready.addFirst(event);
+					}
+					throw e;
+				}
+			}
+		} finally {
+			if (!finished) {
+				// Interrupted; the next finished request puts the rest.
+				synchronized (this) {
+					putting = false;
+				}
+			}
+		}
+	}
+
+}
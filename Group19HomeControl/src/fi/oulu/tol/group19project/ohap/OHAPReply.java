@@ -0,0 +1,81 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the results of one request of a session.
+ * <p>
+ *
+ * The worker adds the results of the response here while reading it, as
+ * {@link OHAPEvent}s. When the request has finished, the results are given to
+ * the {@link OHAPReorderBuffer} of the session, which passes them to the
+ * protocol in the order the requests were taken from the task queue.
+ *
+ * @see OHAPTaskBase#handleString(OHAPReply, String)
+ */
+public class OHAPReply {
+
+	/** Sequence number of the requests not ordered with the others. */
+	public static final int UNORDERED = -1;
+
+	/** The session of the request. */
+	private final OHAPSession session;
+
+	/** The sequence number of the request in its session, or UNORDERED. */
+	private final int sequence;
+
+	/** The results, in the order they arrived. */
+	private final List<OHAPEvent> events = new ArrayList<OHAPEvent>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param session
+	 *            The session of the request.
+	 * @param sequence
+	 *            The sequence number of the request, or {@link #UNORDERED}.
+	 */
+	public OHAPReply(OHAPSession session, int sequence) {
+		this.session = session;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Gets the session of the request.
+	 *
+	 * @return The session.
+	 */
+	public OHAPSession getSession() {
+		return session;
+	}
+
+	/**
+	 * Gets the sequence number of the request in its session.
+	 *
+	 * @return The sequence number, or {@link #UNORDERED}.
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Adds a result.
+	 *
+	 * @param event
+	 *            The result.
+	 */
+	public void add(OHAPEvent event) {
+		events.add(event);
+	}
+
+	/**
+	 * Gets the results.
+	 *
+	 * @return The results.
+	 */
+	public List<OHAPEvent> getEvents() {
+		return events;
+	}
+
+}
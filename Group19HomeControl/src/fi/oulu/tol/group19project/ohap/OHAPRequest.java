@@ -0,0 +1,120 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.net.URI;
+
+/**
+ * A HTTP request to the OHAP server, independent of the
+ * {@link OHAPTransport} used to send it.
+ * <p>
+ *
+ * The OHAP protocol uses three kinds of HTTP requests: GET to the server
+ * address to start a session, POST to the session URL with the commands in the
+ * body (or with an empty body to wait for changes), and DELETE to the session
+ * URL to end the session.
+ *
+ * @see OHAPTransport
+ */
+public class OHAPRequest {
+
+	/**
+	 * The HTTP methods used by the OHAP protocol.
+	 */
+	public enum Method {
+		/** Starts a session. */
+		GET,
+		/** Sends commands, or waits for changes if the body is empty. */
+		POST,
+		/** Ends the session. */
+		DELETE
+	};
+
+	/** The HTTP method of the request. */
+	private final Method method;
+
+	/** The URL the request is sent to. */
+	private final URI uri;
+
+	/** The body of a POST request, may be null. */
+	private final String body;
+
+	/**
+	 * When the request must have been replied to, in milliseconds since the
+	 * epoch. Zero if the request may wait forever, like an empty request
+	 * waiting for changes.
+	 */
+	private final long deadline;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param method
+	 *            The HTTP method.
+	 * @param uri
+	 *            The URL to send the request to.
+	 * @param body
+	 *            The body of the request, may be null.
+	 */
+	public OHAPRequest(Method method, URI uri, String body) {
+		this(method, uri, body, 0);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param method
+	 *            The HTTP method.
+	 * @param uri
+	 *            The URL to send the request to.
+	 * @param body
+	 *            The body of the request, may be null.
+	 * @param deadline
+	 *            When the transport gives up waiting for the response, in
+	 *            milliseconds since the epoch. Zero for no deadline.
+	 */
+	public OHAPRequest(Method method, URI uri, String body, long deadline) {
+		this.method = method;
+		this.uri = uri;
+		this.body = body;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Gets the HTTP method of the request.
+	 *
+	 * @return The method.
+	 */
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * Gets the URL of the request.
+	 *
+	 * @return The URL.
+	 */
+	public URI getUri() {
+		return uri;
+	}
+
+	/**
+	 * Gets the body of the request.
+	 *
+	 * @return The body, null if the request has no body.
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * Gets when the transport gives up waiting for the response. A transport
+	 * aborts the request at the deadline and fails it with an IOException,
+	 * unless the response has already started to arrive; the body of a big
+	 * response may take longer.
+	 *
+	 * @return The deadline in milliseconds since the epoch, zero if none.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+}
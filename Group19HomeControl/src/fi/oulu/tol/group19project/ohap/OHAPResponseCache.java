@@ -0,0 +1,251 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the VALUE replies to GET commands by path, so that reading an
+ * unchanged tree again does not download it from the server.
+ * <p>
+ *
+ * Only the paths the client listens to, or paths under them, are cached, as
+ * the change notifications of the LISTEN are the only way to know the server
+ * no longer has the cached tree. Without a LISTEN, a change made by another
+ * client or by a switch in the home would stay hidden.
+ * <p>
+ *
+ * The cache holds at most a given number of entries and a given number of
+ * characters, evicting the least recently used entries first. An entry older
+ * than the max age is not used. An entry is invalidated when the tree under
+ * its path may have changed:
+ * <ul>
+ * <li>the client sends a SET to the path, under it or above it,</li>
+ * <li>a change notification arrives for a path the client listens to, under
+ * it or above it, or</li>
+ * <li>a change notification arrives which cannot be tied to a path; then the
+ * whole cache is cleared.</li>
+ * </ul>
+ * Invalidating also the paths above the changed one is needed, as their trees
+ * contain the changed device. A reply to a GET sent before the last
+ * invalidation is not cached, as it may be older than the change.
+ *
+ * @see OHAPConfiguration#setCache(int, int, long)
+ */
+public class OHAPResponseCache {
+
+	/**
+	 * A cached reply.
+	 */
+	private static class Entry {
+		final String payload;
+		final long stored;
+
+		Entry(String payload, long stored) {
+			this.payload = payload;
+			this.stored = stored;
+		}
+	}
+
+	/** Max number of entries, zero disables the cache. */
+	private final int maxEntries;
+
+	/** Max number of characters in all the entries. */
+	private final int maxChars;
+
+	/** How long in milliseconds an entry may be used. */
+	private final long maxAge;
+
+	/** Number of characters in all the entries. */
+	private int chars = 0;
+
+	/** When an entry was last invalidated or a LISTEN was sent. */
+	private long invalidated = 0;
+
+	/** The entries by normalized path, least recently used first. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/** The paths of the LISTEN commands by uid. */
+	private final Map<String, String> listened = new HashMap<String, String>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxEntries
+	 *            Max number of entries, zero disables the cache.
+	 * @param maxChars
+	 *            Max number of characters in all the entries.
+	 * @param maxAge
+	 *            How long in milliseconds an entry may be used.
+	 */
+	public OHAPResponseCache(int maxEntries, int maxChars, long maxAge) {
+		this.maxEntries = maxEntries;
+		this.maxChars = maxChars;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Gets the cached reply for the path.
+	 *
+	 * @param path
+	 *            The path of the GET.
+	 * @return The JSON, null if the path is not cached or the entry is too
+	 *         old.
+	 */
+	public synchronized String get(String path) {
+		String key = OHAPPathBuilder.normalizePath(path);
+		Entry entry = entries.get(key);
+		if (null == entry) {
+			return null;
+		}
+		if (System.currentTimeMillis() - entry.stored >= maxAge
+				|| !isListened(key)) {
+			remove(key);
+			return null;
+		}
+		return entry.payload;
+	}
+
+	/**
+	 * Caches the reply to a GET, if the path is listened to and nothing has
+	 * been invalidated since the GET was sent. Evicts the least recently used
+	 * entries if the cache gets too big.
+	 *
+	 * @param path
+	 *            The path of the GET.
+	 * @param payload
+	 *            The JSON the server sent.
+	 * @param sent
+	 *            When the GET was sent, in milliseconds since the epoch.
+	 */
+	public synchronized void put(String path, String payload, long sent) {
+		if (maxEntries <= 0 || payload.length() > maxChars
+				|| sent <= invalidated) {
+			return;
+		}
+		String key = OHAPPathBuilder.normalizePath(path);
+		if (!isListened(key)) {
+			return;
+		}
+		remove(key);
+		entries.put(key, new Entry(payload, System.currentTimeMillis()));
+		chars += payload.length();
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet()
+				.iterator();
+		while (entries.size() > maxEntries || chars > maxChars) {
+			Map.Entry<String, Entry> entry = eldest.next();
+			chars -= entry.getValue().payload.length();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Invalidates the entries of the path, the paths under it and the paths
+	 * above it.
+	 *
+	 * @param path
+	 *            The changed path.
+	 */
+	public synchronized void invalidate(String path) {
+		invalidated = System.currentTimeMillis();
+		String changed = OHAPPathBuilder.normalizePath(path);
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Entry> entry = iterator.next();
+			String key = entry.getKey();
+			if (OHAPPathBuilder.isWithin(key, changed)
+					|| OHAPPathBuilder.isWithin(changed, key)) {
+				chars -= entry.getValue().payload.length();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remembers the path of a LISTEN command, so that the notifications with
+	 * its uid invalidate the path, and the path can be cached. The replies to
+	 * the GETs sent before are not cached, as they may miss changes made
+	 * before the LISTEN.
+	 *
+	 * @param uid
+	 *            The uid of the LISTEN.
+	 * @param path
+	 *            The path listened to.
+	 */
+	public synchronized void listening(String uid, String path) {
+		invalidated = System.currentTimeMillis();
+		listened.put(uid, OHAPPathBuilder.normalizePath(path));
+	}
+
+	/**
+	 * Forgets the LISTEN commands of the path, and the entries no longer
+	 * listened to.
+	 *
+	 * @param path
+	 *            The path not listened to anymore.
+	 */
+	public synchronized void unlistened(String path) {
+		String key = OHAPPathBuilder.normalizePath(path);
+		listened.values().removeAll(Collections.singleton(key));
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Entry> entry = iterator.next();
+			if (!isListened(entry.getKey())) {
+				chars -= entry.getValue().payload.length();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Invalidates the entries a change notification may concern.
+	 *
+	 * @param uid
+	 *            The uid of the notification, may be null.
+	 */
+	public void changed(String uid) {
+		String path = null;
+		synchronized (this) {
+			path = null == uid ? null : listened.get(uid);
+		}
+		if (null != path) {
+			invalidate(path);
+		} else {
+			clear();
+		}
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public synchronized void clear() {
+		invalidated = System.currentTimeMillis();
+		entries.clear();
+		chars = 0;
+	}
+
+	/**
+	 * Checks if the normalized path is under a path listened to.
+	 */
+	private boolean isListened(String key) {
+		for (String path : listened.values()) {
+			if (OHAPPathBuilder.isWithin(path, key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (null != entry) {
+			chars -= entry.payload.length();
+		}
+	}
+
+}
@@ -0,0 +1,510 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of one OHAP session with a server.
+ * <p>
+ *
+ * Each {@link OHAPBase} protocol object creates a session when it is
+ * initialized, and every task it puts in the shared task queue carries the
+ * session (see {@link TaskData#getSession()}). The workers, which are shared by
+ * many protocols, use the session to know where to send the request, with
+ * which session id and request counter, and where to put the results. Thus one
+ * process can have sessions with many servers at the same time.
+ * <p>
+ *
+ * The session also counts its tasks waiting in the task queue and its
+ * requests waiting for the server, so that the protocol knows when there is
+ * nothing going on and an empty request is needed. The results of the
+ * requests are passed to the protocol in request order through an
+ * {@link OHAPReorderBuffer}. The counters are atomic, so the workers need no
+ * locks to number the requests.
+ * <p>
+ *
+ * The futures of the asynchronous commands waiting for the server are kept in
+ * a table by the uid of the command, see {@link OHAPFuture}.
+ *
+ * @see OHAPFactory
+ */
+public class OHAPSession {
+
+	/** For giving each session a number of its own. */
+	private static final AtomicInteger sessionCounter = new AtomicInteger(0);
+
+	/** The number of the session, unique within the process. */
+	private final int number;
+
+	/**
+	 * The URL to the server, like "http://ohap.opimobi.com:18000".
+	 */
+	private final String serverAddress;
+
+	/** The queue where the results of the requests of the session are put. */
+	private final BlockingQueue<OHAPEvent> results;
+
+	/**
+	 * The session string received from the server after connection has been
+	 * successfully made. If null, there is no (logical) connection (session)
+	 * with the server.
+	 */
+	private volatile String id = null;
+
+	/**
+	 * For adding the running counter to the http request per BOSH protocol
+	 * specs.
+	 */
+	private final AtomicInteger urlCounter = new AtomicInteger(0);
+
+	/**
+	 * For giving the ordered requests their sequence numbers, in the order
+	 * they are taken from the task queue.
+	 */
+	private final AtomicInteger sequenceCounter = new AtomicInteger(0);
+
+	/** Releases the results of the requests in sequence order. */
+	private final OHAPReorderBuffer reorderBuffer;
+
+	/** Number of the tasks of the session in the task queue. */
+	private final AtomicInteger queued = new AtomicInteger(0);
+
+	/** Number of the requests of the session not yet finished. */
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	/**
+	 * Set when a request of the session has finished, cleared by the
+	 * protocol when it has seen it.
+	 */
+	private final AtomicBoolean taskDone = new AtomicBoolean(false);
+
+	/** Decides when to send the next long poll. */
+	private final OHAPPollScheduler pollScheduler;
+
+	/** The GETs queued or waiting for the reply. */
+	private final OHAPSingleFlight singleFlight = new OHAPSingleFlight();
+
+	/** The uids of the SYNC commands waiting for the reply. */
+	private final Set<String> syncs = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Does the server understand SYNC. Assumed until the server replies to
+	 * one with an ERROR.
+	 */
+	private volatile boolean syncSupported = true;
+
+	/** Reads the VALUE replies while they arrive, may be null. */
+	private volatile OHAPStreamListener streamListener = null;
+
+	/** The futures of the commands waiting for the reply, by uid. */
+	private final ConcurrentHashMap<String, OHAPFuture> pending = new ConcurrentHashMap<String, OHAPFuture>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param serverAddress
+	 *            The address (url) to the server.
+	 * @param results
+	 *            The queue where the results are stored.
+	 */
+	public OHAPSession(String serverAddress, BlockingQueue<OHAPEvent> results) {
+		this(serverAddress, results, new OHAPPollScheduler(
+				OHAPConfiguration.DEFAULT_POLL_MIN_INTERVAL,
+				OHAPConfiguration.DEFAULT_POLL_MAX_INTERVAL));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param serverAddress
+	 *            The address (url) to the server.
+	 * @param results
+	 *            The queue where the results are stored.
+	 * @param pollScheduler
+	 *            Decides when to send the long polls.
+	 */
+	public OHAPSession(String serverAddress, BlockingQueue<OHAPEvent> results,
+			OHAPPollScheduler pollScheduler) {
+		this.number = sessionCounter.incrementAndGet();
+		this.serverAddress = serverAddress;
+		this.results = results;
+		this.reorderBuffer = new OHAPReorderBuffer(results);
+		this.pollScheduler = pollScheduler;
+	}
+
+	/**
+	 * Gets the number of the session, unique within the process.
+	 *
+	 * @return The session number.
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	/**
+	 * Gets the server URL.
+	 *
+	 * @return The server URL.
+	 */
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	/**
+	 * Gets the queue where the results of the session are put.
+	 *
+	 * @return The results queue.
+	 */
+	public BlockingQueue<OHAPEvent> getResults() {
+		return results;
+	}
+
+	/**
+	 * Gets the scheduler of the long polls of the session.
+	 *
+	 * @return The poll scheduler.
+	 */
+	public OHAPPollScheduler getPollScheduler() {
+		return pollScheduler;
+	}
+
+	/**
+	 * Gets the GETs of the session queued or waiting for the reply.
+	 *
+	 * @return The pending GETs.
+	 */
+	public OHAPSingleFlight getSingleFlight() {
+		return singleFlight;
+	}
+
+	/**
+	 * Sets the listener the workers pass the VALUE replies to while they
+	 * arrive.
+	 *
+	 * @param streamListener
+	 *            The listener, null to read the replies as whole lines.
+	 */
+	public void setStreamListener(OHAPStreamListener streamListener) {
+		this.streamListener = streamListener;
+	}
+
+	/**
+	 * Gets the listener the workers pass the VALUE replies to while they
+	 * arrive.
+	 *
+	 * @return The listener, null if there is none.
+	 */
+	public OHAPStreamListener getStreamListener() {
+		return streamListener;
+	}
+
+	/**
+	 * Gets the session id given by the server.
+	 *
+	 * @return The session id, null if there is no session yet.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Sets the session id given by the server.
+	 *
+	 * @param id
+	 *            The session id, null ends the session.
+	 */
+	public void setId(String id) {
+		urlCounter.set(0);
+		this.id = id;
+	}
+
+	/**
+	 * Is there a session or not?
+	 *
+	 * @return true, if the server has given the session id.
+	 */
+	public boolean hasId() {
+		return null != id;
+	}
+
+	/**
+	 * Each request to the server must have a increasing integer counting
+	 * value.
+	 *
+	 * @return The next counter value.
+	 */
+	public int nextCounter() {
+		return urlCounter.getAndIncrement();
+	}
+
+	/**
+	 * Checks if the session has nothing going on.
+	 *
+	 * @return true, if the session has no tasks in the task queue and no
+	 *         requests waiting for the server.
+	 */
+	public boolean isIdle() {
+		return queued.get() == 0 && inFlight.get() == 0;
+	}
+
+	/** Called by the task queue when a task is added to it. */
+	void taskQueued() {
+		queued.incrementAndGet();
+	}
+
+	/** Called by the task queue when a task is removed from it. */
+	void taskDequeued() {
+		queued.decrementAndGet();
+	}
+
+	/**
+	 * Called by the task queue when a request is started.
+	 *
+	 * @param ordered
+	 *            Should the results of the request be ordered with the
+	 *            results of the other requests.
+	 * @return The sequence number of the request, or
+	 *         {@link OHAPReply#UNORDERED}.
+	 */
+	int requestStarted(boolean ordered) {
+		inFlight.incrementAndGet();
+		return ordered ? sequenceCounter.getAndIncrement()
+				: OHAPReply.UNORDERED;
+	}
+
+	/**
+	 * Called by the worker when a request is finished. Releases the results
+	 * of the request to the results queue when their turn comes.
+	 *
+	 * @param reply
+	 *            The results of the request.
+	 * @throws InterruptedException
+	 */
+	void requestFinished(OHAPReply reply) throws InterruptedException {
+		try {
+			reorderBuffer.finished(reply);
+		} finally {
+			inFlight.decrementAndGet();
+			taskDone.set(true);
+		}
+	}
+
+	/**
+	 * Called by the protocol to check if a request has finished since the
+	 * last call. Unlike the {@link OHAPEvent.Kind#TASK_DONE} event, which
+	 * the worker only offers to the bounded results queue to wake the
+	 * protocol up, this is never lost.
+	 *
+	 * @return true if a request has finished since the last call.
+	 */
+	boolean takeTaskDone() {
+		return taskDone.getAndSet(false);
+	}
+
+	/**
+	 * Adds the future of a command to the table of commands waiting for the
+	 * reply. Must be called before the command is put in the task queue.
+	 *
+	 * @param future
+	 *            The future.
+	 */
+	void register(OHAPFuture future) {
+		pending.put(future.getUid(), future);
+	}
+
+	/**
+	 * Checks if the SYNC command can be sent to the server.
+	 *
+	 * @return false if the server has replied to a SYNC with an ERROR.
+	 */
+	public boolean isSyncSupported() {
+		return syncSupported;
+	}
+
+	/**
+	 * Called by the protocol when it sends a SYNC.
+	 *
+	 * @param uid
+	 *            The uid of the SYNC.
+	 */
+	void syncStarted(String uid) {
+		syncs.add(uid);
+	}
+
+	/**
+	 * Called by the protocol when a reply arrives, to end the SYNC the reply
+	 * is for.
+	 *
+	 * @param uid
+	 *            The uid of the reply, may be null.
+	 * @return true if the reply was for a SYNC.
+	 */
+	boolean syncEnded(String uid) {
+		return null != uid && syncs.remove(uid);
+	}
+
+	/**
+	 * Called by the protocol when the server did not understand a SYNC. The
+	 * later SYNCs of the session are sent as GETs of the whole tree.
+	 */
+	void syncUnsupported() {
+		syncSupported = false;
+	}
+
+	/**
+	 * Removes the future from the table of commands waiting for the reply.
+	 *
+	 * @param future
+	 *            The future.
+	 */
+	void unregister(OHAPFuture future) {
+		pending.remove(future.getUid(), future);
+	}
+
+	/**
+	 * Completes the future of the command the reply is for, if there is one,
+	 * and the futures of the GETs which joined it. Called by the protocol when
+	 * it handles the reply.
+	 *
+	 * @param event
+	 *            The reply.
+	 */
+	void complete(OHAPEvent event) {
+		String uid = event.getUid();
+		if (null != uid) {
+			OHAPFuture future = pending.remove(uid);
+			if (null != future) {
+				future.complete(event);
+			}
+			singleFlight.finished(event);
+		}
+	}
+
+	/**
+	 * Fails the future of the command, if there is one.
+	 *
+	 * @param uid
+	 *            The uid of the command, may be null.
+	 * @param reason
+	 *            Why there will be no reply.
+	 */
+	void fail(String uid, String reason) {
+		if (null != uid) {
+			OHAPFuture future = pending.remove(uid);
+			if (null != future) {
+				future.fail(reason);
+			}
+			singleFlight.failed(uid, reason);
+			syncs.remove(uid);
+		}
+	}
+
+	/**
+	 * Fails the futures of the commands. Called by the worker when a request
+	 * failed.
+	 *
+	 * @param tasks
+	 *            The commands of the request.
+	 * @param reason
+	 *            Why there will be no reply.
+	 */
+	void fail(List<TaskData> tasks, String reason) {
+		for (TaskData task : tasks) {
+			fail(task.getUid(), reason);
+		}
+	}
+
+	/**
+	 * Checks if the client has cancelled the command.
+	 *
+	 * @param uid
+	 *            The uid of the command, may be null.
+	 * @return true if the future of the command has been cancelled.
+	 */
+	boolean isCancelled(String uid) {
+		if (null == uid) {
+			return false;
+		}
+		OHAPFuture future = pending.get(uid);
+		return null != future && future.isCancelled();
+	}
+
+	/**
+	 * Called by the task queue when a command is dropped from the queue
+	 * because it was cancelled or its deadline passed. Tells the client about
+	 * an expired command.
+	 *
+	 * @param task
+	 *            The dropped command.
+	 * @param expired
+	 *            true if the deadline passed, false if cancelled.
+	 */
+	void dropped(TaskData task, boolean expired) {
+		if (null == task.getUid()) {
+			return;
+		}
+		if (expired) {
+			fail(task.getUid(), "Deadline passed before sending");
+			results.offer(OHAPEvent.error("Timed out: " + task.getCommand()
+					+ " " + task.getData()));
+		} else {
+			pending.remove(task.getUid());
+			singleFlight.failed(task.getUid(), "Cancelled");
+		}
+	}
+
+	/**
+	 * Fails the futures of all the commands waiting for the reply. Called
+	 * when the session ends.
+	 *
+	 * @param reason
+	 *            Why there will be no reply.
+	 */
+	void failAll(String reason) {
+		syncs.clear();
+		for (String uid : pending.keySet()) {
+			fail(uid, reason);
+		}
+		singleFlight.clear(reason);
+	}
+
+	/**
+	 * Called by the task queue when a command waiting in the queue has been
+	 * merged to a newer one with the same effect. The reply to the newer
+	 * command completes the future of the older one too.
+	 *
+	 * @param mergedUid
+	 *            The uid of the merged command, may be null.
+	 * @param uid
+	 *            The uid of the command replacing it, may be null.
+	 */
+	void merged(String mergedUid, String uid) {
+		if (null == mergedUid || mergedUid.equals(uid)) {
+			return;
+		}
+		final OHAPFuture merged = pending.remove(mergedUid);
+		if (null == merged) {
+			return;
+		}
+		OHAPFuture future = pending.get(uid);
+		if (null == future) {
+			// The newer command is not waited for, so wait for its reply
+			// instead.
+			pending.put(uid, merged);
+		} else {
+			future.addListener(new OHAPFuture.Listener() {
+				@Override
+				public void done(OHAPFuture future) {
+					merged.completeAs(future);
+				}
+			});
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the GET commands of a session which are queued or waiting
+ * for the server, so that the same tree is not downloaded and parsed many
+ * times at once.
+ * <p>
+ *
+ * When the client asks for a path while a GET of the same path, or of a path
+ * containing it, is already pending, no new GET is sent. The pending GET
+ * brings the content to the {@link OHAPListener} anyway, and the futures of
+ * the asynchronous commands joining it are completed with its reply. Note
+ * that the VALUE then contains the tree of the pending GET, which may be an
+ * ancestor of the path asked for.
+ * <p>
+ *
+ * A GET is pending until its reply with its uid arrives or it fails. If the
+ * server never replies with the uid, the GET stops being pending at its
+ * expiry time, so later GETs of the path are not suppressed forever.
+ *
+ * @see OHAPSession
+ */
+public class OHAPSingleFlight {
+
+	/**
+	 * How long in milliseconds a GET without a deadline is considered
+	 * pending.
+	 */
+	public static final long DEFAULT_EXPIRY = 60000;
+
+	/**
+	 * A pending GET and the commands waiting for its reply.
+	 */
+	private static class Flight {
+		final String path;
+		final String uid;
+		final long started;
+		final long expires;
+		final List<OHAPFuture> followers = new ArrayList<OHAPFuture>();
+
+		Flight(String path, String uid, long started, long expires) {
+			this.path = path;
+			this.uid = uid;
+			this.started = started;
+			this.expires = expires;
+		}
+	}
+
+	/** The pending GETs by path. */
+	private final Map<String, Flight> byPath = new HashMap<String, Flight>();
+
+	/** The pending GETs by uid. */
+	private final Map<String, Flight> byUid = new HashMap<String, Flight>();
+
+	/**
+	 * Joins the GET to a pending GET of the path or of an ancestor of it, or
+	 * if there is none, makes the GET pending.
+	 *
+	 * @param path
+	 *            The path of the GET.
+	 * @param uid
+	 *            The uid of the GET, used if it becomes pending.
+	 * @param follower
+	 *            The future to complete with the reply of the pending GET, may
+	 *            be null.
+	 * @param expires
+	 *            When the GET stops being pending at the latest, zero for the
+	 *            default.
+	 * @return The uid of the pending GET joined, or null if the GET is now
+	 *         pending and must be sent.
+	 */
+	public synchronized String joinOrStart(String path, String uid,
+			OHAPFuture follower, long expires) {
+		long now = System.currentTimeMillis();
+		String key = OHAPPathBuilder.normalizePath(path);
+		for (String prefix = key; null != prefix; prefix = OHAPPathBuilder
+				.parentPathOf(prefix)) {
+			Flight flight = byPath.get(prefix);
+			if (null != flight) {
+				if (now < flight.expires) {
+					if (null != follower) {
+						flight.followers.add(follower);
+					}
+					return flight.uid;
+				}
+				remove(flight);
+			}
+		}
+		Flight flight = new Flight(key, uid, now, expires > 0 ? expires
+				: now + DEFAULT_EXPIRY);
+		byPath.put(key, flight);
+		byUid.put(uid, flight);
+		return null;
+	}
+
+	/**
+	 * Gets the path of a pending GET.
+	 *
+	 * @param uid
+	 *            The uid of the GET, may be null.
+	 * @return The normalized path, null if no GET with the uid is pending.
+	 */
+	public synchronized String pathOf(String uid) {
+		Flight flight = null == uid ? null : byUid.get(uid);
+		return null == flight ? null : flight.path;
+	}
+
+	/**
+	 * Gets when a pending GET became pending.
+	 *
+	 * @param uid
+	 *            The uid of the GET, may be null.
+	 * @return The time in milliseconds since the epoch, zero if no GET with
+	 *         the uid is pending.
+	 */
+	public synchronized long startedOf(String uid) {
+		Flight flight = null == uid ? null : byUid.get(uid);
+		return null == flight ? 0 : flight.started;
+	}
+
+	/**
+	 * Ends the pending GET and completes the commands which joined it.
+	 *
+	 * @param event
+	 *            The reply, with the uid of the GET.
+	 */
+	public void finished(OHAPEvent event) {
+		for (OHAPFuture follower : end(event.getUid())) {
+			follower.complete(event);
+		}
+	}
+
+	/**
+	 * Ends the pending GET and fails the commands which joined it.
+	 *
+	 * @param uid
+	 *            The uid of the GET.
+	 * @param reason
+	 *            Why the GET got no reply.
+	 */
+	public void failed(String uid, String reason) {
+		for (OHAPFuture follower : end(uid)) {
+			follower.fail(reason);
+		}
+	}
+
+	/**
+	 * Ends all the pending GETs, failing the commands which joined them.
+	 *
+	 * @param reason
+	 *            Why the GETs got no reply.
+	 */
+	public void clear(String reason) {
+		List<OHAPFuture> followers = new ArrayList<OHAPFuture>();
+		synchronized (this) {
+			for (Flight flight : byUid.values()) {
+				followers.addAll(flight.followers);
+			}
+			byPath.clear();
+			byUid.clear();
+		}
+		for (OHAPFuture follower : followers) {
+			follower.fail(reason);
+		}
+	}
+
+	/**
+	 * Ends the pending GET with the uid.
+	 *
+	 * @return The followers of the GET, empty if there was no such GET.
+	 */
+	private synchronized List<OHAPFuture> end(String uid) {
+		Flight flight = null == uid ? null : byUid.get(uid);
+		if (null == flight) {
+			return new ArrayList<OHAPFuture>(0);
+		}
+		remove(flight);
+		return flight.followers;
+	}
+
+	private void remove(Flight flight) {
+		byUid.remove(flight.uid);
+		if (byPath.get(flight.path) == flight) {
+			byPath.remove(flight.path);
+		}
+	}
+
+}
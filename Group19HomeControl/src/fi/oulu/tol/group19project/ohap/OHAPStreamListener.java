@@ -0,0 +1,58 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * An observer of the protocol which reads the JSON of the VALUE and DELTA
+ * replies while it is still arriving from the server.
+ * <p>
+ *
+ * If the observer given to the protocol implements this interface, the worker
+ * reading a response passes the JSON of each VALUE line, and the changes
+ * after the version of each DELTA line, to {@link #contentArriving(Reader)}
+ * as the characters come from the connection, instead of first reading the
+ * whole line. A SYNC without a version gets the whole tree as a DELTA, so
+ * the first load is streamed also when the server understands SYNC. The observer can parse
+ * it with {@link OHAPParser#parse(Reader, OHAPParser.Listener)} and show the
+ * first rooms of a big home before the rest of the tree has been downloaded.
+ * <p>
+ *
+ * The listener may also decline a VALUE, for example if it is a change to a
+ * model it already has. The protocol does not call
+ * {@link #contentFromServerArrived(String)} for a VALUE the listener took,
+ * but the VALUE still completes its {@link OHAPFuture} and goes to the
+ * response cache as before. For a DELTA the listener took,
+ * {@link #deltaFromServerArrived(String, String)} is called with the version
+ * and empty changes. A VALUE answered from the cache is not streamed.
+ * <p>
+ *
+ * NOTE!: The method is called in the worker threads, and by many workers at
+ * the same time if many responses arrive at once.
+ *
+ * @see OHAPTaskBase#handleInputStream(OHAPReply, java.io.InputStream)
+ */
+public interface OHAPStreamListener extends OHAPListener {
+
+	/**
+	 * Called by a worker when a VALUE, or the changes of a DELTA, start to
+	 * arrive from the server.
+	 * Returns when the JSON has been read; what is left of it unread is
+	 * skipped.
+	 *
+	 * @param content
+	 *            The JSON of the VALUE or the changes, ending at the end of
+	 *            the line.
+	 * @return true if the listener took the VALUE, false if the VALUE is to
+	 *         be passed to {@link #contentFromServerArrived(String)} instead,
+	 *         or the DELTA with its changes to
+	 *         {@link #deltaFromServerArrived(String, String)}.
+	 *         The whole VALUE is passed, also the part the listener read, so
+	 *         the listener may give up in the middle, e.g. on a JSON
+	 *         error.
+	 * @throws IOException
+	 *             If reading the connection failed.
+	 */
+	public boolean contentArriving(Reader content) throws IOException;
+
+}
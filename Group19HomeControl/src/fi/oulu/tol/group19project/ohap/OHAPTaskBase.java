@@ -4,7 +4,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.util.Log;
 
 /**
@@ -16,9 +19,11 @@ import android.util.Log;
  * sends the different OHAP requests as HTTP messages to initiate the OHAP
  * session, and sends different messages (GET, SET, LISTEN, UNLISTEN) to the
  * control unit. The requests are read from the task queue which has been set up
- * by the {@link OHAPBase} protocol object. OHAPTask stores the results of the
- * request sent to the control unit into the results queue, which is also
- * provided by the protocol. Protocol then reads the results from this queue.
+ * by the {@link OHAPFactory}. OHAPTask stores the results of the request sent
+ * to the control unit into the results queue of the task's
+ * {@link OHAPSession}, which is provided by the protocol. Protocol then reads
+ * the results from this queue. As the session travels with the task, the same
+ * workers serve the protocols of many sessions.
  * <p>
  * 
  * Tasks are provided to the OHAPTaskBase in a blocking queue. This means that
@@ -26,6 +31,17 @@ import android.util.Log;
  * This is as we like it -- the threads do not run doing nothing, wasting
  * battery power and consuming processing power, but block waiting for objects
  * to be put in the task queue by the {@link OHAPBase} protocol class.
+ * <p>
+ * 
+ * A task takes several GET, SET, LISTEN and UNLISTEN commands from the queue
+ * at a time, if there are many waiting, and sends them to the server in one
+ * request. See {@link #setBatching(int, long)}.
+ * <p>
+ * 
+ * The requests are sent with the {@link OHAPTransport} of the protocol. With
+ * a non-blocking transport the task does not wait for the response, but takes
+ * the next tasks from the queue while the earlier requests are still waiting
+ * for the server.
  * 
  * @author Antti Juustila
  * 
@@ -33,17 +49,6 @@ import android.util.Log;
  */
 public abstract class OHAPTaskBase implements Runnable {
 
-	/** The URL to the central unit. */
-	private String serverAddr = null;
-
-	/**
-	 * The session string received from the central unit after connection has
-	 * been successfully made. It is static; shared between the OHAPTaskBase
-	 * objects. If sessionStr is null, there is no (logical) connection (session)
-	 * with the server.
-	 */
-	protected static String sessionStr = null;
-
 	/**
 	 * Is the task running or not. Controls the while loop in the run().
 	 */
@@ -55,21 +60,11 @@ public abstract class OHAPTaskBase implements Runnable {
 	private Thread myThread = null;
 
 	/**
-	 * The task queue for the network task, provided by the {@link OHAPBase}.
+	 * The task queue for the network task, provided by the
+	 * {@link OHAPFactory}. Volatile, since the worker may be attached to a
+	 * queue while its thread is not yet running.
 	 */
-	private BlockingQueue<TaskData> tasks = null;
-
-	/**
-	 * The queue were the subclasses write their results when communicating with
-	 * the central unit. Provided by the protocol class {@link OHAPBase}.
-	 */
-	private BlockingQueue<String> results = null;
-
-	/**
-	 * For adding the running counter to the http request per BOSH protocol
-	 * specs.
-	 */
-	protected static int urlCounter = 0;
+	private volatile OHAPTaskQueue tasks = null;
 
 	/**
 	 * Counter for counting number of tasks. Used only in the thread names,
@@ -84,10 +79,19 @@ public abstract class OHAPTaskBase implements Runnable {
 	private String threadName;
 
 	/**
-	 * Value is true, if the task is currently handling a HTTP request with the
-	 * server (waiting for execute to continue).
+	 * Number of the HTTP requests of this task waiting for the server to
+	 * respond, or for the response to be handled.
 	 */
-	protected boolean isBusy = false;
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	/** Sends the requests, shared by the workers. */
+	private volatile OHAPTransport transport = null;
+
+	/** Max number of commands to send in one request. */
+	private volatile int batchSize = OHAPConfiguration.DEFAULT_BATCH_SIZE;
+
+	/** How long to wait for more commands to the batch, in milliseconds. */
+	private volatile long batchLinger = OHAPConfiguration.DEFAULT_BATCH_LINGER;
 
 	// //////////
 	// PUBLIC //
@@ -101,26 +105,58 @@ public abstract class OHAPTaskBase implements Runnable {
 	}
 
 	/**
-	 * Initializes the network task with necessary objects.
+	 * Initializes the network task with necessary objects. The server address
+	 * and the results queue come with each task, see {@link OHAPSession}.
 	 * 
-	 * @param serverAddr
-	 *            The address (url) to the server.
 	 * @param taskQueue
 	 *            Task queue, things to do.
-	 * @param resultQueue
-	 *            The queue where the results are stored.
 	 */
-	public void initialize(String serverAddr,
-			BlockingQueue<TaskData> taskQueue, BlockingQueue<String> resultQueue) {
+	public void initialize(OHAPTaskQueue taskQueue) {
 		tasks = taskQueue;
-		results = resultQueue;
-		this.serverAddr = serverAddr;
 	}
 
 	/**
-	 * Starts the network task, by creating a new thread and starting it.
+	 * Sets the transport the task uses in sending the requests.
+	 * 
+	 * @param transport
+	 *            The transport shared by the workers.
+	 */
+	public void setTransport(OHAPTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Gets the transport the task uses.
+	 * 
+	 * @return The transport shared by the workers.
+	 */
+	protected OHAPTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets how the task batches commands to the server.
+	 * 
+	 * @param batchSize
+	 *            Max number of commands to send in one request.
+	 * @param batchLinger
+	 *            How long to wait for more commands to fill the batch, in
+	 *            milliseconds.
+	 * @see OHAPTaskQueue#takeBatch(List, int, long)
+	 */
+	public void setBatching(int batchSize, long batchLinger) {
+		this.batchSize = batchSize;
+		this.batchLinger = batchLinger;
+	}
+
+	/**
+	 * Starts the network task, by creating a new thread and starting it. If the
+	 * task is already running, does nothing.
 	 */
 	public void start() {
+		if (myThread != null) {
+			return;
+		}
 		doStart();
 		isRunning = true;
 		if (myThread == null) {
@@ -147,33 +183,13 @@ public abstract class OHAPTaskBase implements Runnable {
 	}
 
 	/**
-	 * Returns the server URL.
-	 * 
-	 * @return The server URL.
-	 */
-	protected String getServerAddress() {
-		return serverAddr;
-	}
-
-	/**
-	 * Is there a session or not?
-	 * 
-	 * @return true, if there is a session, otherwise false.
-	 */
-	public boolean hasSession() {
-		return (sessionStr != null);
-	}
-
-	/**
-	 * Use this to check if the task is currently waiting for http execute to
-	 * finish.
+	 * Use this to check if the task has requests waiting for the server to
+	 * respond.
 	 * 
-	 * @return true if we are waiting for execute to finish.
+	 * @return true if some request of the task has not yet been finished.
 	 */
 	public boolean isBusy() {
-		synchronized (this) {
-			return isBusy;
-		}
+		return inFlight.get() > 0;
 	}
 
 	// ///////////
@@ -192,21 +208,36 @@ public abstract class OHAPTaskBase implements Runnable {
 
 	/**
 	 * Abstract method to be implemented by a concrete subclass. Here, build the
-	 * HTTP request object, execute it and handle the result. Use the base class
-	 * methods as instructed to implement this method.
+	 * HTTP request object, execute it with the transport and handle the
+	 * result. Use the base class methods as instructed to implement this
+	 * method.
+	 * <p>
+	 * The tasks are either a single task of any kind, or one or more GET, SET,
+	 * LISTEN and UNLISTEN commands to be sent in one request.
+	 * <p>
+	 * All the tasks belong to the same {@link OHAPSession}.
+	 * <p>
+	 * The request counts as started when this is called. The implementation
+	 * must call {@link #requestFinished(OHAPReply)} exactly once, when the
+	 * response has been handled or the request failed, also if no request
+	 * could be sent. With a non-blocking transport this happens after this
+	 * method has returned.
 	 * 
-	 * @param task
-	 *            The task to execute.
+	 * @param tasks
+	 *            The tasks to execute.
+	 * @param reply
+	 *            Where to put the results of the request.
 	 * @throws InterruptedException
 	 */
-	protected abstract void prepareAndExecuteRequest(TaskData task)
-			throws InterruptedException;
+	protected abstract void prepareAndExecuteRequest(List<TaskData> tasks,
+			OHAPReply reply) throws InterruptedException;
 
 	/**
 	 * Provide the concrete implementations a chance to do something when the
 	 * task initializes.
 	 * <p>
-	 * Here, create the AndroidHTTPClient and set it's parameters.
+	 * The transport is shared by the workers, see {@link OHAPTransport}, so
+	 * there is no need to create a HTTP client here.
 	 */
 	protected abstract void doStart();
 
@@ -214,7 +245,7 @@ public abstract class OHAPTaskBase implements Runnable {
 	 * Provide the concrete implementations a chance to do something when the
 	 * task closes down.
 	 * <p>
-	 * Here, <i>close</i> the AndroidHTTPClient object.
+	 * The shared transport is closed by the protocol, not here.
 	 */
 	protected abstract void doStop();
 
@@ -224,41 +255,70 @@ public abstract class OHAPTaskBase implements Runnable {
 	 */
 	private void doRun() {
 		Log.d(threadName(), "Entering doRun...");
+		boolean interrupted = false;
 		try {
 			// take blocks if there is no tasks in the queue, which is just
 			// fine...
 			Log.d(threadName(), "Try to get a task from queue...");
-			TaskData task = tasks.take();
-			Log.d(threadName(), "Got a task, will try to handle it");
-			if (serverAddr != null) {
-				prepareAndExecuteRequest(task);
+			List<TaskData> batch = new ArrayList<TaskData>();
+			int sequence = tasks.takeBatch(batch, batchSize, batchLinger);
+			// An interrupt while the batch was being filled is left for
+			// after the batch, so that the batch still gets finished.
+			interrupted = Thread.interrupted();
+			Log.d(threadName(), "Got " + batch.size()
+					+ " tasks, will try to handle them");
+			OHAPReply reply = new OHAPReply(batch.get(0).getSession(), sequence);
+			inFlight.incrementAndGet();
+			if (reply.getSession().getServerAddress() != null) {
+				try {
+					prepareAndExecuteRequest(batch, reply);
+				} catch (RuntimeException e) {
+					// Fail the batch but keep the worker running: the
+					// workers are shared by all the protocols.
+					String error = "Request failed: " + e;
+					Log.d(threadName(), error);
+					e.printStackTrace();
+					reply.getSession().fail(batch, error);
+					reply.add(OHAPEvent.error(error));
+					requestFinished(reply);
+				}
 			} else {
 				Log.d(threadName(), "No server address!");
+				requestFinished(reply);
 			}
 		} catch (InterruptedException e) {
 			String error = "Interrupted Exception!!";
 			Log.d(threadName(), error);
 			e.printStackTrace();
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
 	/**
-	 * Use this to get the session string.
+	 * Called by the concrete subclass when a request has been finished: the
+	 * response has been handled, or the request failed. Passes the results to
+	 * the protocol of the session, in request order, and lets the protocol
+	 * know that the task is done.
 	 * 
-	 * @return The session string.
-	 */
-	protected String getSession() {
-		return sessionStr;
-	}
-
-	/**
-	 * Each request to the control unit must have a increasing integer counting
-	 * value. See getUrl() for details.
-	 * 
-	 * @return The next counter value.
+	 * @param reply
+	 *            The results of the request.
+	 * @throws InterruptedException
 	 */
-	private static int getSessionCounter() {
-		return urlCounter++;
+	protected void requestFinished(OHAPReply reply)
+			throws InterruptedException {
+		OHAPSession session = reply.getSession();
+		try {
+			session.requestFinished(reply);
+		} finally {
+			inFlight.decrementAndGet();
+			// Only wakes the protocol up, which then checks the session.
+			// If the queue is full, the protocol is woken up by the results
+			// in it anyway.
+			session.getResults().offer(OHAPEvent.TASK_DONE);
+		}
 	}
 
 	/**
@@ -274,15 +334,18 @@ public abstract class OHAPTaskBase implements Runnable {
 	 * http request.</li>
 	 * </ul>
 	 * 
+	 * @param session
+	 *            The session to send the request in.
 	 * @return The URL to use when posting requests to the control unit.
 	 */
-	protected String getUrl() {
-		String Url = getServerAddress();
-		if (hasSession()) {
+	protected String getUrl(OHAPSession session) {
+		String Url = session.getServerAddress();
+		String id = session.getId();
+		if (null != id) {
 			if (!Url.endsWith("/")) {
 				Url += "/";
 			}
-			Url += getSession() + "/" + getSessionCounter();
+			Url += id + "/" + session.nextCounter();
 		}
 		return Url;
 	}
@@ -290,44 +353,87 @@ public abstract class OHAPTaskBase implements Runnable {
 	/**
 	 * Called by the concrete subclass, when a response has been received from
 	 * the http post. Reads the response string and handles each line from the
-	 * response, using {@link handleString(String)}.
+	 * response, using {@link handleString(OHAPReply, String)}.
+	 * <p>
 	 * 
+	 * If the session has an {@link OHAPStreamListener}, the JSON of a VALUE,
+	 * or of the changes of a DELTA, is passed to the listener while it
+	 * arrives, instead of first reading the whole line.
+	 * 
+	 * @param reply
+	 *            The results of the request.
 	 * @param is
 	 *            The input stream of the response.
 	 * @throws IOException
-	 * @throws InterruptedException
 	 */
-	protected void handleInputStream(InputStream is) throws IOException,
-			InterruptedException {
+	protected void handleInputStream(OHAPReply reply, InputStream is)
+			throws IOException {
 		// Wrap a BufferedReader around the InputStream
 		BufferedReader rd = new BufferedReader(new InputStreamReader(is));
+		OHAPStreamListener listener = reply.getSession().getStreamListener();
+		if (null != listener) {
+			handleStream(reply, rd, listener);
+			return;
+		}
 
 		// Read response until the end
 		Log.d(threadName(), "BufferedReader toString: " + rd.toString());
 		String line = rd.readLine();
 		while (line != null) {
-			handleString(line);
+			handleString(reply, line);
 			line = rd.readLine();
 		}
 	}
 
 	/**
-	 * Reads a response line, basically just putting it to the results blocking
-	 * queue. Protocol thread is reading this queue and gets the result, and
-	 * sees what needs to be done.
+	 * Reads the response lines, passing the JSON of each VALUE and DELTA to
+	 * the listener as it arrives. Only the beginning of a line, and the
+	 * version of a DELTA, is read before deciding what to do with it; the
+	 * other lines are handled with {@link #handleString(OHAPReply, String)}.
+	 */
+	private void handleStream(OHAPReply reply, BufferedReader rd,
+			OHAPStreamListener listener) throws IOException {
+		OHAPLineReader line = OHAPLineReader.next(rd);
+		while (null != line) {
+			String start = line.getLine();
+			OHAPEvent event = OHAPEvent.parse(start);
+			OHAPEvent.Kind kind = event.getKind();
+			if (kind == OHAPEvent.Kind.VALUE || kind == OHAPEvent.Kind.DELTA) {
+				line.setPayloadStart(start.length()
+						- event.getPayload().length());
+				// A DELTA without changes has nothing to stream.
+				boolean streamed = (kind == OHAPEvent.Kind.VALUE || line
+						.skipWord()) && listener.contentArriving(line);
+				line.skipRest();
+				event = streamed ? OHAPEvent.streamed(line.getLine())
+						: OHAPEvent.parse(line.getLine());
+				Log.d(threadName(), "Handling result: " + event);
+				reply.add(event);
+			} else {
+				line.skipRest();
+				handleString(reply, line.getLine());
+			}
+			line = OHAPLineReader.next(rd);
+		}
+	}
+
+	/**
+	 * Reads a response line, basically just classifying it (see
+	 * {@link OHAPEvent#parse(String)}) and adding it to the results of the
+	 * request. When the request has finished, the results are put to the
+	 * results blocking queue, see {@link #requestFinished(OHAPReply)}.
+	 * Protocol thread is reading this queue and gets the result, and sees what
+	 * needs to be done.
 	 * 
+	 * @param reply
+	 *            The results of the request.
 	 * @param line
 	 *            The response line to handle.
-	 * @throws InterruptedException
 	 */
-	protected void handleString(String line) throws InterruptedException {
-		// If we are quitting, it's all the same to clear other results waiting
-		// to be handled.
-		Log.d(threadName(), "Handling string: " + line);
-		if (line.equalsIgnoreCase(TaskData.CLOSE_SESSION_CMD)) {
-			results.clear();
-		}
-		results.put(line);
+	protected void handleString(OHAPReply reply, String line) {
+		OHAPEvent event = OHAPEvent.parse(line);
+		Log.d(threadName(), "Handling result: " + event);
+		reply.add(event);
 	}
 
 	/**
@@ -2,222 +2,250 @@ package fi.oulu.tol.group19project.ohap;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 
-import android.net.http.AndroidHttpClient;
 import android.util.Log;
 
 public class OHAPTaskImplementation extends OHAPTaskBase {
 
-	private AndroidHttpClient client = null;
-
 	@Override
 	protected void doStart() {
-		client = AndroidHttpClient.newInstance("JannasHttpClient");
-		HttpParams parameters = client.getParams();
-		HttpConnectionParams.setSoTimeout(parameters, 0); // timeout zero means
-															// we wait forever.
-		HttpConnectionParams.setConnectionTimeout(parameters, 0);
+		// The transport is shared by the workers, see OHAPTransport.
 	}
 
 	@Override
 	protected void doStop() {
-		client.close();
-
+		// The protocol closes the shared transport.
 	}
 
-	protected void prepareAndExecuteRequest(TaskData task)
-			throws InterruptedException {
-		synchronized (this) {
-			isBusy = true;
-		}
-		// Declare a HttpRequestBase variable and set it to null.
-		HttpRequestBase requestBase = null;
-		// Using the task parameter, call createUrl (a method you have been
-		// given).
-		// * it will return you a URI object (or null if it could not be
-		// created)
-		// If the returned URI is not null
-		// Call createRequest (a method given to you) with the task and URI
-		// objects.
-		// Save the returned request object to the HttpRequestBase variable you
-		// declared on the first line
+	protected void prepareAndExecuteRequest(List<TaskData> tasks,
+			OHAPReply reply) throws InterruptedException {
+		TaskData task = tasks.get(0);
+		// Using the task parameter, call createUrl; it will return an URI
+		// object (or null if it could not be created). Then create the
+		// request with the tasks and the URI.
+		OHAPRequest request = null;
 		URI value = createUrl(task);
 		if (value != null) {
-			requestBase = createRequest(task, value);
+			request = createRequest(tasks, value);
 		}
-		// End if
 		// If the request object is null, return away from there
 		// -- we cannot continue 'cause correct request couldn't be created!
-		if (requestBase == null) {
-			// ??
-			synchronized (this) {
-				isBusy = false;
+		if (request == null) {
+			if (task.getCommand().equalsIgnoreCase(TaskData.EMPTY_REQUEST_CMD)) {
+				// A poll of a lost session; it is not outstanding anymore.
+				task.getSession().getPollScheduler().pollFinished(0, 0, true);
 			}
+			requestFinished(reply);
 			return;
 		}
-		// Otherwise, we continue:
-		// Create a HttpHost object using URI's getHost, getPort and getScheme
-		// methods.
-		// Set this task object busy at this point, since now we're going to
-		// execute the http request and it may take time:
-		else {
-			// ??
-			HttpHost host = new HttpHost(value.getHost(), value.getPort(),
-					value.getScheme());
+		// Now: execute the request using the shared transport. A blocking
+		// transport returns when the response has been handled, a
+		// non-blocking one right away.
+		getTransport().execute(request,
+				new ResponseHandler(tasks, reply, request));
+	}
 
-			// Declare a HttpResponse variable and set it to null.
-			try {
-				HttpResponse response = null;
-				// ** Now: execute the request using the android http client,
-				// with the host and request parameters! **
-				response = client.execute(host, requestBase);
-				// We will only get to this line when the server responds
-				// -- we may have to wait for seconds, minutes, hours...
-				// depending on the server!
-				// Then we set this object not busy:
+	/**
+	 * Handles the response to a request of this task.
+	 */
+	private class ResponseHandler implements OHAPTransport.ResponseHandler {
 
-				// And now we are ready to check what the server response is...
-				// Delcare a HttpEntity object and get that from the response
-				// using getEntity().
-				HttpEntity entity = response.getEntity();
-				// ??
-				// If the entity is not null
-				if (entity != null) {
-					// If the request instace was HttpDelete
-					// ??
-					if (requestBase instanceof HttpDelete) {
-						// call handleString to close the session after sending
-						// the HTTP DELETE
-						handleString(TaskData.CLOSE_SESSION_CMD);
+		/** The tasks sent in the request. */
+		private final List<TaskData> tasks;
 
-					} else {
-						// End if
-						// Check the status code of the response (hint: call
-						// getStatusLine() of response, then getStatusCode() of
-						// statusline).
-						// If status code is HttpStatus.SC_OK then request was
-						// completed OK.
+		/** Collects the results of the request. */
+		private final OHAPReply reply;
 
-						if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+		/** The request this is the response to. */
+		private final OHAPRequest request;
 
-							// Check if the session string is null:
-							// Means we do not have session yet, so response
-							// should contain session id.
-							// So read the entity's content:
+		/** The session id the request was sent with, null for a new session. */
+		private final String sessionId;
 
-							if (sessionStr == null) {
-								BufferedReader rd;
+		/** When the request was sent. */
+		private final long sent = System.currentTimeMillis();
 
-								rd = new BufferedReader(new InputStreamReader(
-										entity.getContent()));
-								String line = rd.readLine();
-								// If line is not null we have the session id
-								if (line != null) {
-									// Save the line to sessionStr member
-									// variable.
-									sessionStr = line;
-									// call handleString("SESSION " +
-									// sessionStr) to notify the protocol about
-									// this.
-									// Protocol understands the hardcoded
-									// "SESSION" to mean that we now got the
-									// session id and handles it.
-									// See protocol implementation for details
-									handleString("SESSION");
-								}
-								// End if
-								// Else (session string is NOT null
-								// We do have a session -- that means that we
-								// actually got some data from the server!
-								// Handle that data by calling handleInputStream
-								// with the entitys' content as the parameter
+		ResponseHandler(List<TaskData> tasks, OHAPReply reply,
+				OHAPRequest request) {
+			this.tasks = tasks;
+			this.reply = reply;
+			this.request = request;
+			this.sessionId = reply.getSession().getId();
+		}
 
-							} else {
-								handleInputStream(entity.getContent());
-							}
+		@Override
+		public void responseArrived(int statusCode, InputStream content)
+				throws InterruptedException {
+			try {
+				if (request.getMethod() == OHAPRequest.Method.DELETE) {
+					// tell the protocol to close the session after sending
+					// the HTTP DELETE
+					reply.add(OHAPEvent.closed());
+				} else if (statusCode == HttpStatus.SC_OK) {
+					// Check if this was the GET starting a session:
+					// the response should contain session id. Checking the
+					// request, not the session, as responses to the
+					// previous session may still arrive while reconnecting.
+					OHAPSession session = reply.getSession();
+					if (request.getMethod() == OHAPRequest.Method.GET) {
+						BufferedReader rd = new BufferedReader(
+								new InputStreamReader(content));
+						String line = rd.readLine();
+						// If line is not null we have the session id
+						if (line != null) {
+							session.setId(line);
+							// Protocol understands the SESSION event to mean
+							// that we now got the session id and handles it.
+							// See protocol implementation for details
+							reply.add(OHAPEvent.session());
 						}
+					} else {
+						// We do have a session -- that means that we
+						// actually got some data from the server!
+						handleInputStream(reply, content);
+					}
+				} else {
+					// The commands of the request got no reply. The server
+					// does not know the session anymore, for example
+					// because it has been restarted.
+					reply.getSession().fail(tasks,
+							"Server responded " + statusCode);
+					if (null != sessionId) {
+						reply.add(OHAPEvent.lost(sessionId));
 					}
 				}
-			} catch (IllegalStateException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				String error = "IOException!!";
-				Log.d(threadName(), error);
-				handleString("ERROR " + error);
-				e.printStackTrace();
+				failed(e);
+			} finally {
+				pollFinished(statusCode != HttpStatus.SC_OK);
+				requestFinished(reply);
+			}
+		}
+
+		@Override
+		public void requestFailed(IOException e) throws InterruptedException {
+			try {
+				failed(e);
+			} finally {
+				pollFinished(true);
+				requestFinished(reply);
+			}
+		}
+
+		/**
+		 * Checks if the request is the empty request waiting for changes.
+		 */
+		private boolean isPoll() {
+			return request.getMethod() == OHAPRequest.Method.POST
+					&& null == request.getBody();
+		}
+
+		/**
+		 * Tells the poll scheduler of the session how the long poll went.
+		 * 
+		 * @param failed
+		 *            Did the poll fail.
+		 */
+		private void pollFinished(boolean failed) {
+			if (isPoll()) {
+				reply.getSession().getPollScheduler().pollFinished(
+						System.currentTimeMillis() - sent,
+						reply.getEvents().size(), failed);
 			}
 		}
-		// End if session string is/was null
-		// End if status code was SC_OK
-		// End if entity was not null
-		synchronized (this) {
-			isBusy = false;
+
+		/**
+		 * Handles a request which got no response. If the empty request
+		 * waiting for changes fails, the connection to the server is lost, and
+		 * the protocol is told so instead of the client.
+		 * 
+		 * @param e
+		 *            The reason.
+		 */
+		private void failed(IOException e) {
+			String error = "IOException!!";
+			Log.d(threadName(), error);
+			reply.getSession().fail(tasks, error);
+			if (null != sessionId && isPoll()) {
+				reply.add(OHAPEvent.lost(sessionId));
+			} else {
+				reply.add(OHAPEvent.error(error));
+			}
+			e.printStackTrace();
 		}
 	}
 
-	private HttpRequestBase createRequest(TaskData task, URI Url) {
-		HttpRequestBase request = null;
-		if (null == sessionStr) {
+	/**
+	 * Creates the http request for the tasks. GET, SET, LISTEN and UNLISTEN
+	 * commands are sent in the body of a POST, one command per line:
+	 * <code>uid command data</code>. The server responds to each command on
+	 * its own line, starting with the uid of the command.
+	 * 
+	 * @param tasks
+	 *            The tasks to send; either one task, or many commands.
+	 * @param Url
+	 *            The URL to send the request to.
+	 * @return The request, null if it could not be created.
+	 */
+	private OHAPRequest createRequest(List<TaskData> tasks, URI Url) {
+		TaskData task = tasks.get(0);
+		OHAPRequest request = null;
+		if (!task.getSession().hasId()) {
 			if (task.getCommand().equalsIgnoreCase(TaskData.INIT_SESSION_CMD)) {
 				// No session, initialize by using just the http address of the
 				// server.
-				request = new HttpGet(Url);
+				request = new OHAPRequest(OHAPRequest.Method.GET, Url, null);
 				Log.d(threadName(), "Creating OHAP session GET (new session)");
 			}
 		} else {
-			String uid = task.getUid();
-			if (null == uid) {
-				uid = new String("123456");
-			}
 			String command = task.getCommand();
 			Log.d(threadName(), "Command is: " + command);
 			if (command.equalsIgnoreCase(TaskData.EMPTY_REQUEST_CMD)) {
 				// Session exits, so just get an url with no command and send a
 				// post.
-				request = new HttpPost(Url);
+				request = new OHAPRequest(OHAPRequest.Method.POST, Url, null);
 				Log.d(threadName(), "Creating OHAP empty POST");
 			} else if (command.equalsIgnoreCase(TaskData.CLOSE_SESSION_CMD)) {
-				request = new HttpDelete(Url);
+				request = new OHAPRequest(OHAPRequest.Method.DELETE, Url, null);
 				Log.d(threadName(), "Creating OHAP session DELETE request");
-			} else if (command.equalsIgnoreCase(TaskData.GET_CMD)
-					|| command.equalsIgnoreCase(TaskData.SET_CMD)
-					|| command.equalsIgnoreCase(TaskData.LISTEN_CMD)
-					|| command.equalsIgnoreCase(TaskData.UNLISTEN_CMD)) {
-				Log.d(threadName(), "Creating a *POST*");
-				request = new HttpPost(Url);
-				String content = new String(uid + " " + command);
-				String data = task.getData();
-				if (null != data) {
-					Log.d(threadName(), "Data is: " + data);
-					content += " " + data + "\n";
+			} else if (OHAPTaskQueue.isBatchable(task)) {
+				Log.d(threadName(), "Creating a *POST* with " + tasks.size()
+						+ " commands");
+				StringBuilder content = new StringBuilder();
+				// The request is aborted only when no command in it can wait
+				// any longer, so a short deadline of one command does not
+				// abort the others.
+				long deadline = 0;
+				boolean unbounded = false;
+				for (TaskData line : tasks) {
+					if (line.getDeadline() <= 0) {
+						unbounded = true;
+					} else if (line.getDeadline() > deadline) {
+						deadline = line.getDeadline();
+					}
+					String uid = line.getUid();
+					if (null == uid) {
+						uid = TaskData.nextUid();
+						line.setTaskUid(uid);
+					}
+					content.append(uid).append(' ').append(line.getCommand());
+					String data = line.getData();
+					if (null != data) {
+						Log.d(threadName(), "Data is: " + data);
+						content.append(' ').append(data);
+					}
+					content.append('\n');
 				}
 				Log.d(threadName(), "Msg content: " + content);
-				StringEntity entity = null;
-				try {
-					entity = new StringEntity(content);
-				} catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
-					return null;
-				}
-				((HttpPost) request).setEntity(entity);
+				request = new OHAPRequest(OHAPRequest.Method.POST, Url,
+						content.toString(), unbounded ? 0 : deadline);
 			}
 		}
 		return request;
@@ -232,18 +260,19 @@ public class OHAPTaskImplementation extends OHAPTaskBase {
 	 */
 	private URI createUrl(TaskData task) {
 		URI Url = null;
+		OHAPSession session = task.getSession();
 		try {
-			if (null == sessionStr) {
+			if (!session.hasId()) {
 				if (task.getCommand().equalsIgnoreCase(
 						TaskData.INIT_SESSION_CMD)) {
 					// No session, initialize by using just the http address of
 					// the server.
-					Url = new URI(getServerAddress());
+					Url = new URI(session.getServerAddress());
 					Log.d(threadName(),
 							"Starting to initiate a OHAP session GET");
 				}
 			} else {
-				Url = new URI(getUrl());
+				Url = new URI(getUrl(session));
 				Log.d(threadName(), "Starting to initiate a OHAP POST");
 			}
 		} catch (URISyntaxException e) {
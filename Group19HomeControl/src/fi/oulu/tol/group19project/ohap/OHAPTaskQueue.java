@@ -0,0 +1,558 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+/**
+ * The task queue between the {@link OHAPBase} protocol and the
+ * {@link OHAPTaskBase} workers.
+ * <p>
+ *
+ * The queue works like a bounded blocking queue: {@link #put(TaskData)} blocks
+ * if the queue is full and {@link #takeBatch(List, int, long)} blocks if the
+ * queue is empty. The commands of the clients are put with
+ * {@link #offer(TaskData, OHAPConfiguration.OverflowPolicy)}, which never
+ * blocks but handles a full queue by the overflow policy. In
+ * addition, the queue coalesces SET commands. When a SET for a device path is
+ * put in the queue while an earlier SET for the same path is still waiting to
+ * be sent, the data of the waiting task is replaced with the new data instead
+ * of queueing the new task. Only the latest value of a device matters, so for
+ * example dragging a seek bar sends just the last value the worker gets to,
+ * and cannot fill up the queue.
+ * <p>
+ *
+ * Workers can take several commands at a time with
+ * {@link #takeBatch(List, int, long)} to send them to the server in one
+ * request.
+ * <p>
+ *
+ * The queue may be shared by the protocols of many sessions, see
+ * {@link OHAPFactory}. Each task carries its {@link OHAPSession}. Tasks of
+ * different sessions are never coalesced or batched together, and the queue
+ * keeps the sessions informed of how many of their tasks are waiting.
+ * <p>
+ *
+ * The tasks wait in lanes by their priority (see {@link TaskData.Priority}),
+ * each lane in FIFO order. The interactive lane is always served first, so a
+ * SET of the user does not wait behind a refresh of all the devices. To keep
+ * the lower lanes from starving, a lane which has been passed over
+ * {@link #STARVATION_LIMIT} times in a row is served next.
+ * <p>
+ *
+ * A task whose deadline has passed (see {@link TaskData#getDeadline()}), or
+ * whose future has been cancelled, is dropped when a worker next takes tasks,
+ * so a stale SET queued during an outage is not sent minutes later.
+ *
+ * @see OHAPPathBuilder#devicePathOf(String)
+ */
+public class OHAPTaskQueue {
+
+	private static final String TAG = "HCApp-OHAPTaskQueue";
+
+	/**
+	 * How many times in a row a lane with tasks may be passed over in favour
+	 * of the higher lanes.
+	 */
+	public static final int STARVATION_LIMIT = 8;
+
+	/** The lanes of the tasks, by priority, each in FIFO order. */
+	private final List<LinkedList<TaskData>> lanes = new ArrayList<LinkedList<TaskData>>();
+
+	/** How many times in a row each lane has been passed over. */
+	private final int[] passedOver;
+
+	/** Number of tasks in all the lanes. */
+	private int count = 0;
+
+	/**
+	 * The SET tasks waiting in the queue, by their session number and device
+	 * path.
+	 */
+	private final Map<String, TaskData> pendingSets = new HashMap<String, TaskData>();
+
+	/** Max number of tasks in the queue. */
+	private final int capacity;
+
+	/** Guards the queue. */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Signalled when a task is put in the queue. */
+	private final Condition notEmpty = lock.newCondition();
+
+	/** Signalled when a task is taken from the queue. */
+	private final Condition notFull = lock.newCondition();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            How many tasks the queue can hold.
+	 */
+	public OHAPTaskQueue(int capacity) {
+		this.capacity = capacity;
+		int laneCount = TaskData.Priority.values().length;
+		for (int i = 0; i < laneCount; i++) {
+			lanes.add(new LinkedList<TaskData>());
+		}
+		passedOver = new int[laneCount];
+	}
+
+	/**
+	 * Puts a task in the queue. If the task is a SET for a device which
+	 * already has a SET waiting in the queue, the waiting task gets the data
+	 * of the new one. Otherwise the task is added to the end of its lane,
+	 * waiting for space to become available if the queue is full.
+	 *
+	 * @param task
+	 *            The task to put in the queue.
+	 * @throws InterruptedException
+	 */
+	public void put(TaskData task) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if (coalesce(task)) {
+				return;
+			}
+			while (count >= capacity) {
+				notFull.await();
+				// A SET for the same device may have been queued meanwhile.
+				if (coalesce(task)) {
+					return;
+				}
+			}
+			enqueue(task);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts a task in the queue without waiting. SETs are coalesced like in
+	 * {@link #put(TaskData)}. If the queue is full, the policy tells what to
+	 * do.
+	 *
+	 * @param task
+	 *            The task to put in the queue.
+	 * @param policy
+	 *            What to do if the queue is full.
+	 * @return true if the task was queued or merged to a waiting task, false
+	 *         if it was rejected.
+	 */
+	public boolean offer(TaskData task, OHAPConfiguration.OverflowPolicy policy) {
+		lock.lock();
+		try {
+			if (coalesce(task)) {
+				return true;
+			}
+			if (count < capacity) {
+				enqueue(task);
+				return true;
+			}
+			switch (policy) {
+			case DROP_OLDEST: {
+				LinkedList<TaskData> tasks = lanes.get(task.getPriority()
+						.ordinal());
+				Iterator<TaskData> iterator = tasks.iterator();
+				while (iterator.hasNext()) {
+					TaskData oldest = iterator.next();
+					// Session management commands are never dropped.
+					if (oldest.getSession() == task.getSession()
+							&& isBatchable(oldest)) {
+						iterator.remove();
+						forget(oldest);
+						oldest.getSession().fail(oldest.getUid(),
+								"Dropped, the task queue is full");
+						enqueue(task);
+						return true;
+					}
+				}
+				return false;
+			}
+			case COALESCE: {
+				for (TaskData waiting : lanes.get(task.getPriority().ordinal())) {
+					if (isDuplicate(waiting, task)) {
+						waiting.setDeadline(laterDeadline(waiting, task));
+						if (null != task.getUid()) {
+							task.getSession().merged(waiting.getUid(),
+									task.getUid());
+							waiting.setTaskUid(task.getUid());
+						}
+						return true;
+					}
+				}
+				return false;
+			}
+			default:
+				return false;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes a batch of tasks from the queue, waiting for the first task if the
+	 * queue is empty. The first task is taken from the lane served next. If it
+	 * is a GET, SET, LISTEN or UNLISTEN command, the following such commands
+	 * in the same lane are taken too, until the batch is full or the lane has
+	 * some other task first. If the whole queue becomes empty before the batch
+	 * is full, waits max lingerMillis for more commands. Other tasks are
+	 * always taken alone. All the tasks of the batch belong to the same
+	 * session and have the same priority.
+	 * <p>
+	 * The batch is counted as a started request of its session; the worker
+	 * must call {@link OHAPSession#requestFinished(OHAPReply)} when it is done
+	 * with it. The batches get their sequence numbers in the order they are
+	 * taken, except the empty requests, which are not ordered. Once the first
+	 * task has been taken, an interrupt only ends the waiting for more tasks:
+	 * the batch is returned with the interrupt status of the thread set, so
+	 * that the tasks and the sequence number are not lost.
+	 *
+	 * @param batch
+	 *            The list where the tasks are added.
+	 * @param maxSize
+	 *            Max number of tasks in the batch.
+	 * @param lingerMillis
+	 *            How long to wait for more tasks to fill the batch.
+	 * @return The sequence number of the batch in its session, or
+	 *         {@link OHAPReply#UNORDERED}.
+	 * @throws InterruptedException
+	 */
+	public int takeBatch(List<TaskData> batch, int maxSize, long lingerMillis)
+			throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			dropStale();
+			while (count == 0) {
+				notEmpty.await();
+				dropStale();
+			}
+			int lane = nextLane();
+			served(lane);
+			LinkedList<TaskData> tasks = lanes.get(lane);
+			// Count the request as started before the task leaves the queue,
+			// so the session never looks idle in between.
+			TaskData head = tasks.peek();
+			int sequence = head.getSession().requestStarted(
+					!head.getCommand().equalsIgnoreCase(
+							TaskData.EMPTY_REQUEST_CMD));
+			TaskData first = dequeue(tasks);
+			batch.add(first);
+			if (!isBatchable(first)) {
+				return sequence;
+			}
+			long nanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+			while (batch.size() < maxSize) {
+				if (tasks.isEmpty()) {
+					// Do not keep other work waiting for the batch to fill.
+					if (nanos <= 0 || count > 0) {
+						break;
+					}
+					try {
+						nanos = notEmpty.awaitNanos(nanos);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				} else if (isBatchable(tasks.peek())
+						&& tasks.peek().getSession() == first.getSession()) {
+					batch.add(dequeue(tasks));
+				} else {
+					break;
+				}
+			}
+			// We may have consumed a signal meant for another worker.
+			if (count > 0) {
+				notEmpty.signal();
+			}
+			return sequence;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the task which would be taken next, without removing it.
+	 *
+	 * @return The next task, or null if the queue is empty.
+	 */
+	public TaskData peek() {
+		lock.lock();
+		try {
+			if (count == 0) {
+				return null;
+			}
+			return lanes.get(nextLane()).peek();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of tasks in the queue.
+	 *
+	 * @return The number of tasks.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of tasks the queue can hold.
+	 *
+	 * @return The capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Removes all the tasks of the session from the queue.
+	 *
+	 * @param session
+	 *            The session whose tasks are removed.
+	 * @return The number of the removed tasks.
+	 */
+	public int clear(OHAPSession session) {
+		int removed = 0;
+		lock.lock();
+		try {
+			for (LinkedList<TaskData> tasks : lanes) {
+				Iterator<TaskData> iterator = tasks.iterator();
+				while (iterator.hasNext()) {
+					TaskData task = iterator.next();
+					if (task.getSession() == session) {
+						iterator.remove();
+						forget(task);
+						removed++;
+					}
+				}
+			}
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return removed;
+	}
+
+	/**
+	 * Replaces the data of a waiting SET with the data of the task, if there
+	 * is one for the same device. Must be called holding the lock.
+	 *
+	 * @param task
+	 *            The task being put in the queue.
+	 * @return true if the task was merged to a waiting task.
+	 */
+	private boolean coalesce(TaskData task) {
+		String key = coalescingKey(task);
+		if (null == key) {
+			return false;
+		}
+		TaskData pending = pendingSets.get(key);
+		if (null == pending) {
+			return false;
+		}
+		pending.setData(task.getData());
+		pending.setDeadline(laterDeadline(pending, task));
+		if (null != task.getUid()) {
+			task.getSession().merged(pending.getUid(), task.getUid());
+			pending.setTaskUid(task.getUid());
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the deadline of a waiting task a newer task is merged to, so that
+	 * the merged task is not dropped before the deadline of the newer one.
+	 *
+	 * @return The later of the deadlines, 0 if either has none.
+	 */
+	private static long laterDeadline(TaskData waiting, TaskData task) {
+		if (waiting.getDeadline() <= 0 || task.getDeadline() <= 0) {
+			return 0;
+		}
+		return Math.max(waiting.getDeadline(), task.getDeadline());
+	}
+
+	/**
+	 * Drops the tasks whose deadline has passed or whose future has been
+	 * cancelled. Must be called holding the lock.
+	 */
+	private void dropStale() {
+		long now = System.currentTimeMillis();
+		boolean dropped = false;
+		for (LinkedList<TaskData> tasks : lanes) {
+			Iterator<TaskData> iterator = tasks.iterator();
+			while (iterator.hasNext()) {
+				TaskData task = iterator.next();
+				boolean expired = task.isExpired(now);
+				if (expired || task.getSession().isCancelled(task.getUid())) {
+					Log.d(TAG, (expired ? "Expired: " : "Cancelled: ")
+							+ task.getCommand() + " " + task.getUid());
+					iterator.remove();
+					forget(task);
+					task.getSession().dropped(task, expired);
+					dropped = true;
+				}
+			}
+		}
+		if (dropped) {
+			notFull.signalAll();
+		}
+	}
+
+	/**
+	 * Checks if the tasks are the same command with the same data, in the
+	 * same session.
+	 *
+	 * @param waiting
+	 *            A task in the queue.
+	 * @param task
+	 *            The task being put in the queue.
+	 * @return true if sending the task would repeat the waiting one.
+	 */
+	private static boolean isDuplicate(TaskData waiting, TaskData task) {
+		return waiting.getSession() == task.getSession()
+				&& waiting.getCommand().equalsIgnoreCase(task.getCommand())
+				&& (null == waiting.getData() ? null == task.getData()
+						: waiting.getData().equals(task.getData()));
+	}
+
+	/**
+	 * Chooses the lane to serve next: the first lane which has been passed
+	 * over too many times, or else the highest lane with tasks. Must be called
+	 * holding the lock, when the queue is not empty.
+	 *
+	 * @return The index of the lane.
+	 */
+	private int nextLane() {
+		int highest = -1;
+		for (int lane = 0; lane < lanes.size(); lane++) {
+			if (lanes.get(lane).isEmpty()) {
+				continue;
+			}
+			if (passedOver[lane] >= STARVATION_LIMIT) {
+				return lane;
+			}
+			if (highest < 0) {
+				highest = lane;
+			}
+		}
+		return highest;
+	}
+
+	/**
+	 * Updates the starvation counters when a lane is served. The other lanes
+	 * with tasks have been passed over. Must be called holding the lock.
+	 *
+	 * @param served
+	 *            The index of the lane served.
+	 */
+	private void served(int served) {
+		for (int lane = 0; lane < lanes.size(); lane++) {
+			if (lane == served || lanes.get(lane).isEmpty()) {
+				passedOver[lane] = 0;
+			} else {
+				passedOver[lane]++;
+			}
+		}
+	}
+
+	/**
+	 * Adds the task to the end of its lane. Must be called holding the lock.
+	 *
+	 * @param task
+	 *            The task to add.
+	 */
+	private void enqueue(TaskData task) {
+		lanes.get(task.getPriority().ordinal()).addLast(task);
+		count++;
+		String key = coalescingKey(task);
+		if (null != key) {
+			pendingSets.put(key, task);
+		}
+		task.getSession().taskQueued();
+		notEmpty.signal();
+	}
+
+	/**
+	 * Removes the first task from the lane. Must be called holding the lock,
+	 * when the lane is not empty. After this, the data of the task does not
+	 * change anymore.
+	 *
+	 * @param tasks
+	 *            The lane.
+	 * @return The removed task.
+	 */
+	private TaskData dequeue(LinkedList<TaskData> tasks) {
+		TaskData task = tasks.removeFirst();
+		forget(task);
+		notFull.signal();
+		return task;
+	}
+
+	/**
+	 * Bookkeeping of a task removed from the queue. Must be called holding
+	 * the lock.
+	 *
+	 * @param task
+	 *            The removed task.
+	 */
+	private void forget(TaskData task) {
+		String key = coalescingKey(task);
+		if (null != key && pendingSets.get(key) == task) {
+			pendingSets.remove(key);
+		}
+		count--;
+		task.getSession().taskDequeued();
+	}
+
+	/**
+	 * Checks if the task is a command that can be sent to the server together
+	 * with other commands.
+	 *
+	 * @param task
+	 *            The task.
+	 * @return true for GET, SET, LISTEN and UNLISTEN commands.
+	 */
+	static boolean isBatchable(TaskData task) {
+		String command = task.getCommand();
+		return command.equalsIgnoreCase(TaskData.GET_CMD)
+				|| command.equalsIgnoreCase(TaskData.SYNC_CMD)
+				|| command.equalsIgnoreCase(TaskData.SET_CMD)
+				|| command.equalsIgnoreCase(TaskData.LISTEN_CMD)
+				|| command.equalsIgnoreCase(TaskData.UNLISTEN_CMD);
+	}
+
+	/**
+	 * Gets the key used in coalescing the task.
+	 *
+	 * @param task
+	 *            The task.
+	 * @return The session number and device path of a SET task, null for
+	 *         other tasks.
+	 */
+	private static String coalescingKey(TaskData task) {
+		if (task.getCommand().equalsIgnoreCase(TaskData.SET_CMD)
+				&& null != task.getData()) {
+			return task.getSession().getNumber() + " "
+					+ OHAPPathBuilder.devicePathOf(task.getData());
+		}
+		return null;
+	}
+
+}
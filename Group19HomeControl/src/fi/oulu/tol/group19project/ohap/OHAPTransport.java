@@ -0,0 +1,86 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The interface the {@link OHAPTaskBase} workers use to send their HTTP
+ * requests to the server.
+ * <p>
+ *
+ * A transport is owned by the {@link OHAPBase} protocol and shared by all of
+ * its workers. The worker builds an {@link OHAPRequest} and gives it to
+ * {@link #execute(OHAPRequest, ResponseHandler)} together with a handler,
+ * which the transport calls when the response has arrived or the request has
+ * failed. Exactly one of the handler methods is called for each request.
+ * <p>
+ *
+ * A transport may be blocking, calling the handler in the worker thread
+ * before execute returns, like {@link OHAPHttpTransport}. Or it may be
+ * non-blocking, returning from execute right away and calling the handler
+ * later from a thread of its own, like {@link OHAPNioTransport}. The workers
+ * work with both.
+ *
+ * @see OHAPBase#setTransport(OHAPTransport)
+ */
+public interface OHAPTransport {
+
+	/**
+	 * Receives the outcome of a request.
+	 */
+	public interface ResponseHandler {
+		/**
+		 * Called when the server has responded to the request.
+		 *
+		 * @param statusCode
+		 *            The HTTP status code of the response.
+		 * @param content
+		 *            The body of the response, decompressed if the server sent
+		 *            it compressed. Valid only during the call.
+		 *            Errors in reading it are for the handler to handle; the
+		 *            transport does not call {@link #requestFailed(IOException)}
+		 *            after this.
+		 * @throws InterruptedException
+		 */
+		public void responseArrived(int statusCode, InputStream content)
+				throws InterruptedException;
+
+		/**
+		 * Called when the request could not be sent or the response could not
+		 * be read.
+		 *
+		 * @param e
+		 *            The reason.
+		 * @throws InterruptedException
+		 */
+		public void requestFailed(IOException e) throws InterruptedException;
+	}
+
+	/**
+	 * Takes the protocol configuration into use. Called by the protocol when
+	 * a session is started.
+	 *
+	 * @param configuration
+	 *            The protocol configuration.
+	 */
+	public void configure(OHAPConfiguration configuration);
+
+	/**
+	 * Sends the request.
+	 *
+	 * @param request
+	 *            The request to send.
+	 * @param handler
+	 *            Gets the response.
+	 * @throws InterruptedException
+	 */
+	public void execute(OHAPRequest request, ResponseHandler handler)
+			throws InterruptedException;
+
+	/**
+	 * Closes the connections and releases the resources of the transport.
+	 * The transport may be used again after this, opening new connections.
+	 */
+	public void shutdown();
+
+}
@@ -0,0 +1,109 @@
+package fi.oulu.tol.group19project.ohap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * A pool of {@link OHAPTaskBase} workers which all read the same task queue.
+ * <p>
+ *
+ * The pool is owned by the {@link OHAPFactory} and shared by all the
+ * {@link OHAPBase} protocols it creates. When a session is started, the pool
+ * is attached to the task queue. Workers are created and started only if the
+ * pool does not yet have enough of them, so starting a new session after the
+ * previous one has ended, or while other sessions are running, reuses the
+ * already running worker threads. Between sessions the workers just block on
+ * the empty task queue.
+ * <p>
+ *
+ * The worker threads are stopped only when {@link #shutdown()} is called.
+ *
+ * @see OHAPBase
+ * @see OHAPTaskBase
+ */
+public class OHAPWorkerPool {
+
+	private static final String TAG = "HCApp-OHAPWorkerPool";
+
+	/** The workers of the pool. */
+	private final List<OHAPTaskBase> workers = new ArrayList<OHAPTaskBase>();
+
+	/**
+	 * Attaches the workers to the task queue, and makes sure the pool has the
+	 * configured number of running workers. Missing workers are created, extra
+	 * ones stopped.
+	 *
+	 * @param configuration
+	 *            The protocol configuration, tells the size of the pool.
+	 * @param transport
+	 *            The transport the workers share in sending the requests.
+	 * @param taskQueue
+	 *            Task queue the workers read.
+	 */
+	public void attach(OHAPConfiguration configuration,
+			OHAPTransport transport, OHAPTaskQueue taskQueue) {
+		attach(configuration.getWorkerCount(), configuration.getBatchSize(),
+				configuration.getBatchLinger(), transport, taskQueue);
+	}
+
+	/**
+	 * Attaches the workers to the task queue, and makes sure the pool has the
+	 * given number of running workers.
+	 *
+	 * @param size
+	 *            Number of the workers.
+	 * @param batchSize
+	 *            Max number of commands a worker sends in one request.
+	 * @param batchLinger
+	 *            How long a worker waits for more commands to the batch.
+	 * @param transport
+	 *            The transport the workers share in sending the requests.
+	 * @param taskQueue
+	 *            Task queue the workers read.
+	 */
+	public synchronized void attach(int size, int batchSize, long batchLinger,
+			OHAPTransport transport, OHAPTaskQueue taskQueue) {
+		while (workers.size() > size) {
+			workers.remove(workers.size() - 1).stop();
+		}
+		while (workers.size() < size) {
+			workers.add(new OHAPTaskImplementation());
+		}
+		for (OHAPTaskBase worker : workers) {
+			worker.initialize(taskQueue);
+			worker.setTransport(transport);
+			worker.setBatching(batchSize, batchLinger);
+			worker.start();
+		}
+		Log.d(TAG, "Pool attached with " + workers.size() + " workers");
+	}
+
+	/**
+	 * Use this to check if all the workers are free to take new tasks.
+	 *
+	 * @return true if none of the workers has requests waiting for the
+	 *         server.
+	 */
+	public synchronized boolean isIdle() {
+		for (OHAPTaskBase worker : workers) {
+			if (worker.isBusy()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops all the worker threads and empties the pool.
+	 */
+	public synchronized void shutdown() {
+		Log.d(TAG, "Shutting down " + workers.size() + " workers");
+		for (OHAPTaskBase worker : workers) {
+			worker.stop();
+		}
+		workers.clear();
+	}
+
+}
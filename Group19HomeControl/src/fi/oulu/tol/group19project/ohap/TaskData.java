@@ -1,5 +1,7 @@
 package fi.oulu.tol.group19project.ohap;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Encapsulates the OHAP task data elements in a simple class.
  * <p>
@@ -22,6 +24,22 @@ package fi.oulu.tol.group19project.ohap;
  */
 public class TaskData {
 
+	/**
+	 * The priority classes of the tasks. The task queue serves the classes in
+	 * this order, see {@link OHAPTaskQueue}.
+	 */
+	public enum Priority {
+		/**
+		 * Work the user is waiting for, like changing the value of an
+		 * actuator. Also the session management commands.
+		 */
+		INTERACTIVE,
+		/** Refreshing the device data and the LISTEN registrations. */
+		BACKGROUND,
+		/** The empty requests keeping a request open to the server. */
+		KEEP_ALIVE
+	};
+
 	// Session management commands:
 	/**
 	 * Send this command to the server to initiate an OHAP session with the
@@ -79,6 +97,24 @@ public class TaskData {
 	 * 
 	 */
 	public static final String UNLISTEN_CMD = "UNLISTEN";
+	/**
+	 * Use SYNC to get the changes to the devices since a version of the model
+	 * the client has. The data is the version, or null if the client has no
+	 * model yet. The server replies with a DELTA: the new version and the
+	 * changed devices in the same JSON format as a VALUE. A server which does
+	 * not know the version replies with the whole tree in the DELTA.
+	 * <p>
+	 * If the server does not understand SYNC, it replies with an ERROR and
+	 * the protocol gets the whole tree with a GET instead, see
+	 * {@link OHAPBase}.
+	 */
+	public static final String SYNC_CMD = "SYNC";
+
+	/**
+	 * For giving the commands without an uid an uid of their own, so that the
+	 * responses to the commands batched in one request can be told apart.
+	 */
+	private static final AtomicInteger uidCounter = new AtomicInteger(0);
 
 	/**
 	 * The uid for the task. This can be null. Use it if you want to track which
@@ -96,9 +132,24 @@ public class TaskData {
 	 * commands.
 	 */
 	private String data = null;
+	/**
+	 * The session the task belongs to. Tells the worker where to send the
+	 * task and where to put the results.
+	 */
+	private OHAPSession session = null;
+	/**
+	 * The priority class of the task.
+	 */
+	private Priority priority = null;
+	/**
+	 * When the task must have been done, in milliseconds since the epoch.
+	 * Zero if the task has no deadline.
+	 */
+	private long deadline = 0;
 
 	/**
-	 * Constructor for TaskData.
+	 * Constructor for TaskData. The priority of the task is set by the
+	 * command, see {@link #defaultPriority(String)}.
 	 * 
 	 * @param uid
 	 *            Task uid, may be null.
@@ -111,6 +162,24 @@ public class TaskData {
 		taskUid = uid;
 		this.command = command;
 		this.data = data;
+		this.priority = defaultPriority(command);
+	}
+
+	/**
+	 * Constructor for TaskData with a priority.
+	 * 
+	 * @param uid
+	 *            Task uid, may be null.
+	 * @param command
+	 *            Command string, should be a valid OHAP command.
+	 * @param data
+	 *            Data to send with the command, depends on the command.
+	 * @param priority
+	 *            The priority class of the task.
+	 */
+	TaskData(String uid, String command, String data, Priority priority) {
+		this(uid, command, data);
+		this.priority = priority;
 	}
 
 	/**
@@ -123,6 +192,39 @@ public class TaskData {
 		this.taskUid = another.taskUid;
 		this.command = another.command;
 		this.data = another.data;
+		this.session = another.session;
+		this.priority = another.priority;
+		this.deadline = another.deadline;
+	}
+
+	/**
+	 * Gets the priority a command has by default: SET and the session
+	 * management commands are interactive, GET, SYNC, LISTEN and UNLISTEN
+	 * background work, and the empty request is a keep-alive.
+	 * 
+	 * @param command
+	 *            The command.
+	 * @return The priority of the command.
+	 */
+	public static Priority defaultPriority(String command) {
+		if (command.equalsIgnoreCase(EMPTY_REQUEST_CMD)) {
+			return Priority.KEEP_ALIVE;
+		} else if (command.equalsIgnoreCase(GET_CMD)
+				|| command.equalsIgnoreCase(SYNC_CMD)
+				|| command.equalsIgnoreCase(LISTEN_CMD)
+				|| command.equalsIgnoreCase(UNLISTEN_CMD)) {
+			return Priority.BACKGROUND;
+		}
+		return Priority.INTERACTIVE;
+	}
+
+	/**
+	 * Creates a new uid for a command.
+	 * 
+	 * @return The uid, unique within the process.
+	 */
+	static String nextUid() {
+		return Integer.toString(uidCounter.incrementAndGet());
 	}
 
 	/**
@@ -156,6 +258,67 @@ public class TaskData {
 		this.data = data;
 	}
 
+	/**
+	 * Sets the session the task belongs to.
+	 * 
+	 * @param session
+	 *            The session.
+	 */
+	void setSession(OHAPSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Sets the priority class of the task.
+	 * 
+	 * @param priority
+	 *            The priority.
+	 */
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Sets when the task must have been done. A task still in the task queue
+	 * after the deadline is not sent, and the request sending the task is
+	 * aborted at the deadline if the server has not started to respond.
+	 * 
+	 * @param deadline
+	 *            The deadline in milliseconds since the epoch, zero for none.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Gets when the task must have been done.
+	 * 
+	 * @return The deadline in milliseconds since the epoch, zero if none.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Checks if the deadline of the task has passed.
+	 * 
+	 * @param now
+	 *            The current time in milliseconds since the epoch.
+	 * @return true if the task has a deadline and it has passed.
+	 */
+	public boolean isExpired(long now) {
+		return deadline > 0 && now >= deadline;
+	}
+
+	/**
+	 * Gets the priority class of the task.
+	 * 
+	 * @return The priority.
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+
 	/**
 	 * Gets the uid of the task.
 	 * 
@@ -183,4 +346,13 @@ public class TaskData {
 		return data;
 	}
 
+	/**
+	 * Gets the session the task belongs to.
+	 * 
+	 * @return The session.
+	 */
+	public OHAPSession getSession() {
+		return session;
+	}
+
 }
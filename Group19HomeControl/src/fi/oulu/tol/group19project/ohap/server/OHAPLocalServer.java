@@ -0,0 +1,667 @@
+package fi.oulu.tol.group19project.ohap.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.oulu.tol.group19project.ohap.OHAPContentCoding;
+import fi.oulu.tol.group19project.ohap.OHAPPathBuilder;
+import fi.oulu.tol.group19project.ohap.TaskData;
+
+import android.util.Log;
+
+/**
+ * An OHAP server running inside the application, serving a
+ * {@link SimulatedHome}. Use it to develop and measure the protocol without
+ * the real central unit: start the server and give {@link #getAddress()} to
+ * {@link fi.oulu.tol.group19project.ohap.OHAPInterface#startSession(String)}.
+ * <p>
+ *
+ * The server implements what the client expects of the central unit:
+ * <ul>
+ * <li>A GET without a session creates a session; the body is the session id.</li>
+ * <li>A POST to <code>/id/counter</code> with commands, one per line as
+ * <code>uid command data</code>, is answered with one line per command: OK,
+ * VALUE or DELTA with the JSON, or ERROR. GET, SET, LISTEN, UNLISTEN and SYNC
+ * are understood.</li>
+ * <li>An empty POST is a long poll. It is held until a device listened to
+ * changes, or until the hold time has passed, and is answered with a VALUE
+ * line per change, with the uid of the LISTEN.</li>
+ * <li>A DELETE ends the session.</li>
+ * <li>A request with an unknown session id gets 404, as from a restarted
+ * central unit.</li>
+ * </ul>
+ * The server keeps the connections alive, and compresses the responses with
+ * gzip when the client accepts it. A simulation thread changes the values of
+ * the sensors at the configured rate. Sessions not heard from in a while are
+ * removed.
+ * <p>
+ *
+ * Only plain http on the loopback interface is served.
+ *
+ * @see SimulatedHome
+ */
+public class OHAPLocalServer {
+
+	private static final String TAG = "HCApp-OHAPLocalServer";
+
+	/** Default time in milliseconds a long poll is held. */
+	public static final long DEFAULT_POLL_HOLD = 15000;
+
+	/** Default time in milliseconds between the simulated changes. */
+	public static final long DEFAULT_CHANGE_INTERVAL = 2000;
+
+	/** Default number of the sensors changing at a time. */
+	public static final int DEFAULT_CHANGES_PER_INTERVAL = 1;
+
+	/** Default time in milliseconds an unused session is kept. */
+	public static final long DEFAULT_SESSION_TIMEOUT = 60000;
+
+	/** Min length in bytes of a response worth compressing. */
+	private static final int COMPRESSION_THRESHOLD = 256;
+
+	/** The charset of the requests and responses. */
+	private static final String CHARSET = "ISO-8859-1";
+
+	/** How long an idle keep-alive connection is kept open. */
+	private static final int IDLE_TIMEOUT = 30000;
+
+	/**
+	 * A session of a client.
+	 */
+	private static class Session {
+		final String id;
+		/** The paths listened to, by the uid of the LISTEN. */
+		final Map<String, String> listens = new HashMap<String, String>();
+		/** The change notifications not yet sent. */
+		final LinkedList<String> notifications = new LinkedList<String>();
+		long lastSeen = System.currentTimeMillis();
+		boolean closed = false;
+
+		Session(String id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * A parsed HTTP request.
+	 */
+	private static class Request {
+		String method;
+		String path;
+		String contentEncoding = null;
+		boolean acceptGzip = false;
+		boolean keepAlive = true;
+		byte[] body = new byte[0];
+	}
+
+	private final SimulatedHome home;
+
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	private final AtomicInteger sessionCounter = new AtomicInteger(0);
+
+	private long pollHold = DEFAULT_POLL_HOLD;
+	private long changeInterval = DEFAULT_CHANGE_INTERVAL;
+	private int changesPerInterval = DEFAULT_CHANGES_PER_INTERVAL;
+	private long sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+	private ServerSocket serverSocket = null;
+	private ExecutorService connections = null;
+	private Thread acceptor = null;
+	private Thread simulator = null;
+	private volatile boolean running = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param home
+	 *            The home to serve.
+	 */
+	public OHAPLocalServer(SimulatedHome home) {
+		this.home = home;
+	}
+
+	/**
+	 * Sets how long a long poll is held if nothing changes. Set before
+	 * starting the server.
+	 *
+	 * @param pollHold
+	 *            The time in milliseconds.
+	 */
+	public void setPollHold(long pollHold) {
+		this.pollHold = pollHold;
+	}
+
+	/**
+	 * Sets the rate of the simulated changes. Set before starting the server.
+	 *
+	 * @param interval
+	 *            Time in milliseconds between the changes, zero for no
+	 *            changes.
+	 * @param changes
+	 *            Number of the sensors changing at a time.
+	 */
+	public void setChangeRate(long interval, int changes) {
+		this.changeInterval = interval;
+		this.changesPerInterval = changes;
+	}
+
+	/**
+	 * Sets how long a session not heard from is kept. Set before starting the
+	 * server.
+	 *
+	 * @param sessionTimeout
+	 *            The time in milliseconds.
+	 */
+	public void setSessionTimeout(long sessionTimeout) {
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	/**
+	 * Gets the home the server serves.
+	 *
+	 * @return The home.
+	 */
+	public SimulatedHome getHome() {
+		return home;
+	}
+
+	/**
+	 * Starts the server on the loopback interface.
+	 *
+	 * @param port
+	 *            The port, zero for any free port.
+	 * @throws IOException
+	 *             If the port could not be bound.
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (running) {
+			return;
+		}
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(InetAddress
+				.getByName("127.0.0.1"), port));
+		running = true;
+		connections = Executors.newCachedThreadPool();
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		}, "HCApp-OHAPLocalServer");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		simulator = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				simulate();
+			}
+		}, "HCApp-OHAPLocalSimulator");
+		simulator.setDaemon(true);
+		simulator.start();
+		Log.d(TAG, "Serving " + home.getDeviceCount() + " devices at "
+				+ getAddress());
+	}
+
+	/**
+	 * Stops the server, closing the connections and ending the sessions.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			Log.d(TAG, "Could not close the server socket");
+		}
+		simulator.interrupt();
+		connections.shutdownNow();
+		for (Session session : sessions.values()) {
+			synchronized (session) {
+				session.closed = true;
+				session.notifyAll();
+			}
+		}
+		sessions.clear();
+		Log.d(TAG, "Stopped");
+	}
+
+	/**
+	 * Checks if the server is running.
+	 *
+	 * @return true if started and not stopped.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Gets the address of the server for the protocol.
+	 *
+	 * @return The address, like "http://127.0.0.1:18000", null if the server
+	 *         is not running.
+	 */
+	public synchronized String getAddress() {
+		if (!running) {
+			return null;
+		}
+		return "http://127.0.0.1:" + serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Gets the number of the sessions.
+	 *
+	 * @return The session count.
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	private void acceptConnections() {
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				connections.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (IOException e) {
+				if (running) {
+					Log.d(TAG, "Accept failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Changes the sensors and notifies the sessions listening to them, and
+	 * removes the sessions not heard from.
+	 */
+	private void simulate() {
+		long tick = changeInterval > 0 ? changeInterval : 1000;
+		while (running) {
+			try {
+				Thread.sleep(tick);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (changeInterval > 0) {
+				changed(home.simulate(changesPerInterval));
+			}
+			long now = System.currentTimeMillis();
+			Iterator<Session> iterator = sessions.values().iterator();
+			while (iterator.hasNext()) {
+				Session session = iterator.next();
+				synchronized (session) {
+					if (now - session.lastSeen > sessionTimeout) {
+						Log.d(TAG, "Session " + session.id + " timed out");
+						session.closed = true;
+						session.notifyAll();
+						iterator.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues the change notifications to the sessions listening to the
+	 * changed devices, and wakes up their long polls.
+	 */
+	private void changed(List<String> paths) {
+		for (Session session : sessions.values()) {
+			synchronized (session) {
+				boolean notified = false;
+				for (Map.Entry<String, String> listen : session.listens
+						.entrySet()) {
+					String listened = OHAPPathBuilder.normalizePath(listen
+							.getValue());
+					for (String path : paths) {
+						if (OHAPPathBuilder.isWithin(listened, path)) {
+							session.notifications.add(listen.getKey()
+									+ " VALUE " + home.state(path));
+							notified = true;
+						}
+					}
+				}
+				if (notified) {
+					session.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serves the requests of a keep-alive connection.
+	 */
+	private void serve(Socket socket) {
+		try {
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			Request request = readRequest(in);
+			while (running && null != request) {
+				if (!handle(request, out)) {
+					break;
+				}
+				request = readRequest(in);
+			}
+		} catch (SocketTimeoutException e) {
+			// An idle connection, closed below.
+		} catch (SocketException e) {
+			// The client closed the connection.
+		} catch (IOException e) {
+			Log.d(TAG, "Connection failed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				Log.d(TAG, "Could not close a connection");
+			}
+		}
+	}
+
+	/**
+	 * Reads a request.
+	 *
+	 * @return The request, null if the client closed the connection.
+	 */
+	private Request readRequest(InputStream in) throws IOException {
+		String line = readLine(in);
+		if (null == line) {
+			return null;
+		}
+		String[] parts = line.split(" ");
+		if (parts.length < 3) {
+			throw new IOException("Malformed request line: " + line);
+		}
+		Request request = new Request();
+		request.method = parts[0];
+		request.path = parts[1];
+		request.keepAlive = !parts[2].equals("HTTP/1.0");
+		int length = 0;
+		for (line = readLine(in); null != line && line.length() > 0; line = readLine(in)) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					length = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed Content-Length: " + value);
+				}
+			} else if (name.equalsIgnoreCase("Content-Encoding")) {
+				request.contentEncoding = value;
+			} else if (name.equalsIgnoreCase("Accept-Encoding")) {
+				request.acceptGzip = value.toLowerCase().contains(
+						OHAPContentCoding.GZIP);
+			} else if (name.equalsIgnoreCase("Connection")) {
+				request.keepAlive = !value.equalsIgnoreCase("close");
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				throw new IOException("Transfer-Encoding not supported");
+			}
+		}
+		request.body = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int count = in.read(request.body, read, length - read);
+			if (count < 0) {
+				throw new IOException("Request body ended");
+			}
+			read += count;
+		}
+		return request;
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c = in.read();
+		if (c < 0) {
+			return null;
+		}
+		while (c >= 0 && c != '\n') {
+			if (c != '\r') {
+				line.append((char) c);
+			}
+			c = in.read();
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Handles a request and writes the response.
+	 *
+	 * @return true if the connection is kept open.
+	 */
+	private boolean handle(Request request, OutputStream out)
+			throws IOException {
+		// "/" for a new session, "/id/counter" within a session.
+		String[] parts = request.path.split("/");
+		String id = parts.length > 1 ? parts[1] : "";
+		if (id.length() == 0 || request.method.equals("GET")) {
+			if (!request.method.equals("GET")) {
+				return respond(out, request, 404, "No session\n");
+			}
+			Session session = new Session(Integer.toString(sessionCounter
+					.incrementAndGet()) + "-" + System.currentTimeMillis());
+			sessions.put(session.id, session);
+			Log.d(TAG, "Session " + session.id + " created");
+			return respond(out, request, 200, session.id + "\n");
+		}
+		Session session = sessions.get(id);
+		if (null == session) {
+			return respond(out, request, 404, "Unknown session " + id + "\n");
+		}
+		synchronized (session) {
+			session.lastSeen = System.currentTimeMillis();
+		}
+		if (request.method.equals("DELETE")) {
+			sessions.remove(id);
+			synchronized (session) {
+				session.closed = true;
+				session.notifyAll();
+			}
+			Log.d(TAG, "Session " + id + " ended");
+			return respond(out, request, 200, "");
+		} else if (!request.method.equals("POST")) {
+			return respond(out, request, 405, "");
+		}
+		String body = readBody(request);
+		if (body.trim().length() == 0) {
+			return respond(out, request, 200, poll(session));
+		}
+		StringBuilder response = new StringBuilder();
+		BufferedReader lines = new BufferedReader(new StringReader(body));
+		for (String line = lines.readLine(); null != line; line = lines
+				.readLine()) {
+			if (line.trim().length() > 0) {
+				response.append(command(session, line)).append('\n');
+			}
+		}
+		return respond(out, request, 200, response.toString());
+	}
+
+	private String readBody(Request request) throws IOException {
+		InputStream content = OHAPContentCoding.decode(
+				request.contentEncoding,
+				new ByteArrayInputStream(request.body));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				content, CHARSET));
+		StringBuilder body = new StringBuilder();
+		char[] buffer = new char[1024];
+		for (int count = reader.read(buffer); count >= 0; count = reader
+				.read(buffer)) {
+			body.append(buffer, 0, count);
+		}
+		return body.toString();
+	}
+
+	/**
+	 * Holds a long poll until there are change notifications for the session,
+	 * or the hold time has passed.
+	 *
+	 * @return The notifications, one per line.
+	 */
+	private String poll(Session session) {
+		List<String> sent = new ArrayList<String>();
+		synchronized (session) {
+			long until = System.currentTimeMillis() + pollHold;
+			long left = pollHold;
+			while (running && !session.closed
+					&& session.notifications.isEmpty() && left > 0) {
+				try {
+					session.wait(left);
+				} catch (InterruptedException e) {
+					break;
+				}
+				left = until - System.currentTimeMillis();
+			}
+			sent.addAll(session.notifications);
+			session.notifications.clear();
+			session.lastSeen = System.currentTimeMillis();
+		}
+		StringBuilder response = new StringBuilder();
+		for (String notification : sent) {
+			response.append(notification).append('\n');
+		}
+		return response.toString();
+	}
+
+	/**
+	 * Executes a command line: <code>uid command data</code>.
+	 *
+	 * @return The response line.
+	 */
+	private String command(Session session, String line) {
+		String[] parts = line.split(" ", 3);
+		if (parts.length < 2) {
+			return "ERROR Malformed command: " + line;
+		}
+		String uid = parts[0];
+		String command = parts[1];
+		String data = parts.length > 2 ? parts[2] : null;
+		if (command.equalsIgnoreCase(TaskData.GET_CMD)) {
+			String json = home.get(null == data ? "/" : data);
+			return null == json ? uid + " ERROR No such device: " + data : uid
+					+ " VALUE " + json;
+		} else if (command.equalsIgnoreCase(TaskData.SYNC_CMD)) {
+			return uid + " DELTA " + home.delta(data);
+		} else if (command.equalsIgnoreCase(TaskData.SET_CMD)) {
+			if (null == data) {
+				return uid + " ERROR SET without a path";
+			}
+			List<String> paths = new ArrayList<String>(1);
+			try {
+				paths.add(home.set(data));
+			} catch (IllegalArgumentException e) {
+				return uid + " ERROR " + e.getMessage();
+			}
+			changed(paths);
+			return uid + " OK";
+		} else if (command.equalsIgnoreCase(TaskData.LISTEN_CMD)) {
+			String path = null == data ? "/" : data;
+			if (!home.exists(path)) {
+				return uid + " ERROR No such device: " + path;
+			}
+			synchronized (session) {
+				session.listens.put(uid, path);
+			}
+			return uid + " OK";
+		} else if (command.equalsIgnoreCase(TaskData.UNLISTEN_CMD)) {
+			String path = OHAPPathBuilder.normalizePath(data);
+			synchronized (session) {
+				Iterator<String> iterator = session.listens.values()
+						.iterator();
+				while (iterator.hasNext()) {
+					if (OHAPPathBuilder.normalizePath(iterator.next()).equals(
+							path)) {
+						iterator.remove();
+					}
+				}
+			}
+			return uid + " OK";
+		}
+		return uid + " ERROR Unknown command: " + command;
+	}
+
+	/**
+	 * Writes the response.
+	 *
+	 * @return true if the connection is kept open.
+	 */
+	private boolean respond(OutputStream out, Request request, int status,
+			String body) throws IOException {
+		byte[] content = body.getBytes(CHARSET);
+		boolean gzip = request.acceptGzip
+				&& content.length >= COMPRESSION_THRESHOLD;
+		if (gzip) {
+			content = OHAPContentCoding.compress(content);
+		}
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(status).append(' ')
+				.append(reason(status)).append("\r\n");
+		head.append("Content-Type: text/plain; charset=").append(CHARSET)
+				.append("\r\n");
+		if (gzip) {
+			head.append("Content-Encoding: ").append(OHAPContentCoding.GZIP)
+					.append("\r\n");
+		}
+		head.append("Content-Length: ").append(content.length).append("\r\n");
+		head.append("Connection: ")
+				.append(request.keepAlive ? "keep-alive" : "close")
+				.append("\r\n\r\n");
+		ByteArrayOutputStream response = new ByteArrayOutputStream(
+				head.length() + content.length);
+		response.write(head.toString().getBytes(CHARSET));
+		response.write(content);
+		out.write(response.toByteArray());
+		out.flush();
+		return request.keepAlive;
+	}
+
+	private static String reason(int status) {
+		switch (status) {
+		case 200:
+			return "OK";
+		case 404:
+			return "Not Found";
+		case 405:
+			return "Method Not Allowed";
+		default:
+			return "Error";
+		}
+	}
+
+}
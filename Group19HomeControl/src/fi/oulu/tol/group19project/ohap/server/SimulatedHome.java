@@ -0,0 +1,491 @@
+package fi.oulu.tol.group19project.ohap.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import fi.oulu.tol.group19project.ohap.OHAPPathBuilder;
+
+/**
+ * A simulated home for the {@link OHAPLocalServer}: a root container holding
+ * rooms, each room holding sensors and actuators.
+ * <p>
+ *
+ * The home answers the OHAP commands in the JSON format of the real central
+ * unit (see the sample in {@link fi.oulu.tol.group19project.ohap.OHAPParser}).
+ * A reply always contains the path from the root to the device asked for, so
+ * the client can update its model from any reply. The sensor values drift
+ * when {@link #simulate(int)} is called, and the actuators change with SET.
+ * <p>
+ *
+ * Each change gets a new model version, and the changes are logged, so that
+ * {@link #delta(String)} can tell the changes since a version without walking
+ * the whole home. The log is bounded; a client with an older version than the
+ * log covers gets the whole home.
+ *
+ * @see OHAPLocalServer
+ */
+public class SimulatedHome {
+
+	/** Max number of changes kept in the log. */
+	public static final int MAX_LOGGED_CHANGES = 10000;
+
+	private static final String CONTAINER = "container";
+	private static final String SENSOR = "sensor";
+	private static final String ACTUATOR = "actuator";
+	private static final String VALUE_PATH = "/state/value";
+
+	/** Latitude and longitude of the simulated home. */
+	private static final double LATITUDE = 65.058668;
+	private static final double LONGITUDE = 25.564338;
+
+	/**
+	 * A container, sensor or actuator of the home.
+	 */
+	private static class Device {
+		final Device parent;
+		final String key;
+		final String path;
+		final String type;
+		final String name;
+		final String description;
+		final double latitude;
+		final double longitude;
+		final double altitude;
+		final List<Device> children = new ArrayList<Device>();
+		boolean binary = false;
+		double value = 0;
+		double min = 0;
+		double max = 1;
+		String unit = null;
+		String unitAbbreviation = null;
+
+		Device(Device parent, String type, String id, String name,
+				String description, double altitude, Random random) {
+			this.parent = parent;
+			this.type = type;
+			this.key = type + ":" + id;
+			this.path = (null == parent ? "" : parent.path) + "/" + key;
+			this.name = name;
+			this.description = description;
+			this.latitude = LATITUDE + random.nextDouble() / 1000;
+			this.longitude = LONGITUDE + random.nextDouble() / 1000;
+			this.altitude = altitude;
+			if (null != parent) {
+				parent.children.add(this);
+			}
+		}
+
+		boolean isContainer() {
+			return type.equals(CONTAINER);
+		}
+	}
+
+	/**
+	 * Orders the devices by path, so that the devices of a container are
+	 * next to each other.
+	 */
+	private static final Comparator<Device> BY_PATH = new Comparator<Device>() {
+		@Override
+		public int compare(Device first, Device second) {
+			return first.path.compareTo(second.path);
+		}
+	};
+
+	/** The root container. */
+	private final Device root;
+
+	/** The devices by path. */
+	private final Map<String, Device> devices = new HashMap<String, Device>();
+
+	/** The sensors, for the simulation. */
+	private final List<Device> sensors = new ArrayList<Device>();
+
+	/** The changed devices, in the order of the versions. */
+	private final List<Device> changes = new ArrayList<Device>();
+
+	/** The version of the first change in the log. */
+	private long firstLogged = 1;
+
+	/** The current version of the home. */
+	private long version = 0;
+
+	private final Random random;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rooms
+	 *            Number of the rooms.
+	 * @param sensorsPerRoom
+	 *            Number of the sensors in each room.
+	 * @param actuatorsPerRoom
+	 *            Number of the actuators in each room.
+	 * @param seed
+	 *            Seed of the random values, the same seed makes the same home.
+	 */
+	public SimulatedHome(int rooms, int sensorsPerRoom, int actuatorsPerRoom,
+			long seed) {
+		random = new Random(seed);
+		root = add(new Device(null, CONTAINER, "home", "Home",
+				"The simulated home", 100.0, random));
+		for (int r = 1; r <= rooms; r++) {
+			Device room = add(new Device(root, CONTAINER, "room-" + r, "Room "
+					+ r, "Simulated room " + r, 100.0, random));
+			for (int s = 1; s <= sensorsPerRoom; s++) {
+				Device sensor = null;
+				if (s % 3 == 0) {
+					sensor = add(new Device(room, SENSOR, "switch-" + s,
+							"Light switch " + s, "A switch in room " + r,
+							100.6, random));
+					sensor.binary = true;
+				} else {
+					sensor = add(new Device(room, SENSOR, "temperature-" + s,
+							"Temperature " + s, "The temperature in room " + r,
+							101.2, random));
+					sensor.min = -10.0;
+					sensor.max = 60.0;
+					sensor.value = 18.0 + random.nextInt(60) / 10.0;
+					sensor.unit = "Celcius";
+					sensor.unitAbbreviation = "C";
+				}
+				sensors.add(sensor);
+			}
+			for (int a = 1; a <= actuatorsPerRoom; a++) {
+				Device actuator = null;
+				if (a % 2 == 1) {
+					actuator = add(new Device(room, ACTUATOR, "light-" + a,
+							"Lamp " + a, "A lamp in room " + r, 102.6, random));
+					actuator.binary = true;
+				} else {
+					actuator = add(new Device(room, ACTUATOR, "heating-" + a,
+							"Heating target " + a,
+							"Target temperature of the heating", 100.0, random));
+					actuator.min = -10.0;
+					actuator.max = 60.0;
+					actuator.value = 22.0;
+					actuator.unit = "Celcius";
+					actuator.unitAbbreviation = "C";
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the current version of the home.
+	 *
+	 * @return The version, zero before any change.
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the number of the devices, including the containers.
+	 *
+	 * @return The device count.
+	 */
+	public synchronized int getDeviceCount() {
+		return devices.size();
+	}
+
+	/**
+	 * Answers a GET: the device of the path with everything in it.
+	 *
+	 * @param path
+	 *            The path; "/" is the whole home.
+	 * @return The JSON, null if there is no such device.
+	 */
+	public synchronized String get(String path) {
+		Device device = find(path);
+		if (null == device) {
+			return null;
+		}
+		StringBuilder json = new StringBuilder();
+		appendTree(json, Collections.singletonList(device), true);
+		return json.toString();
+	}
+
+	/**
+	 * Checks if there is a device in the path.
+	 *
+	 * @param path
+	 *            The path.
+	 * @return true if the path is the root or a device.
+	 */
+	public synchronized boolean exists(String path) {
+		return null != find(path);
+	}
+
+	/**
+	 * Answers a SET: changes the value of an actuator.
+	 *
+	 * @param pathWithValue
+	 *            The path with the value, like
+	 *            <code>/container:home/container:room-1/actuator:light-1/state/value true</code>
+	 *            .
+	 * @return The path of the changed actuator.
+	 * @throws IllegalArgumentException
+	 *             If the path or the value is not valid; the message tells
+	 *             why.
+	 */
+	public synchronized String set(String pathWithValue) {
+		String path = OHAPPathBuilder.devicePathOf(pathWithValue);
+		if (!path.endsWith(VALUE_PATH) || path.length() == pathWithValue.length()) {
+			throw new IllegalArgumentException("Invalid SET: " + pathWithValue);
+		}
+		Device device = devices.get(path.substring(0, path.length()
+				- VALUE_PATH.length()));
+		if (null == device) {
+			throw new IllegalArgumentException("No such device: " + path);
+		}
+		if (!device.type.equals(ACTUATOR)) {
+			throw new IllegalArgumentException("Not an actuator: " + path);
+		}
+		String text = pathWithValue.substring(path.length() + 1).trim();
+		double value = 0;
+		if (device.binary) {
+			if (text.equalsIgnoreCase("true")) {
+				value = 1.0;
+			} else if (!text.equalsIgnoreCase("false")) {
+				throw new IllegalArgumentException("Not a binary value: "
+						+ text);
+			}
+		} else {
+			try {
+				value = Double.parseDouble(text);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Not a decimal value: "
+						+ text);
+			}
+			if (value < device.min || value > device.max) {
+				throw new IllegalArgumentException("Out of range: " + text);
+			}
+		}
+		device.value = value;
+		changed(device);
+		return device.path;
+	}
+
+	/**
+	 * Changes the values of random sensors.
+	 *
+	 * @param count
+	 *            Number of the changes.
+	 * @return The paths of the changed sensors.
+	 */
+	public synchronized List<String> simulate(int count) {
+		Set<String> paths = new LinkedHashSet<String>();
+		for (int i = 0; i < count && !sensors.isEmpty(); i++) {
+			Device sensor = sensors.get(random.nextInt(sensors.size()));
+			if (sensor.binary) {
+				sensor.value = sensor.value == 0 ? 1.0 : 0.0;
+			} else {
+				double drift = (random.nextInt(11) - 5) / 10.0;
+				sensor.value = Math.min(Math.max(sensor.value + drift,
+						sensor.min), sensor.max);
+				// Keep one decimal, as a real sensor would.
+				sensor.value = Math.round(sensor.value * 10) / 10.0;
+			}
+			changed(sensor);
+			paths.add(sensor.path);
+		}
+		return new ArrayList<String>(paths);
+	}
+
+	/**
+	 * Gets the state of a device, for a change notification.
+	 *
+	 * @param path
+	 *            The path of the device.
+	 * @return The JSON with the path to the device and its state, null if
+	 *         there is no such device.
+	 */
+	public synchronized String state(String path) {
+		Device device = find(path);
+		if (null == device) {
+			return null;
+		}
+		StringBuilder json = new StringBuilder();
+		appendTree(json, Collections.singletonList(device), false);
+		return json.toString();
+	}
+
+	/**
+	 * Answers a SYNC: the changes since the version.
+	 *
+	 * @param since
+	 *            The version the client has, null or unknown for none.
+	 * @return The new version, a space and the JSON of the changed devices.
+	 *         The JSON is empty if nothing has changed, and the whole home if
+	 *         the version is not known.
+	 */
+	public synchronized String delta(String since) {
+		long from = -1;
+		if (null != since) {
+			try {
+				from = Long.parseLong(since.trim());
+			} catch (NumberFormatException e) {
+				from = -1;
+			}
+		}
+		StringBuilder json = new StringBuilder();
+		json.append(version).append(' ');
+		if (from < 0 || from > version || from + 1 < firstLogged) {
+			appendTree(json, Collections.singletonList(root), true);
+		} else if (from < version) {
+			int start = (int) (from + 1 - firstLogged);
+			Set<Device> changed = new LinkedHashSet<Device>(changes.subList(
+					start, changes.size()));
+			List<Device> sorted = new ArrayList<Device>(changed);
+			Collections.sort(sorted, BY_PATH);
+			appendTree(json, sorted, false);
+		}
+		return json.toString();
+	}
+
+	private Device add(Device device) {
+		devices.put(device.path, device);
+		return device;
+	}
+
+	private Device find(String path) {
+		String key = OHAPPathBuilder.normalizePath(path);
+		if (key.equals("/")) {
+			return root;
+		}
+		return devices.get(key);
+	}
+
+	/**
+	 * Gives the change a new version and logs it.
+	 */
+	private void changed(Device device) {
+		version++;
+		changes.add(device);
+		if (changes.size() > MAX_LOGGED_CHANGES) {
+			int drop = changes.size() - MAX_LOGGED_CHANGES / 2;
+			changes.subList(0, drop).clear();
+			firstLogged += drop;
+		}
+	}
+
+	/**
+	 * Writes the devices into one JSON object, each with the containers on
+	 * the path to it. The devices must be sorted by path.
+	 *
+	 * @param json
+	 *            Where to write.
+	 * @param list
+	 *            The devices.
+	 * @param full
+	 *            Write everything in the devices, or only their states.
+	 */
+	private void appendTree(StringBuilder json, List<Device> list,
+			boolean full) {
+		json.append('{');
+		// The containers written but not closed yet, from the root.
+		List<Device> open = new ArrayList<Device>();
+		boolean first = true;
+		for (Device device : list) {
+			List<Device> ancestors = new ArrayList<Device>();
+			for (Device parent = device.parent; null != parent; parent = parent.parent) {
+				ancestors.add(0, parent);
+			}
+			int common = 0;
+			while (common < open.size() && common < ancestors.size()
+					&& open.get(common) == ancestors.get(common)) {
+				common++;
+			}
+			while (open.size() > common) {
+				open.remove(open.size() - 1);
+				json.append('}');
+				first = false;
+			}
+			for (int i = common; i < ancestors.size(); i++) {
+				if (!first) {
+					json.append(',');
+				}
+				json.append(JSONObject.quote(ancestors.get(i).key)).append(
+						":{");
+				open.add(ancestors.get(i));
+				first = true;
+			}
+			if (!first) {
+				json.append(',');
+			}
+			json.append(JSONObject.quote(device.key)).append(':');
+			appendDevice(json, device, full);
+			first = false;
+		}
+		for (int i = 0; i < open.size(); i++) {
+			json.append('}');
+		}
+		json.append('}');
+	}
+
+	/**
+	 * Writes the object of the device.
+	 */
+	private void appendDevice(StringBuilder json, Device device, boolean full) {
+		json.append('{');
+		boolean first = true;
+		if (full) {
+			json.append("\"name\":").append(JSONObject.quote(device.name));
+			json.append(",\"description\":").append(
+					JSONObject.quote(device.description));
+			json.append(",\"location\":{\"latitude\":").append(device.latitude)
+					.append(",\"longitude\":").append(device.longitude)
+					.append(",\"altitude\":").append(device.altitude)
+					.append('}');
+			first = false;
+		}
+		if (!device.isContainer()) {
+			if (!first) {
+				json.append(',');
+			}
+			appendState(json, device, full);
+			first = false;
+		}
+		if (full) {
+			for (Device child : device.children) {
+				json.append(',').append(JSONObject.quote(child.key))
+						.append(':');
+				appendDevice(json, child, true);
+			}
+		}
+		json.append('}');
+	}
+
+	/**
+	 * Writes the state of the sensor or actuator.
+	 */
+	private void appendState(StringBuilder json, Device device, boolean full) {
+		json.append("\"state\":{");
+		if (device.binary) {
+			json.append("\"type\":\"binary\",\"value\":").append(
+					device.value != 0);
+		} else {
+			json.append("\"type\":\"decimal\",\"value\":").append(
+					Double.toString(device.value));
+			if (full) {
+				json.append(",\"range\":[").append(Double.toString(device.min))
+						.append(',').append(Double.toString(device.max))
+						.append(']');
+				json.append(",\"unit\":").append(JSONObject.quote(device.unit));
+				json.append(",\"unit-abbreviation\":").append(
+						JSONObject.quote(device.unitAbbreviation));
+			}
+		}
+		json.append('}');
+	}
+
+}